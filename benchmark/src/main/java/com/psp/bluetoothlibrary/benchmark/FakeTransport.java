@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary.benchmark;
+
+import com.psp.bluetoothlibrary.Transport;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * FakeTransport class is a transport without remote device for benchmarks.
+ * <p>Input returns fed bytes in reads of chunk size, like a radio that delivers fixed size packets.
+ * Output counts and discards written bytes.
+ */
+public class FakeTransport implements Transport {
+
+    private final byte[] chunk;
+    private long pendingBytes = 0; // fed bytes not read yet, guarded by input stream
+    private boolean isClosed = false;
+    private volatile long writtenBytes = 0;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (pendingBytes == 0 && !isClosed) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            if(isClosed) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(len, chunk.length), pendingBytes);
+            System.arraycopy(chunk, 0, b, off, count);
+            pendingBytes -= count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return (int) Math.min(pendingBytes, Integer.MAX_VALUE);
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            writtenBytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writtenBytes += len;
+        }
+    };
+
+    /**
+     * Init FakeTransport object
+     * @param chunkSize maximum bytes returned by one read
+     */
+    public FakeTransport(int chunkSize) {
+        chunk = new byte[chunkSize];
+        for (int i = 0; i < chunkSize; i++) {
+            chunk[i] = (byte) (i % 32 == 31 ? '\n' : 'a' + i % 26); // text with line ends
+        }
+    }
+
+    /**
+     * Make bytes available to read.
+     * @param bytes number of bytes
+     */
+    public void feed(long bytes) {
+        synchronized (inputStream) {
+            pendingBytes += bytes;
+            inputStream.notifyAll();
+        }
+    }
+
+    /**
+     * Get number of bytes written to output.
+     * @return written bytes
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() {
+        synchronized (inputStream) {
+            isClosed = true;
+            inputStream.notifyAll();
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "fake";
+    }
+}
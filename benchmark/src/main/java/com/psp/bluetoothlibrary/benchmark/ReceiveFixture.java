@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary.benchmark;
+
+import android.bluetooth.BluetoothSocket;
+import com.psp.bluetoothlibrary.BluetoothListener;
+import com.psp.bluetoothlibrary.Connection;
+import com.psp.bluetoothlibrary.Dispatcher;
+import com.psp.bluetoothlibrary.SendReceive;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReceiveFixture class runs the send / receive engine over a {@link FakeTransport} and waits for fed bytes
+ * to reach the listeners. Listener callbacks run on the reader thread ({@link Dispatcher#DIRECT}).
+ */
+/*package*/ final class ReceiveFixture {
+
+    private final FakeTransport transport;
+    private final Connection connection = new Connection(null);
+    private final List<BluetoothListener.onRawReceiveListener> rawReceiveListeners = new ArrayList<>();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+    private long fedBytes = 0;
+    private volatile int checksum = 0; // state written by listeners, keeps their work from being removed
+
+    /**
+     * @param chunkSize bytes returned by one read
+     * @param isReceiveListener true to count bytes in receive listener (String and byte[] copy per read),
+     *                          false to count in raw receive listener
+     * @param rawListenerCount number of raw receive listeners
+     */
+    /*package*/ ReceiveFixture(int chunkSize, final boolean isReceiveListener, int rawListenerCount) {
+        transport = new FakeTransport(chunkSize);
+        Dispatcher.setExecutor(Dispatcher.DIRECT);
+
+        for (int i = 0; i < rawListenerCount; i++) {
+            final boolean isCounter = i == 0 && !isReceiveListener;
+            BluetoothListener.onRawReceiveListener listener = new BluetoothListener.onRawReceiveListener() {
+                @Override
+                public void onRawReceived(byte[] buffer, int offset, int length) {
+                    if(isCounter) {
+                        deliveredBytes.addAndGet(length);
+                    }
+                    else {
+                        checksum += buffer[offset];
+                    }
+                }
+            };
+            rawReceiveListeners.add(listener);
+            SendReceive.getInstance().addOnRawReceiveListener(listener);
+        }
+
+        BluetoothListener.onReceiveListener receiveListener = null;
+        if(isReceiveListener) {
+            receiveListener = new BluetoothListener.onReceiveListener() {
+                @Override
+                public void onReceived(String receivedData) { }
+
+                @Override
+                public void onReceived(String receivedData, byte[] receivedDataInBytes) {
+                    deliveredBytes.addAndGet(receivedDataInBytes.length);
+                }
+            };
+        }
+        connection.open(transport, new BluetoothListener.onConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(BluetoothSocket socket, int state) { }
+
+            @Override
+            public void onConnectionFailed(int errorCode) { }
+        }, receiveListener);
+    }
+
+    /*package*/ Connection getConnection() {
+        return connection;
+    }
+
+    // Feed bytes and wait until listeners got them
+    /*package*/ void receive(int bytes) {
+        fedBytes += bytes;
+        transport.feed(bytes);
+        while (deliveredBytes.get() < fedBytes) {
+            Thread.yield();
+        }
+    }
+
+    /*package*/ void close() {
+        connection.disconnect();
+        for (BluetoothListener.onRawReceiveListener listener : rawReceiveListeners) {
+            SendReceive.getInstance().removeOnRawReceiveListener(listener);
+        }
+        Dispatcher.setExecutor(null);
+    }
+}
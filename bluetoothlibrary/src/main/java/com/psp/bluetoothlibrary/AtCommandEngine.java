@@ -0,0 +1,509 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * AtCommandEngine class sends AT commands over a {@link Connection} (HC-05, HC-06, ELM327 etc.) :
+ * <p>- Commands are queued and sent as soon as the module is ready (after final response of previous command).
+ * <p>- More than one command can be in flight if the module accepts it (pipelining).
+ * <p>- Response lines are matched to commands in sent order, a response ends with a final response line.
+ * <p>- Timeout per command. Late response of a timed out command is dropped, next commands are sent
+ * after its final response or resync timeout, so it does not complete the next command.
+ * <p>- Latency stats per command.
+ * <p>Lines come from a {@link LineParserStage}, add it to stages before sending commands.
+ * For ELM327 set prompts of line parser to ">" and final responses to ">".
+ * Lines are matched on the reader thread, listeners are called on main thread.
+ */
+public class AtCommandEngine implements BluetoothListener.onLineListener {
+
+    /**
+     * It indicates no final response received within command timeout.
+     */
+    public static final int TIMEOUT = 421;
+
+    /**
+     * It indicates command could not be sent.
+     */
+    public static final int SEND_FAILED = 422;
+
+    /**
+     * It indicates command engine is closed before final response received.
+     */
+    public static final int CLOSED = 423;
+
+    private final Connection connection;
+    private final LineParserStage lineParser;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Command> inFlightCommands = new ArrayDeque<>(); // in sent order
+    private final Queue<Command> waitingCommands = new ArrayDeque<>();
+    private int timedOutInFlight = 0; // timed out commands kept in flight till their late response
+    private ScheduledFuture<?> resyncFuture = null;
+    private boolean isClosed = false;
+
+    private volatile int maxInFlight = 1;
+    private volatile long defaultTimeout = 2*1000;
+    private volatile long resyncTimeout = 500;
+    private volatile String lineEnding = "\r";
+    private volatile String[] finalResponses = {"OK", "ERROR*", "+CME ERROR*", "FAIL"};
+    private volatile boolean isSkipEcho = true;
+
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final ConcurrentHashMap<String, LatencyStats> commandLatencyStats = new ConcurrentHashMap<>();
+    private volatile long timeoutCount = 0;
+
+
+    /**
+     * Init AtCommandEngine object
+     * @param connection connection used to send commands
+     * @param lineParser line parser stage of received data
+     */
+    public AtCommandEngine(Connection connection, LineParserStage lineParser) {
+        this.connection = connection;
+        this.lineParser = lineParser;
+        lineParser.addOnLineListener(this);
+    }
+
+    /**
+     * Set maximum commands sent without waiting for final response. Default is 1.
+     * @param maxInFlight maximum commands in flight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if(maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid max in flight : " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        transmitAll(takeWaiting());
+    }
+
+    /**
+     * Set timeout for commands sent without timeout. Default is 2 sec.
+     * @param timeoutMillis command timeout (in milliseconds)
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        this.defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set time to wait for late response of a timed out command, next commands are sent after its
+     * final response or this time. Default is 500 ms.
+     * @param timeoutMillis resync timeout (in milliseconds)
+     */
+    public void setResyncTimeout(long timeoutMillis) {
+        this.resyncTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set characters added after each command. Default is "\r".
+     * @param lineEnding line ending
+     */
+    public void setLineEnding(String lineEnding) {
+        this.lineEnding = lineEnding;
+    }
+
+    /**
+     * Set lines that end a response. Line ending with '*' matches lines starting with it.
+     * Default is "OK", "ERROR*", "+CME ERROR*", "FAIL".
+     * @param finalResponses final response lines
+     */
+    public void setFinalResponses(String... finalResponses) {
+        this.finalResponses = finalResponses.clone();
+    }
+
+    /**
+     * Set line equal to sent command (module echo) is not added to response. Default is true.
+     * @param isSkipEcho true to skip echo
+     */
+    public void setSkipEcho(boolean isSkipEcho) {
+        this.isSkipEcho = isSkipEcho;
+    }
+
+    /**
+     * Send command with default timeout.
+     * @param command command without line ending, for example "AT+NAME?"
+     * @return AtResponse
+     */
+    public AtResponse send(String command) {
+        return send(command, defaultTimeout, null);
+    }
+
+    /**
+     * Send command. Command waits in queue if maximum commands are in flight, timeout includes time in queue.
+     * @param command command without line ending
+     * @param timeoutMillis command timeout (in milliseconds)
+     * @param responseListener BluetoothListener.onAtResponseListener, called on main thread, can be null
+     * @return AtResponse
+     */
+    public AtResponse send(String command, long timeoutMillis, BluetoothListener.onAtResponseListener responseListener) {
+        final Command atCommand = new Command(command, responseListener);
+        boolean isSendNow = false;
+        synchronized (lock) {
+            if(isClosed) {
+                atCommand.isDone = true;
+            }
+            else if(canSend() && waitingCommands.isEmpty()) {
+                inFlightCommands.add(atCommand);
+                isSendNow = true;
+            }
+            else {
+                waitingCommands.add(atCommand);
+            }
+        }
+
+        if(atCommand.isDone) {
+            fail(atCommand, CLOSED);
+            return atCommand.response;
+        }
+
+        atCommand.timeoutFuture = Scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(atCommand);
+            }
+        }, timeoutMillis);
+
+        if(isSendNow) {
+            transmit(atCommand);
+        }
+        return atCommand.response;
+    }
+
+    /**
+     * Get number of commands sent and waiting for final response.
+     * @return commands in flight
+     */
+    public int getInFlightCount() {
+        synchronized (lock) {
+            return inFlightCommands.size() - timedOutInFlight;
+        }
+    }
+
+    /**
+     * Get number of commands waiting in queue.
+     * @return commands not sent yet
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return waitingCommands.size();
+        }
+    }
+
+    /**
+     * Get latency stats of all answered commands.
+     * @return LatencyStats
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Get latency stats of one command.
+     * @param command command without line ending
+     * @return LatencyStats, null if command is not answered yet
+     */
+    public LatencyStats getLatencyStats(String command) {
+        return commandLatencyStats.get(command);
+    }
+
+    /**
+     * Get number of commands timed out.
+     * @return timeout count
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Close command engine, pending commands fail with {@link #CLOSED}.
+     */
+    public void close() {
+        lineParser.removeOnLineListener(this);
+        List<Command> pending;
+        synchronized (lock) {
+            isClosed = true;
+            pending = new ArrayList<>();
+            for (Command command : inFlightCommands) {
+                if(!command.isTimedOut) {
+                    pending.add(command);
+                }
+            }
+            pending.addAll(waitingCommands);
+            inFlightCommands.clear();
+            waitingCommands.clear();
+            timedOutInFlight = 0;
+            Scheduler.cancel(resyncFuture);
+            resyncFuture = null;
+        }
+        for (Command command : pending) {
+            fail(command, CLOSED);
+        }
+    }
+
+
+    // true if a command can be sent now, called with lock
+    private boolean canSend() {
+        return timedOutInFlight == 0 && inFlightCommands.size() < maxInFlight;
+    }
+
+    // Move waiting commands to free in flight places
+    private List<Command> takeWaiting() {
+        List<Command> sendNow = null;
+        synchronized (lock) {
+            while (canSend() && !waitingCommands.isEmpty()) {
+                Command next = waitingCommands.poll();
+                inFlightCommands.add(next);
+                if(sendNow == null) {
+                    sendNow = new ArrayList<>();
+                }
+                sendNow.add(next);
+            }
+        }
+        return sendNow;
+    }
+
+    private void transmit(Command command) {
+        command.sentNanos = System.nanoTime();
+        if(!connection.send(command.command + lineEnding)) {
+            synchronized (lock) {
+                if(command.isDone || !inFlightCommands.remove(command)) {
+                    return;
+                }
+                command.isDone = true;
+            }
+            fail(command, SEND_FAILED);
+            transmitAll(takeWaiting());
+        }
+    }
+
+    private void transmitAll(List<Command> commands) {
+        if(commands != null) {
+            for (Command command : commands) {
+                transmit(command);
+            }
+        }
+    }
+
+    private void onTimeout(Command command) {
+        synchronized (lock) {
+            if(command.isDone) {
+                return;
+            }
+            command.isDone = true;
+            if(!waitingCommands.remove(command)) {
+                // command is sent, keep it in flight so its late response is dropped, not given to next command
+                command.isTimedOut = true;
+                timedOutInFlight++;
+                Scheduler.cancel(resyncFuture);
+                resyncFuture = Scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        endResync();
+                    }
+                }, resyncTimeout);
+            }
+        }
+        timeoutCount++;
+        fail(command, TIMEOUT);
+        transmitAll(takeWaiting());
+    }
+
+    // Late responses did not come within resync timeout, stop waiting for them
+    private void endResync() {
+        synchronized (lock) {
+            Iterator<Command> iterator = inFlightCommands.iterator();
+            while (iterator.hasNext()) {
+                if(iterator.next().isTimedOut) {
+                    iterator.remove();
+                }
+            }
+            timedOutInFlight = 0;
+            resyncFuture = null;
+        }
+        transmitAll(takeWaiting());
+    }
+
+    // Remove first in flight command, which is timed out, called with lock
+    private void removeTimedOut() {
+        inFlightCommands.poll();
+        timedOutInFlight--;
+        if(timedOutInFlight == 0) {
+            Scheduler.cancel(resyncFuture);
+            resyncFuture = null;
+        }
+    }
+
+    // Command after timed out commands at head if line is its echo, called with lock
+    private Command findEchoed(CharSequence line) {
+        for (Command command : inFlightCommands) {
+            if(!command.isTimedOut) {
+                return contentEquals(line, command.command) ? command : null;
+            }
+        }
+        return null;
+    }
+
+    // Called on reader thread
+    @Override
+    public void onLine(CharSequence line) {
+        Command completed = null;
+        boolean isResynced = false;
+        synchronized (lock) {
+            Command command = inFlightCommands.peek();
+            if(command != null && command.isTimedOut) {
+                Command echoed = isSkipEcho ? findEchoed(line) : null;
+                if(echoed != null) {
+                    // module answers a later command, late responses before it are not coming
+                    while (inFlightCommands.peek() != echoed) {
+                        removeTimedOut();
+                    }
+                }
+                else if(isFinalResponse(line)) {
+                    removeTimedOut(); // late response is over
+                }
+                isResynced = timedOutInFlight == 0;
+                command = echoed; // line of late response is dropped
+            }
+            // command is null for unsolicited line or late response
+            if(command != null) {
+                if(!isFinalResponse(line)) {
+                    if(!(isSkipEcho && command.lines.isEmpty() && contentEquals(line, command.command))) {
+                        command.lines.add(line.toString());
+                    }
+                }
+                else {
+                    inFlightCommands.poll();
+                    command.isDone = true;
+                    completed = command;
+                }
+            }
+        }
+
+        if(completed != null) {
+            complete(completed, line.toString());
+        }
+        if(completed != null || isResynced) {
+            transmitAll(takeWaiting());
+        }
+    }
+
+    private void complete(final Command command, final String finalResponse) {
+        Scheduler.cancel(command.timeoutFuture);
+        long latencyNanos = System.nanoTime() - command.sentNanos;
+        final long latencyMillis = latencyNanos / 1000000L;
+        latencyStats.record(latencyNanos);
+        LatencyStats stats = commandLatencyStats.get(command.command);
+        if(stats == null) {
+            stats = new LatencyStats();
+            LatencyStats previous = commandLatencyStats.putIfAbsent(command.command, stats);
+            if(previous != null) {
+                stats = previous;
+            }
+        }
+        stats.record(latencyNanos);
+
+        final List<String> lines = Collections.unmodifiableList(command.lines);
+        command.response.complete(lines, finalResponse, 0, latencyMillis);
+        if(command.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    command.responseListener.onAtResponse(command.command, lines, finalResponse, latencyMillis);
+                }
+            });
+        }
+    }
+
+    private boolean isFinalResponse(CharSequence line) {
+        for (String finalResponse : finalResponses) {
+            int length = finalResponse.length();
+            if(length > 0 && finalResponse.charAt(length - 1) == '*') {
+                if(startsWith(line, finalResponse, length - 1)) {
+                    return true;
+                }
+            }
+            else if(contentEquals(line, finalResponse)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix, int prefixLength) {
+        if(line.length() < prefixLength) {
+            return false;
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            if(line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contentEquals(CharSequence line, String text) {
+        return line.length() == text.length() && startsWith(line, text, text.length());
+    }
+
+    private void fail(final Command command, final int errorCode) {
+        Scheduler.cancel(command.timeoutFuture);
+        command.response.complete(null, null, errorCode, -1);
+        if(command.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    command.responseListener.onAtFailure(command.command, errorCode);
+                }
+            });
+        }
+    }
+
+
+    // One command
+    private static final class Command {
+        private final String command;
+        private final BluetoothListener.onAtResponseListener responseListener;
+        private final AtResponse response;
+        private final List<String> lines = new ArrayList<>(2); // changed with lock
+        private long sentNanos = 0;
+        private boolean isDone = false; // changed with lock
+        private boolean isTimedOut = false; // sent and timed out, changed with lock
+        private volatile ScheduledFuture<?> timeoutFuture = null;
+
+        private Command(String command, BluetoothListener.onAtResponseListener responseListener) {
+            this.command = command;
+            this.responseListener = responseListener;
+            this.response = new AtResponse(command);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AtResponse class is the pending result of a command sent with {@link AtCommandEngine}.
+ */
+public final class AtResponse {
+
+    private final String command;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile List<String> lines = null;
+    private volatile String finalResponse = null;
+    private volatile int errorCode = 0;
+    private volatile long latencyMillis = -1;
+
+
+    /*package*/ AtResponse(String command) {
+        this.command = command;
+    }
+
+    // Set result once, returns false if already done
+    /*package*/ synchronized boolean complete(List<String> lines, String finalResponse, int errorCode, long latencyMillis) {
+        if(latch.getCount() == 0) {
+            return false;
+        }
+        this.lines = lines;
+        this.finalResponse = finalResponse;
+        this.errorCode = errorCode;
+        this.latencyMillis = latencyMillis;
+        latch.countDown();
+        return true;
+    }
+
+    /**
+     * Wait for response. Don't call on main thread.
+     * @param timeoutMillis maximum wait time (in milliseconds)
+     * @return response lines before final response, or null if command failed or wait timed out
+     */
+    public List<String> get(long timeoutMillis) {
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return lines;
+    }
+
+    /**
+     * Get sent command.
+     * @return command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * isDone method is used to check command is finished or not.
+     * @return true if final response is received or command failed
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Get response lines before final response.
+     * @return lines or null if command is not finished or failed
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Get line that ended the response.
+     * @return final response or null if command is not finished or failed
+     */
+    public String getFinalResponse() {
+        return finalResponse;
+    }
+
+    /**
+     * isOk method is used to check final response is not an error.
+     * @return true if final response is received and does not contain "ERROR"
+     */
+    public boolean isOk() {
+        String response = finalResponse;
+        return response != null && !response.contains("ERROR");
+    }
+
+    /**
+     * Get error code of failed command.
+     * @return error code or 0 if command did not fail
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get time from command sent to final response received.
+     * @return latency (in milliseconds) or -1 if no response is received
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+}
@@ -25,6 +25,7 @@
 package com.psp.bluetoothlibrary;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -35,17 +36,27 @@ import android.os.Looper;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.FragmentActivity;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Bluetooth class provides the following features :
  * <p>- Turn on/ off bluetooth.
- * <p>- Detect nearby bluetooth devices.
+ * <p>- Detect nearby bluetooth devices (with filter and early stop).
+ * <p>- Discovered devices with signal strength, each device reported once unless its signal changes.
+ * <p>- Detect nearby bluetooth devices in batches sorted by signal strength.
  * <p>- Get bluetooth discovery started or finished.
- * <p>- Pair bluetooth device and list of paired devices.
- * <p>- Unpair bluetooth device (using reflection).
+ * <p>- Repeat discovery in background, paused while connection is sending or receiving data.
+ * <p>- Pair bluetooth device and list of paired devices (kept in memory, updated on bond state change).
+ * <p>- Unpair bluetooth device or all paired devices (using reflection).
  */
 public class Bluetooth {
 
@@ -63,6 +74,32 @@ public class Bluetooth {
     private BluetoothListener.onDevicePairListener onDevicePairListener = null; // device pair listener
     private BluetoothListener.onDiscoveryStateChangedListener onDiscoveryStateChangedListener = null; // discovery state changed listener
 
+    private final DiscoveryCache discoveryCache = new DiscoveryCache(); // discovered devices by mac address
+    private final BondedDeviceRegistry bondedDeviceRegistry; // paired devices by mac address
+
+    private DiscoveryFilter discoveryFilter = new DiscoveryFilter(); // filter of running discovery
+    private final Set<String> matchedAddresses = new TreeSet<>(String.CASE_INSENSITIVE_ORDER); // devices reported by running discovery
+    private final Set<String> pairingAddresses = new HashSet<>(); // devices with pair request sent and no result yet
+
+    // Discovery scheduler, used on main thread only
+    private static final long SCHEDULER_CHECK_INTERVAL = 500; // traffic check interval (in milliseconds)
+    private boolean isSchedulerRunning = false;
+    private long schedulerScanWindow = 0;
+    private long schedulerInterval = 0;
+    private DiscoveryFilter schedulerFilter = null;
+    private long schedulerScanEnd = 0; // end of running scan window (uptime in milliseconds), 0 if not scanning
+    private long backoffIdleTime = 2000; // connection is busy if data was sent or received within this time
+
+    // Radio time spent in discovery
+    private long totalScanTime = 0; // finished scans (in milliseconds)
+    private long scanStartTime = 0; // start of running scan (uptime in milliseconds), 0 if not scanning
+
+    // Batched detect nearby devices, used on main thread only
+    private BluetoothListener.onDetectNearbyDevicesListener onDetectNearbyDevicesListener = null;
+    private long batchWindowMillis = 0;
+    private int maxBatchSize = 0;
+    private final Map<String, DiscoveredDevice> pendingBatch = new LinkedHashMap<>(); // devices waiting for delivery
+
     //Constant Values
     public static final int DISCOVERY_STARTED = 113;
     public static final int DISCOVERY_FINISHED = 114;
@@ -76,6 +113,7 @@ public class Bluetooth {
     public Bluetooth(Context context) {
         this.context = context;
         handler = new Handler(Looper.getMainLooper());
+        bondedDeviceRegistry = new BondedDeviceRegistry(context);
         getAdapter();
     }
 
@@ -149,6 +187,10 @@ public class Bluetooth {
         if(isBluetoothSupported) {
             stopBluetoothDiscovery();  //stop bluetooth discovery
             handler.removeCallbacks(runnable); // remove handler callback
+            handler.removeCallbacks(batchRunnable);
+            pendingBatch.clear();
+            stopDiscoveryScheduler();
+            bondedDeviceRegistry.release();
         }
     }
 
@@ -160,6 +202,24 @@ public class Bluetooth {
         this.onDetectNearbyDeviceListener = onDetectNearbyDeviceListener;
     }
 
+    /**
+     * Set batched detect nearby devices listener, new or changed devices are delivered together
+     * when window time is over or batch size is reached, and all devices found by the discovery when it is finished.
+     * @param onDetectNearbyDevicesListener BluetoothListener.onDetectNearbyDevicesListener, null to remove
+     * @param windowMillis maximum time a device waits for delivery (in milliseconds)
+     * @param maxBatchSize batch is delivered when it has this many devices, 0 for no limit
+     */
+    public void setOnDetectNearbyDevicesListener(BluetoothListener.onDetectNearbyDevicesListener onDetectNearbyDevicesListener,
+                                                 long windowMillis, int maxBatchSize) {
+        this.onDetectNearbyDevicesListener = onDetectNearbyDevicesListener;
+        this.batchWindowMillis = Math.max(0, windowMillis);
+        this.maxBatchSize = Math.max(0, maxBatchSize);
+        if(onDetectNearbyDevicesListener == null) {
+            handler.removeCallbacks(batchRunnable);
+            pendingBatch.clear();
+        }
+    }
+
     /**
      * Set device pair listener,you can get paired device with this listener.
      * @param onDevicePairListener BluetoothListener.onDevicePairListener
@@ -240,32 +300,188 @@ public class Bluetooth {
 
     /**
      * Get list of paired devices.
+     * It returns a copy, use {@link #getPairedDeviceList()} to avoid the copy.
      * @return ArrayList<BluetoothDevice> List of Paired BluetoothDevice.
      */
     public ArrayList<BluetoothDevice> getPairedDevices() {
-        ArrayList<BluetoothDevice> deviceList = new ArrayList<>();
+        return new ArrayList<>(getPairedDeviceList());
+    }
 
+    /**
+     * Get immutable list of paired devices.
+     * Paired devices are read once and then updated on bond state change, repeated calls return the same list till a device is paired or unpaired.
+     * @return List<BluetoothDevice> List of Paired BluetoothDevice.
+     */
+    public List<BluetoothDevice> getPairedDeviceList() {
         if(isBluetoothSupported) {
-            // Paired device
-            Set<BluetoothDevice> devices = btAdapter.getBondedDevices();
-            if(devices.size() > 0) {
-                deviceList.addAll(devices);
-            }
+            return bondedDeviceRegistry.getDevices();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Get paired device using its address.
+     * @param address Bluetooth device mac address
+     * @return BluetoothDevice or null if device is not paired
+     */
+    public BluetoothDevice getPairedDevice(String address) {
+        if(isBluetoothSupported && address != null) {
+            return bondedDeviceRegistry.getDevice(address);
         }
-        return  deviceList;
+        return null;
+    }
+
+    /**
+     * isPaired method is used to check device is paired or not.
+     * @param address Bluetooth device mac address
+     * @return true if device is paired
+     */
+    public boolean isPaired(String address) {
+        return getPairedDevice(address) != null;
+    }
+
+    /**
+     * Set time to live of discovered devices. Device not found again within this time is removed
+     * from discovered devices. Default is 5 min.
+     * <p>Each discovery reports every device it finds, time to live does not change it.
+     * @param ttlMillis time to live (in milliseconds), 0 to keep devices till {@link #clearDiscoveredDevices()}
+     */
+    public void setDiscoveredDeviceTtl(long ttlMillis) {
+        discoveryCache.setTtl(ttlMillis);
+    }
+
+    /**
+     * Set RSSI change for which a device is reported again in the same discovery. Default is 10 dBm.
+     * @param rssiThreshold rssi change (in dBm)
+     */
+    public void setRssiChangeThreshold(int rssiThreshold) {
+        discoveryCache.setRssiThreshold(rssiThreshold);
+    }
+
+    /**
+     * Set if detect nearby device listener gets each device once per discovery and significant RSSI changes (default)
+     * or every discovery result.
+     * @param isNotifyOnlyChanges true to report each device once per discovery and RSSI changes
+     */
+    public void setNotifyOnlyChanges(boolean isNotifyOnlyChanges) {
+        discoveryCache.setNotifyOnlyChanges(isNotifyOnlyChanges);
+    }
+
+    /**
+     * Get devices found by discovery, it does not start a new discovery.
+     * @return List of DiscoveredDevice, first found first
+     */
+    public List<DiscoveredDevice> getDiscoveredDevices() {
+        return discoveryCache.snapshot();
+    }
+
+    /**
+     * Get device found by discovery using its address.
+     * @param address Bluetooth device mac address
+     * @return DiscoveredDevice or null if device is not found
+     */
+    public DiscoveredDevice getDiscoveredDevice(String address) {
+        if(address == null) {
+            return null;
+        }
+        return discoveryCache.get(address);
+    }
+
+    /**
+     * Remove all discovered devices, they get reported again when found.
+     */
+    public void clearDiscoveredDevices() {
+        discoveryCache.clear();
     }
 
     /**
      * Start detect nearby bluetooth devices.
+     * Devices with name which are not paired are reported.
      */
     public void startDetectNearbyDevices() {
+        startDetectNearbyDevices(new DiscoveryFilter());
+    }
+
+    /**
+     * Start detect nearby bluetooth devices which match filter.
+     * Discovery stops early when filter max matches or target address is reached.
+     * @param filter DiscoveryFilter
+     */
+    public void startDetectNearbyDevices(DiscoveryFilter filter) {
         if(isBluetoothSupported) {
+            discoveryFilter = filter != null ? filter : new DiscoveryFilter();
+            matchedAddresses.clear();
+            discoveryCache.startDiscovery(); // also each scheduler cycle
             handler.removeCallbacks(runnable);
             stopBluetoothDiscovery();
             handler.postDelayed(runnable,500);
         }
     }
 
+    /**
+     * Start discovery scheduler, it repeats discovery for scan window every interval.
+     * <p>While a connection is sending or receiving data discovery is stopped, it slows down the connection,
+     * and started again when the connection is idle.
+     * @param scanWindowMillis discovery time of each cycle (in milliseconds)
+     * @param intervalMillis time from start of one cycle to start of next cycle (in milliseconds)
+     * @param filter DiscoveryFilter, null for default filter
+     */
+    public void startDiscoveryScheduler(long scanWindowMillis, long intervalMillis, DiscoveryFilter filter) {
+        if(scanWindowMillis <= 0 || intervalMillis < scanWindowMillis) {
+            throw new IllegalArgumentException("Invalid scan window : " + scanWindowMillis + " interval : " + intervalMillis);
+        }
+        if(isBluetoothSupported) {
+            stopDiscoveryScheduler();
+            schedulerScanWindow = scanWindowMillis;
+            schedulerInterval = intervalMillis;
+            schedulerFilter = filter;
+            isSchedulerRunning = true;
+            handler.post(schedulerRunnable);
+        }
+    }
+
+    /**
+     * Stop discovery scheduler and running discovery.
+     */
+    public void stopDiscoveryScheduler() {
+        if(isSchedulerRunning) {
+            isSchedulerRunning = false;
+            handler.removeCallbacks(schedulerRunnable);
+            if(schedulerScanEnd > 0) {
+                handler.removeCallbacks(runnable);
+                stopBluetoothDiscovery();
+                schedulerScanEnd = 0;
+            }
+        }
+    }
+
+    /**
+     * Return true if discovery scheduler is running.
+     * @return true if discovery scheduler is running
+     */
+    public boolean isDiscoverySchedulerRunning() {
+        return isSchedulerRunning;
+    }
+
+    /**
+     * Set time without data sent or received after which a connection is idle and scheduler can discover. Default is 2 sec.
+     * @param idleTimeMillis idle time (in milliseconds)
+     */
+    public void setDiscoveryBackoffIdleTime(long idleTimeMillis) {
+        this.backoffIdleTime = idleTimeMillis;
+    }
+
+    /**
+     * Get total time radio spent in discovery started by this object.
+     * @return scan time (in milliseconds)
+     */
+    public long getTotalScanTime() {
+        if(scanStartTime > 0) {
+            return totalScanTime + (uptimeMillis() - scanStartTime);
+        }
+        return totalScanTime;
+    }
+
     /**
      * Pair request send to specific bluetooth device using its address.
      * @param device bluetooth device mac address
@@ -277,7 +493,7 @@ public class Bluetooth {
             try {
                 isSuccess = device.createBond();
                 if(isSuccess) {
-                    registerPairingBroadcast(true);
+                    addPairingDevice(device);
                 }
             }
             catch (Exception e) {
@@ -300,7 +516,7 @@ public class Bluetooth {
                 try {
                     isSuccess = device.createBond();
                     if(isSuccess) {
-                        registerPairingBroadcast(true);
+                        addPairingDevice(device);
                     }
                 }
                 catch (Exception e) {
@@ -319,17 +535,8 @@ public class Bluetooth {
     public boolean unpairDevice(BluetoothDevice device) {
         boolean isSuccess = false;
         if(isBluetoothSupported && device != null) {
-            try {
-                // Bluetooth Remove Bond
-                Method m = device.getClass()
-                        .getMethod("removeBond", (Class[]) null);
-                m.invoke(device, (Object[]) null);
-                isSuccess = true;
-            }
-            catch (Exception e) {
-                isSuccess = false;
-                e.printStackTrace();
-            }
+            // Bluetooth Remove Bond
+            isSuccess = HiddenBluetoothApi.removeBond(device);
         }
         return isSuccess;
     }
@@ -344,22 +551,29 @@ public class Bluetooth {
         if(isBluetoothSupported) {
             BluetoothDevice device = getRemoteDevice(deviceAddress);
             if (device != null) {
-                try {
-                    // Bluetooth Remove Bond
-                    Method m = device.getClass()
-                            .getMethod("removeBond", (Class[]) null);
-                    m.invoke(device, (Object[]) null);
-                    isSuccess = true;
-                }
-                catch (Exception e) {
-                    isSuccess = false;
-                    e.printStackTrace();
-                }
+                // Bluetooth Remove Bond
+                isSuccess = HiddenBluetoothApi.removeBond(device);
             }
         }
         return isSuccess;
     }
 
+    /**
+     * Forget all paired devices selected by predicate.
+     * @param predicate DevicePredicate, null to forget all paired devices
+     * @return number of devices unpair request sent successfully
+     */
+    public int unpairAll(DevicePredicate predicate) {
+        int count = 0;
+        if(isBluetoothSupported) {
+            for (BluetoothDevice device : getPairedDeviceList()) {
+                if((predicate == null || predicate.test(device)) && HiddenBluetoothApi.removeBond(device)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
 
     private final Runnable runnable = new Runnable() {
         @Override
@@ -368,6 +582,149 @@ public class Bluetooth {
         }
     };
 
+    // Discovery scheduler cycle
+    private final Runnable schedulerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onSchedulerTick();
+        }
+    };
+
+    private void onSchedulerTick() {
+        if(!isSchedulerRunning) {
+            return;
+        }
+        boolean isBusy = SendReceive.getTrafficIdleTime() < backoffIdleTime;
+        long now = uptimeMillis();
+
+        if(schedulerScanEnd > 0) {
+            // scanning, stop at end of window or when connection gets busy
+            if(isBusy || now >= schedulerScanEnd) {
+                handler.removeCallbacks(runnable);
+                stopBluetoothDiscovery();
+                schedulerScanEnd = 0;
+                handler.postDelayed(schedulerRunnable, isBusy ? SCHEDULER_CHECK_INTERVAL : schedulerInterval - schedulerScanWindow);
+            }
+            else {
+                handler.postDelayed(schedulerRunnable, Math.min(SCHEDULER_CHECK_INTERVAL, schedulerScanEnd - now));
+            }
+        }
+        else if(isBusy) {
+            // back off till connection is idle
+            handler.postDelayed(schedulerRunnable, SCHEDULER_CHECK_INTERVAL);
+        }
+        else {
+            startDetectNearbyDevices(schedulerFilter);
+            schedulerScanEnd = now + schedulerScanWindow;
+            handler.postDelayed(schedulerRunnable, Math.min(SCHEDULER_CHECK_INTERVAL, schedulerScanWindow));
+        }
+    }
+
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    // Deliver pending batch when window time is over
+    private final Runnable batchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverBatch();
+        }
+    };
+
+    // Add discovered device to pending batch
+    private void addToBatch(DiscoveredDevice device) {
+        if(onDetectNearbyDevicesListener == null) {
+            return;
+        }
+        boolean isFirst = pendingBatch.isEmpty();
+        pendingBatch.put(device.getAddress().toUpperCase(Locale.US), device); // later result replaces earlier one
+
+        if(maxBatchSize > 0 && pendingBatch.size() >= maxBatchSize) {
+            deliverBatch();
+        }
+        else if(isFirst) {
+            handler.postDelayed(batchRunnable, batchWindowMillis);
+        }
+    }
+
+    // Send pending batch to listener
+    private void deliverBatch() {
+        handler.removeCallbacks(batchRunnable);
+        if(pendingBatch.isEmpty()) {
+            return;
+        }
+        List<DiscoveredDevice> devices = new ArrayList<>(pendingBatch.values());
+        pendingBatch.clear();
+        Collections.sort(devices, RSSI_COMPARATOR);
+        if(onDetectNearbyDevicesListener != null) {
+            onDetectNearbyDevicesListener.onDevicesDetected(devices, false);
+        }
+    }
+
+    // Send devices found by this discovery to listener when discovery is finished
+    private void deliverFinalBatch() {
+        handler.removeCallbacks(batchRunnable);
+        pendingBatch.clear();
+        if(onDetectNearbyDevicesListener != null) {
+            List<DiscoveredDevice> devices = new ArrayList<>(matchedAddresses.size());
+            for (String address : matchedAddresses) {
+                DiscoveredDevice device = discoveryCache.get(address); // cache keeps devices of earlier discoveries too
+                if(device != null) {
+                    devices.add(device);
+                }
+            }
+            Collections.sort(devices, RSSI_COMPARATOR);
+            onDetectNearbyDevicesListener.onDevicesDetected(devices, true);
+        }
+    }
+
+    // Filter, store and report discovery result
+    private void onDeviceFound(BluetoothDevice device, Intent intent) {
+        final DiscoveryFilter filter = discoveryFilter;
+        final String address = device.getAddress();
+
+        // Check broadcast values first, cheapest first, name and bond state may need IPC
+        short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DiscoveredDevice.RSSI_UNKNOWN);
+        if(!filter.matchesAddressAndSignal(address, rssi)) {
+            return;
+        }
+        BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+        if(!filter.matchesDeviceClass(bluetoothClass)) {
+            return;
+        }
+        String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+        if(name == null) {
+            name = device.getName();
+        }
+        if(!filter.matchesName(name) || !filter.matchesBondState(device)) {
+            return;
+        }
+
+        // Report only new devices and significant signal changes
+        DiscoveredDevice discoveredDevice = discoveryCache.update(address, device, name, bluetoothClass, rssi);
+        if(discoveredDevice != null) {
+            if(onDetectNearbyDeviceListener != null) {
+                onDetectNearbyDeviceListener.onDeviceDetected(device);
+            }
+            addToBatch(discoveredDevice);
+        }
+
+        // Stop discovery early, it slows down connected devices
+        matchedAddresses.add(address);
+        if(filter.isTarget(address) || (filter.getMaxMatches() > 0 && matchedAddresses.size() >= filter.getMaxMatches())) {
+            stopBluetoothDiscovery();
+        }
+    }
+
+    // Strongest signal first, unknown signal last
+    private static final Comparator<DiscoveredDevice> RSSI_COMPARATOR = new Comparator<DiscoveredDevice>() {
+        @Override
+        public int compare(DiscoveredDevice d1, DiscoveredDevice d2) {
+            return d2.getRssi() - d1.getRssi();
+        }
+    };
+
     // Stop bluetooth discovery
     private void startBluetoothDiscovery(){
         try {
@@ -391,6 +748,24 @@ public class Bluetooth {
         }
     }
 
+    // pairing broadcast receiver stays registered till every pair request has a result
+    private void addPairingDevice(BluetoothDevice device) {
+        synchronized (pairingAddresses) {
+            pairingAddresses.add(device.getAddress().toUpperCase(Locale.US));
+        }
+        registerPairingBroadcast(true);
+    }
+
+    // remove device with pair result, returns true if no pair request is left
+    private boolean removePairingDevice(BluetoothDevice device) {
+        synchronized (pairingAddresses) {
+            if(device != null && device.getAddress() != null) {
+                pairingAddresses.remove(device.getAddress().toUpperCase(Locale.US));
+            }
+            return pairingAddresses.isEmpty();
+        }
+    }
+
     // register or unregister pairing broadcast receiver
     private void registerPairingBroadcast(boolean isRegister) {
         if(isRegister) {
@@ -446,7 +821,9 @@ public class Bluetooth {
                 final int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
 
                 if (state == BluetoothDevice.BOND_BONDED && prevState == BluetoothDevice.BOND_BONDING) {
-                    registerPairingBroadcast(false);
+                    if(removePairingDevice(device)) {
+                        registerPairingBroadcast(false);
+                    }
                     //Device paired successfully
                     if(onDevicePairListener != null) {
                         onDevicePairListener.onDevicePaired(device);
@@ -454,7 +831,9 @@ public class Bluetooth {
                 }
 
                 if (state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDING) {
-                    registerPairingBroadcast(false);
+                    if(removePairingDevice(device)) {
+                        registerPairingBroadcast(false);
+                    }
                     //Device paired cancelled
                     if(onDevicePairListener != null) {
                         onDevicePairListener.onCancelled(device);
@@ -476,17 +855,16 @@ public class Bluetooth {
                 if(action.equals(BluetoothDevice.ACTION_FOUND)) {
                     //Device found
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if(device != null && device.getName() != null && device.getAddress() != null) {
-                        // Check device is paired or not
-                        if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                            if(onDetectNearbyDeviceListener != null) {
-                                onDetectNearbyDeviceListener.onDeviceDetected(device);
-                            }
-                        }
+                    if(device != null && device.getAddress() != null) {
+                        onDeviceFound(device, intent);
                     }
                 }
 
                 if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
+                    discoveryCache.evict(); // remove devices not found for time to live
+                    if(scanStartTime == 0) {
+                        scanStartTime = uptimeMillis();
+                    }
                     //Device discovry started
                     if(onDiscoveryStateChangedListener != null) {
                         onDiscoveryStateChangedListener.onDiscoveryStateChanged(DISCOVERY_STARTED);
@@ -495,6 +873,11 @@ public class Bluetooth {
 
                 if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
                     registerDiscoveryBroadcast(false);
+                    if(scanStartTime > 0) {
+                        totalScanTime += uptimeMillis() - scanStartTime;
+                        scanStartTime = 0;
+                    }
+                    deliverFinalBatch();
                     //Device discovery finished
                     if(onDiscoveryStateChangedListener != null) {
                         onDiscoveryStateChangedListener.onDiscoveryStateChanged(DISCOVERY_FINISHED);
@@ -2,6 +2,7 @@ package com.psp.bluetoothlibrary;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import java.util.List;
 
 /**
  * MIT License
@@ -49,6 +50,175 @@ public interface BluetoothListener {
         void onReceived(String receivedData, byte[] receivedDataInBytes);
     }
 
+    /**
+     * You can read data on the reader thread before it is sent to main thread with this listener.
+     * <p>Note : buffer is reused for next read, copy the data you need to keep before returning.
+     */
+    interface onRawReceiveListener {
+        void onRawReceived(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * You can read received text lines of {@link LineParserStage} with this listener.
+     * <p>Note : it is called on the reader thread, if line views are enabled line is only valid till the method returns.
+     */
+    interface onLineListener {
+        /**
+         * @param line received line without delimiter
+         */
+        void onLine(CharSequence line);
+    }
+
+    /**
+     * You can get response of a request sent with {@link RequestClient} with this listener.
+     */
+    interface onResponseListener {
+        /**
+         * @param response response payload
+         * @param latencyMillis time from request sent to response received (in milliseconds)
+         */
+        void onResponse(byte[] response, long latencyMillis);
+
+        /**
+         * @param errorCode {@link RequestClient#TIMEOUT}, {@link RequestClient#SEND_FAILED} or {@link RequestClient#CLOSED}
+         */
+        void onFailure(int errorCode);
+    }
+
+    /**
+     * You can read decoded messages of {@link MessageCodec} with this listener.
+     * <p>Note : it is called on the reader thread, message is only valid till the method returns.
+     */
+    interface onMessageListener<T extends Flyweight> {
+        /**
+         * @param type message type
+         * @param message flyweight wrapped around received payload
+         */
+        void onMessage(int type, T message);
+    }
+
+    /**
+     * You can read messages of one channel of {@link ChannelMultiplexer} with this listener.
+     */
+    interface onChannelReceiveListener {
+        /**
+         * @param channelId channel id
+         * @param data received message
+         */
+        void onChannelReceived(int channelId, byte[] data);
+    }
+
+    /**
+     * You can read data of {@link ReliableChannel} with this listener.
+     */
+    interface onReliableReceiveListener {
+        /**
+         * Data received, in the order it was sent.
+         * @param data received data
+         */
+        void onReliableReceived(byte[] data);
+
+        /**
+         * Channel is closed because data could not be delivered.
+         * @param errorCode {@link ReliableChannel#RETRANSMIT_LIMIT}
+         */
+        void onReliableFailed(int errorCode);
+    }
+
+    /**
+     * You can get response of a command sent with {@link AtCommandEngine} with this listener.
+     */
+    interface onAtResponseListener {
+        /**
+         * @param command sent command
+         * @param lines response lines before final response
+         * @param finalResponse line that ended the response (for example "OK", "ERROR" or ">")
+         * @param latencyMillis time from command sent to final response (in milliseconds)
+         */
+        void onAtResponse(String command, List<String> lines, String finalResponse, long latencyMillis);
+
+        /**
+         * @param command sent command
+         * @param errorCode {@link AtCommandEngine#TIMEOUT}, {@link AtCommandEngine#SEND_FAILED} or {@link AtCommandEngine#CLOSED}
+         */
+        void onAtFailure(String command, int errorCode);
+    }
+
+    /**
+     * You can get response of a request sent with {@link ModbusMaster} with this listener.
+     */
+    interface onModbusResponseListener {
+        /**
+         * @param slaveId slave address
+         * @param address first register address
+         * @param values read registers (unsigned 16 bit), or written registers for write requests
+         * @param latencyMillis time from request sent to response received (in milliseconds)
+         */
+        void onModbusResponse(int slaveId, int address, int[] values, long latencyMillis);
+
+        /**
+         * @param slaveId slave address
+         * @param address first register address
+         * @param errorCode Modbus exception code (1 to 255), {@link ModbusMaster#TIMEOUT},
+         * {@link ModbusMaster#SEND_FAILED} or {@link ModbusMaster#CLOSED}
+         */
+        void onModbusFailure(int slaveId, int address, int errorCode);
+    }
+
+    /**
+     * You can get progress and result of {@link YmodemTransfer} with this listener.
+     */
+    interface onTransferListener {
+        /**
+         * @param transferredBytes file bytes sent or received
+         * @param totalBytes file size, -1 if not known
+         */
+        void onTransferProgress(long transferredBytes, long totalBytes);
+
+        /**
+         * @param fileName file name, null for XMODEM
+         * @param transferredBytes file bytes sent or received
+         * @param elapsedMillis transfer time (in milliseconds)
+         */
+        void onTransferFinished(String fileName, long transferredBytes, long elapsedMillis);
+
+        /**
+         * @param errorCode {@link YmodemTransfer#CANCELLED}, {@link YmodemTransfer#REMOTE_CANCELLED},
+         * {@link YmodemTransfer#TIMEOUT}, {@link YmodemTransfer#RETRY_LIMIT}, {@link YmodemTransfer#IO_ERROR}
+         * or {@link YmodemTransfer#INVALID_HEADER}
+         */
+        void onTransferFailed(int errorCode);
+    }
+
+    /**
+     * You can get result of graceful disconnect with this listener.
+     */
+    interface onDisconnectListener {
+        /**
+         * Connection is closed.
+         * @param shutdownMillis time taken to close connection (in milliseconds)
+         * @param discardedBytes number of received bytes not delivered to receive listener
+         */
+        void onDisconnected(long shutdownMillis, int discardedBytes);
+    }
+
+    /**
+     * You can check if connected device stopped sending data with this listener.
+     */
+    interface onReadWatchdogListener {
+        /**
+         * No data received for idle timeout, connection is still open.
+         * @param idleMillis time since last received byte (in milliseconds)
+         */
+        void onReadIdle(long idleMillis);
+
+        /**
+         * No data received for stall timeout, connection gets closed if close on stall is enabled.
+         * @param idleMillis time since last received byte (in milliseconds)
+         */
+        void onReadStalled(long idleMillis);
+    }
+
 
     /**
      * You can detect nearby devices with this listener.
@@ -57,6 +227,17 @@ public interface BluetoothListener {
         void onDeviceDetected(BluetoothDevice device);
     }
 
+    /**
+     * You can detect nearby devices in batches with this listener, devices are sorted by signal strength (strongest first).
+     */
+    interface onDetectNearbyDevicesListener {
+        /**
+         * @param devices new or changed devices of the batch, or all devices found by the discovery when it is finished
+         * @param isDiscoveryFinished true if this is the final list of the discovery
+         */
+        void onDevicesDetected(List<DiscoveredDevice> devices, boolean isDiscoveryFinished);
+    }
+
     /**
      * You can get paired devices with this listener.
      */
@@ -65,6 +246,41 @@ public interface BluetoothListener {
         void onCancelled(BluetoothDevice device);
     }
 
+    /**
+     * You can get results of {@link PairingQueue} with this listener.
+     */
+    interface onPairingQueueListener {
+        /**
+         * Pairing of one device is finished.
+         * @param address Bluetooth device mac address
+         * @param isPaired true if device is paired
+         * @param attempts number of pair requests sent
+         * @param elapsedMillis time from first pair request to result (in milliseconds)
+         */
+        void onDevicePairResult(String address, boolean isPaired, int attempts, long elapsedMillis);
+
+        /**
+         * All devices of queue are finished.
+         * @param pairedCount number of paired devices
+         * @param failedCount number of devices not paired
+         * @param elapsedMillis time from queue start (in milliseconds)
+         */
+        void onPairingQueueFinished(int pairedCount, int failedCount, long elapsedMillis);
+    }
+
+    /**
+     * You can answer pairing requests without user input with this listener.
+     */
+    interface onPairingPinListener {
+        /**
+         * Pairing request received from device.
+         * @param device Bluetooth device
+         * @param pairingVariant pairing variant (BluetoothDevice.PAIRING_VARIANT_PIN or passkey confirmation)
+         * @return PIN for PIN request, any non null value to accept passkey confirmation, null to let user answer
+         */
+        String onPinRequested(BluetoothDevice device, int pairingVariant);
+    }
+
     /**
      * You can get bluetooth discovery started or finished with this listener.
      */
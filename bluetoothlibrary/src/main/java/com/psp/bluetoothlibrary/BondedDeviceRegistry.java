@@ -0,0 +1,161 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BondedDeviceRegistry class keeps paired devices in memory.
+ * <p>Paired devices are read from adapter on first use and then updated by bond state broadcasts,
+ * so queries do not call the bluetooth service again.
+ */
+/*package*/ final class BondedDeviceRegistry {
+
+    private final Context context;
+
+    private final Map<String, BluetoothDevice> devices = new LinkedHashMap<>(); // key is upper case mac address
+    private List<BluetoothDevice> snapshot = null; // immutable list of devices, null if devices changed
+    private boolean isLoaded = false;
+    private boolean isRegister = false; // this boolean is check broadcast receiver is register or not
+
+
+    BondedDeviceRegistry(Context context) {
+        this.context = context;
+    }
+
+    // Get immutable list of paired devices
+    synchronized List<BluetoothDevice> getDevices() {
+        load();
+        if(snapshot == null) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(devices.values()));
+        }
+        return snapshot;
+    }
+
+    // Get paired device or null
+    synchronized BluetoothDevice getDevice(String address) {
+        load();
+        return devices.get(address.toUpperCase(Locale.US));
+    }
+
+    // Drop cached devices and stop listening bond state, devices are read again on next use
+    synchronized void release() {
+        invalidate();
+        if(isRegister) {
+            try {
+                context.unregisterReceiver(bondReceiver);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            isRegister = false;
+        }
+    }
+
+    private void invalidate() {
+        devices.clear();
+        snapshot = null;
+        isLoaded = false;
+    }
+
+    // Read paired devices from adapter once
+    private void load() {
+        if(isLoaded) {
+            return;
+        }
+        registerReceiver();
+
+        BluetoothAdapter adapter = Bluetooth.getAdapter();
+        if(adapter == null) {
+            return;
+        }
+        Set<BluetoothDevice> bondedDevices = adapter.getBondedDevices();
+        if(bondedDevices != null) {
+            for (BluetoothDevice device : bondedDevices) {
+                devices.put(device.getAddress().toUpperCase(Locale.US), device);
+            }
+        }
+        snapshot = null;
+        isLoaded = true;
+    }
+
+    private void registerReceiver() {
+        if(!isRegister && context != null) {
+            IntentFilter intentFilter = new IntentFilter();
+            intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+            context.registerReceiver(bondReceiver, intentFilter);
+            isRegister = true;
+        }
+    }
+
+    // Update one device on bond state change
+    private synchronized void onBondStateChanged(BluetoothDevice device, int state) {
+        if(!isLoaded || device == null || device.getAddress() == null) {
+            return;
+        }
+        String key = device.getAddress().toUpperCase(Locale.US);
+        if(state == BluetoothDevice.BOND_BONDED) {
+            devices.put(key, device);
+            snapshot = null;
+        }
+        else if(state == BluetoothDevice.BOND_NONE && devices.remove(key) != null) {
+            snapshot = null;
+        }
+    }
+
+    private synchronized void onAdapterStateChanged(int state) {
+        if(state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_OFF) {
+            // paired devices are not reported while bluetooth is off, read again
+            invalidate();
+        }
+    }
+
+    private final BroadcastReceiver bondReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if(BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                onBondStateChanged(device, intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR));
+            }
+            else if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+                onAdapterStateChanged(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR));
+            }
+        }
+    };
+}
@@ -0,0 +1,109 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+/**
+ * BufferPool class keeps released byte arrays for reuse, so sending does not allocate per message.
+ * <p>Buffers are pooled by size class (powers of two from 64 bytes to 64 KB), larger buffers are not pooled.
+ * <p>It is thread safe and does not allocate when a pooled buffer is available.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 6; // 64 bytes
+    private static final int MAX_SHIFT = 16; // 64 KB
+    private static final BufferPool defaultPool = new BufferPool(16);
+
+    private final byte[][][] pools; // released buffers of each size class, used as stack
+    private final int[] counts;
+
+    /**
+     * Get pool shared by library classes.
+     * @return BufferPool
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Init BufferPool object
+     * @param maxBuffersPerSize maximum buffers kept of each size class
+     */
+    public BufferPool(int maxBuffersPerSize) {
+        pools = new byte[MAX_SHIFT - MIN_SHIFT + 1][maxBuffersPerSize][];
+        counts = new int[MAX_SHIFT - MIN_SHIFT + 1];
+    }
+
+    /**
+     * Get buffer from pool, new buffer is created if pool is empty.
+     * @param minCapacity minimum buffer length
+     * @return buffer, its length may be larger than minCapacity
+     */
+    public byte[] acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if(sizeClass < 0) {
+            return new byte[minCapacity];
+        }
+        synchronized (this) {
+            int count = counts[sizeClass];
+            if(count > 0) {
+                byte[] buffer = pools[sizeClass][count - 1];
+                pools[sizeClass][count - 1] = null;
+                counts[sizeClass] = count - 1;
+                return buffer;
+            }
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Give buffer back to pool, it must not be used after release.
+     * @param buffer buffer from {@link #acquire(int)}, null is ignored
+     */
+    public void release(byte[] buffer) {
+        if(buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.length) - MIN_SHIFT;
+        if(sizeClass < 0 || sizeClass >= counts.length) {
+            return;
+        }
+        synchronized (this) {
+            int count = counts[sizeClass];
+            if(count < pools[sizeClass].length) {
+                pools[sizeClass][count] = buffer;
+                counts[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    // index of smallest size class with capacity, -1 if larger than pooled sizes
+    private static int sizeClass(int capacity) {
+        if(capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * ChannelMultiplexer class runs many logical channels over one {@link Connection} :
+ * <p>- Each channel has its own receive listener.
+ * <p>- Messages of all channels are sent in chunks, channels with data take turns (round robin),
+ * so a large message of one channel does not block other channels.
+ * <p>- Each channel has credit based flow control, sender sends only as many bytes as receiver allowed,
+ * receiver allows more after its listener got the data.
+ * <p>- Each new connection starts with initial credit, messages not completely sent are sent again from the start.
+ * Messages sent while not connected wait for the connection.
+ * <p>Both devices must use ChannelMultiplexer with same initial credit and open same channel ids.
+ * Listeners are called on main thread.
+ * <p>Frame format : 0xC3 | type (1 byte) | channel id (1 byte) | length (2 bytes, big endian) | header CRC-8 (1 byte) | payload.
+ * Receiver skips bytes till it finds a valid header.
+ */
+public class ChannelMultiplexer implements BluetoothListener.onRawReceiveListener, Stage.Resettable {
+
+    private static final int MAGIC = 0xC3;
+    private static final int TYPE_DATA = 1; // chunk of message
+    private static final int TYPE_DATA_END = 2; // last chunk of message
+    private static final int TYPE_CREDIT = 3; // payload is credit in bytes (4 bytes)
+    private static final int HEADER_LENGTH = 6;
+    private static final int MAX_CHANNELS = 256;
+    private static final int MAX_CHUNK_SIZE = 0xFFFF;
+
+    private final Connection connection;
+    private final int chunkSize;
+    private final int initialCredit;
+
+    // Send state, changed with lock
+    private final Object lock = new Object();
+    private final Channel[] channels = new Channel[MAX_CHANNELS];
+    private final int[] pendingCredits = new int[MAX_CHANNELS]; // credit to give back to remote channel
+    private boolean hasPendingCredits = false;
+    private int nextChannel = 0; // round robin position
+    private boolean isClosed = false;
+    private boolean isSendFailed = false; // not connected, writer waits for reset of next connection
+    private int connectionNumber = 0; // changed on reset, state of older connection is dropped
+    private final Crc sendHeaderCrc = Crc.crc8();
+
+    // Frame taken by writer thread, state is changed when it is sent
+    private Channel frameChannel = null; // data frame of channel, null for credit frame
+    private int frameCount = 0; // message bytes of data frame or credit of credit frame
+    private int frameCreditChannel = -1;
+
+    // Receive state, used on reader thread only
+    private final Crc receiveHeaderCrc = Crc.crc8();
+    private byte[] receiveBuffer = new byte[256];
+    private int receiveLength = 0;
+
+    private volatile long droppedFrameCount = 0;
+
+
+    /**
+     * Init ChannelMultiplexer object with 512 bytes chunk and 64 KB initial credit.
+     * @param connection connection used to send frames
+     */
+    public ChannelMultiplexer(Connection connection) {
+        this(connection, 512, 64*1024);
+    }
+
+    /**
+     * Init ChannelMultiplexer object
+     * @param connection connection used to send frames
+     * @param chunkSize maximum bytes sent by one channel in its turn
+     * @param initialCredit bytes a channel can send before receiver allows more, it is also maximum message size
+     */
+    public ChannelMultiplexer(Connection connection, int chunkSize, int initialCredit) {
+        if(chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size : " + chunkSize);
+        }
+        if(initialCredit < chunkSize) {
+            throw new IllegalArgumentException("Initial credit must not be smaller than chunk size");
+        }
+        this.connection = connection;
+        this.chunkSize = chunkSize;
+        this.initialCredit = initialCredit;
+
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ChannelMultiplexer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Open channel.
+     * @param channelId channel id from 0 to 255
+     * @param receiveListener BluetoothListener.onChannelReceiveListener, called on main thread
+     * @return Channel
+     */
+    public Channel openChannel(int channelId, BluetoothListener.onChannelReceiveListener receiveListener) {
+        if(channelId < 0 || channelId >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Invalid channel id : " + channelId);
+        }
+        synchronized (lock) {
+            if(channels[channelId] != null) {
+                throw new IllegalStateException("Channel " + channelId + " is already open");
+            }
+            Channel channel = new Channel(channelId, receiveListener);
+            channels[channelId] = channel;
+            return channel;
+        }
+    }
+
+    /**
+     * Get open channel.
+     * @param channelId channel id
+     * @return Channel, null if channel is not open
+     */
+    public Channel getChannel(int channelId) {
+        synchronized (lock) {
+            return channels[channelId];
+        }
+    }
+
+    /**
+     * Get number of received frames of channels not open, with invalid length or invalid header checksum.
+     * @return dropped frame count
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * Close all channels and stop sending, queued data is not sent.
+     */
+    public void close() {
+        SendReceive.getInstance().removeOnRawReceiveListener(this);
+        synchronized (lock) {
+            isClosed = true;
+            Arrays.fill(channels, null);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Start again with initial credit, it is called by {@link SendReceive} when a new connection is started.
+     * Both devices start again on connect. A message not completely sent is sent again from the start,
+     * a message partly received is dropped.
+     */
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            connectionNumber++;
+            for (Channel channel : channels) {
+                if(channel != null) {
+                    channel.queuedBytes += channel.sendPosition;
+                    channel.sendPosition = 0;
+                    channel.sendCredit = initialCredit;
+                    channel.receiveLength = 0;
+                    channel.isReceivingMessage = false;
+                }
+            }
+            Arrays.fill(pendingCredits, 0);
+            hasPendingCredits = false;
+            isSendFailed = false;
+            lock.notifyAll();
+        }
+
+        // reader thread of new connection is not started yet
+        receiveLength = 0;
+    }
+
+
+    // Send frames one at a time, waits when no channel can send
+    private void writeLoop() {
+        byte[] frame = new byte[HEADER_LENGTH + Math.max(chunkSize, 4)];
+        while (true) {
+            int frameLength = 0;
+            int frameConnection;
+            synchronized (lock) {
+                try {
+                    while (!isClosed && (isSendFailed || (frameLength = nextFrame(frame)) == 0)) {
+                        lock.wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if(isClosed) {
+                    return;
+                }
+                frameConnection = connectionNumber;
+            }
+
+            boolean isSent = connection.send(frame, 0, frameLength);
+            synchronized (lock) {
+                if(frameConnection != connectionNumber) {
+                    continue; // reset while sending, state is already set for new connection
+                }
+                if(isSent) {
+                    frameSent();
+                }
+                else {
+                    isSendFailed = true; // frame is taken again after reset
+                }
+            }
+        }
+    }
+
+    // Write next frame to send, credits first then one chunk of next channel with data and credit
+    // returns frame length, 0 if nothing to send, call with lock
+    private int nextFrame(byte[] frame) {
+        if(hasPendingCredits) {
+            for (int id = 0; id < MAX_CHANNELS; id++) {
+                int credit = pendingCredits[id];
+                if(credit > 0) {
+                    writeHeader(frame, TYPE_CREDIT, id, 4);
+                    frame[HEADER_LENGTH] = (byte) (credit >>> 24);
+                    frame[HEADER_LENGTH + 1] = (byte) (credit >>> 16);
+                    frame[HEADER_LENGTH + 2] = (byte) (credit >>> 8);
+                    frame[HEADER_LENGTH + 3] = (byte) credit;
+                    frameChannel = null;
+                    frameCreditChannel = id;
+                    frameCount = credit;
+                    return HEADER_LENGTH + 4;
+                }
+            }
+            hasPendingCredits = false;
+        }
+
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            int id = (nextChannel + i) % MAX_CHANNELS;
+            Channel channel = channels[id];
+            if(channel == null || channel.sendQueue.isEmpty()) {
+                continue;
+            }
+            byte[] message = channel.sendQueue.peek();
+            int remaining = message.length - channel.sendPosition;
+            int count = Math.min(Math.min(chunkSize, remaining), channel.sendCredit);
+            if(count == 0 && remaining > 0) {
+                continue; // wait for credit
+            }
+            boolean isEnd = count == remaining;
+            writeHeader(frame, isEnd ? TYPE_DATA_END : TYPE_DATA, id, count);
+            System.arraycopy(message, channel.sendPosition, frame, HEADER_LENGTH, count);
+            frameChannel = channel;
+            frameCount = count;
+            return HEADER_LENGTH + count;
+        }
+        return 0;
+    }
+
+    // Frame taken by nextFrame is sent, move send state past it, call with lock
+    private void frameSent() {
+        Channel channel = frameChannel;
+        if(channel == null) {
+            pendingCredits[frameCreditChannel] -= frameCount; // more credit may be collected while sending
+            hasPendingCredits = true; // look for other credits
+            return;
+        }
+        if(channels[channel.id] != channel || channel.sendQueue.isEmpty()) {
+            return; // channel closed while sending
+        }
+        int count = frameCount;
+        channel.sendCredit -= count;
+        channel.queuedBytes -= count;
+        channel.sentBytes += count;
+        if(channel.sendPosition + count == channel.sendQueue.peek().length) {
+            channel.sendQueue.poll();
+            channel.sendPosition = 0;
+        }
+        else {
+            channel.sendPosition += count;
+        }
+        nextChannel = channel.id + 1;
+    }
+
+    // call with lock
+    private void writeHeader(byte[] frame, int type, int channelId, int length) {
+        frame[0] = (byte) MAGIC;
+        frame[1] = (byte) type;
+        frame[2] = (byte) channelId;
+        frame[3] = (byte) (length >>> 8);
+        frame[4] = (byte) length;
+        frame[5] = (byte) sendHeaderCrc.compute(frame, 0, HEADER_LENGTH - 1);
+    }
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        // append to receive buffer
+        if(receiveLength + length > receiveBuffer.length) {
+            receiveBuffer = Arrays.copyOf(receiveBuffer, Math.max(receiveBuffer.length * 2, receiveLength + length));
+        }
+        System.arraycopy(buffer, offset, receiveBuffer, receiveLength, length);
+        receiveLength += length;
+
+        // decode all complete frames, skip bytes till valid header is found
+        int position = 0;
+        while (receiveLength - position >= HEADER_LENGTH) {
+            if((receiveBuffer[position] & 0xFF) != MAGIC) {
+                position++;
+                continue;
+            }
+            if((byte) receiveHeaderCrc.compute(receiveBuffer, position, HEADER_LENGTH - 1) != receiveBuffer[position + HEADER_LENGTH - 1]) {
+                droppedFrameCount++;
+                position++;
+                continue;
+            }
+            int payloadLength = ((receiveBuffer[position + 3] & 0xFF) << 8) | (receiveBuffer[position + 4] & 0xFF);
+            if(receiveLength - position < HEADER_LENGTH + payloadLength) {
+                break;
+            }
+            onFrame(receiveBuffer[position + 1], receiveBuffer[position + 2] & 0xFF, receiveBuffer, position + HEADER_LENGTH, payloadLength);
+            position += HEADER_LENGTH + payloadLength;
+        }
+
+        // keep partial frame
+        if(position > 0) {
+            System.arraycopy(receiveBuffer, position, receiveBuffer, 0, receiveLength - position);
+            receiveLength -= position;
+        }
+    }
+
+    // Called on reader thread
+    private void onFrame(int type, int channelId, byte[] buffer, int offset, int length) {
+        final Channel channel;
+        synchronized (lock) {
+            channel = channels[channelId];
+            if(channel != null && type == TYPE_CREDIT && length == 4) {
+                channel.sendCredit += ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                        | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+                lock.notifyAll();
+                return;
+            }
+        }
+        if(channel == null || (type != TYPE_DATA && type != TYPE_DATA_END)) {
+            droppedFrameCount++;
+            return;
+        }
+        if(channel.receiveLength + length > initialCredit) {
+            // remote sent more than credit, drop the message
+            droppedFrameCount++;
+            channel.receiveLength = 0;
+            channel.isReceivingMessage = false;
+            return;
+        }
+
+        // collect chunks of message
+        if(channel.receiveBuffer.length < channel.receiveLength + length) {
+            channel.receiveBuffer = Arrays.copyOf(channel.receiveBuffer,
+                    Math.min(initialCredit, Math.max(channel.receiveBuffer.length * 2, channel.receiveLength + length)));
+        }
+        System.arraycopy(buffer, offset, channel.receiveBuffer, channel.receiveLength, length);
+        channel.receiveLength += length;
+        if(type == TYPE_DATA) {
+            // remote may wait for credit to send rest of message, don't hold back credit
+            channel.isReceivingMessage = true;
+            flushCredit(channel);
+        }
+        else {
+            final byte[] message = Arrays.copyOf(channel.receiveBuffer, channel.receiveLength);
+            channel.receiveLength = 0;
+            channel.isReceivingMessage = false;
+            channel.receivedBytes += message.length;
+            final int messageConnection = getConnectionNumber();
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(channel.receiveListener != null) {
+                        channel.receiveListener.onChannelReceived(channel.id, message);
+                    }
+                    // listener got the data, remote can send more
+                    giveCredit(channel, message.length, messageConnection);
+                }
+            });
+        }
+    }
+
+    private int getConnectionNumber() {
+        synchronized (lock) {
+            return connectionNumber;
+        }
+    }
+
+    // Credit is sent when a quarter of initial credit is collected, so sender does not wait for it,
+    // or at once while a message is partly received because remote may be waiting for it
+    private void giveCredit(Channel channel, int credit, int messageConnection) {
+        synchronized (lock) {
+            if(messageConnection != connectionNumber) {
+                return; // remote starts new connection with initial credit
+            }
+            pendingCredits[channel.id] += credit;
+            if(pendingCredits[channel.id] >= Math.max(1, initialCredit / 4) || channel.isReceivingMessage) {
+                hasPendingCredits = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Send collected credit of channel now
+    private void flushCredit(Channel channel) {
+        synchronized (lock) {
+            if(pendingCredits[channel.id] > 0) {
+                hasPendingCredits = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Channel class is one logical channel of {@link ChannelMultiplexer}.
+     */
+    public final class Channel {
+        private final int id;
+        private final BluetoothListener.onChannelReceiveListener receiveListener;
+
+        // Send state, changed with lock
+        private final ArrayDeque<byte[]> sendQueue = new ArrayDeque<>();
+        private int sendPosition = 0; // sent bytes of first message
+        private int sendCredit = initialCredit;
+        private long queuedBytes = 0;
+        private long sentBytes = 0;
+
+        // Receive state, used on reader thread only
+        private byte[] receiveBuffer = new byte[64];
+        private int receiveLength = 0;
+        private volatile boolean isReceivingMessage = false; // message is partly received
+        private volatile long receivedBytes = 0;
+
+        private Channel(int id, BluetoothListener.onChannelReceiveListener receiveListener) {
+            this.id = id;
+            this.receiveListener = receiveListener;
+        }
+
+        /**
+         * Get channel id.
+         * @return channel id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Send message, it is queued and sent in chunks when channel has credit.
+         * @param data message, maximum length is initial credit
+         * @return true if message is queued, false if multiplexer or channel is closed
+         */
+        public boolean send(byte[] data) {
+            if(data.length > initialCredit) {
+                throw new IllegalArgumentException("Message longer than initial credit : " + data.length);
+            }
+            synchronized (lock) {
+                if(isClosed || channels[id] != this) {
+                    return false;
+                }
+                sendQueue.add(data);
+                queuedBytes += data.length;
+                lock.notifyAll();
+                return true;
+            }
+        }
+
+        /**
+         * Get number of bytes queued and not sent yet.
+         * @return queued bytes
+         */
+        public long getQueuedBytes() {
+            synchronized (lock) {
+                return queuedBytes;
+            }
+        }
+
+        /**
+         * Get number of bytes channel can send before receiver allows more.
+         * @return send credit (in bytes)
+         */
+        public int getSendCredit() {
+            synchronized (lock) {
+                return sendCredit;
+            }
+        }
+
+        /**
+         * Get number of message bytes sent.
+         * @return sent bytes
+         */
+        public long getSentBytes() {
+            synchronized (lock) {
+                return sentBytes;
+            }
+        }
+
+        /**
+         * Get number of message bytes received.
+         * @return received bytes
+         */
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        /**
+         * Close channel, queued data is not sent. Channel id can be opened again.
+         */
+        public void close() {
+            synchronized (lock) {
+                if(channels[id] == this) {
+                    channels[id] = null;
+                }
+                sendQueue.clear();
+                queuedBytes = 0;
+            }
+        }
+    }
+}
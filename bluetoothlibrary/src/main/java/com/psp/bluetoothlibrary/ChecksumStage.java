@@ -0,0 +1,261 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+
+/**
+ * ChecksumStage class appends checksum to sent data and checks checksum of received frames.
+ * <p>- Checksum is computed with {@link Crc} lookup tables.
+ * <p>- Received frames may arrive in any number of chunks, checksum is updated as each chunk arrives.
+ * <p>- Invalid frames are dropped and counted on the reader thread, receive listeners never get them.
+ * <p>Checksum covers the whole frame and follows it. Frame length is found with {@link FrameLength}.
+ */
+public class ChecksumStage implements Stage, Stage.Resettable {
+
+    /**
+     * Finds length of received frame.
+     */
+    public interface FrameLength {
+        /**
+         * @param buffer received data, starts at the first byte of frame
+         * @param offset offset of frame in buffer
+         * @param available number of frame bytes received yet
+         * @return length of frame without checksum, or -1 if more bytes are needed to find it
+         */
+        int getFrameLength(byte[] buffer, int offset, int available);
+    }
+
+    private final Crc receiveCrc;
+    private final Crc sendCrc;
+    private final FrameLength framer;
+    private boolean isStripChecksum = true;
+    private int maxFrameLength = 4096;
+
+    // Frame received in chunks, used on reader thread only
+    private byte[] frame = new byte[64];
+    private int frameFilled = 0;
+    private int currentFrameLength = -1;
+    private int crcPosition = 0; // frame bytes added to receive crc
+
+    private byte[] sendBuffer = new byte[64];
+
+    private volatile long validFrameCount = 0;
+    private volatile long invalidFrameCount = 0;
+
+
+    /**
+     * Frames of fixed length.
+     * @param length frame length without checksum
+     * @return FrameLength
+     */
+    public static FrameLength fixedLength(final int length) {
+        return new FrameLength() {
+            @Override
+            public int getFrameLength(byte[] buffer, int offset, int available) {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Frames with length field in header (big endian).
+     * <p>Frame length is fieldOffset + fieldSize + value of field + adjustment.
+     * @param fieldOffset offset of length field in frame
+     * @param fieldSize size of length field, 1 to 4 bytes
+     * @param adjustment bytes added to value of field, can be negative
+     * @return FrameLength
+     */
+    public static FrameLength lengthField(final int fieldOffset, final int fieldSize, final int adjustment) {
+        if(fieldSize < 1 || fieldSize > 4) {
+            throw new IllegalArgumentException("Invalid length field size : " + fieldSize);
+        }
+        return new FrameLength() {
+            @Override
+            public int getFrameLength(byte[] buffer, int offset, int available) {
+                if(available < fieldOffset + fieldSize) {
+                    return -1;
+                }
+                int value = 0;
+                for (int i = 0; i < fieldSize; i++) {
+                    value = (value << 8) | (buffer[offset + fieldOffset + i] & 0xFF);
+                }
+                return fieldOffset + fieldSize + value + adjustment;
+            }
+        };
+    }
+
+    /**
+     * Init ChecksumStage object
+     * @param crc checksum algorithm
+     * @param frameLength finds length of received frames
+     */
+    public ChecksumStage(Crc crc, FrameLength frameLength) {
+        this.receiveCrc = crc.copy();
+        this.sendCrc = crc.copy();
+        this.framer = frameLength;
+    }
+
+    /**
+     * Set checksum is removed from received frames before passing them on. Default is true.
+     * @param isStripChecksum true to remove checksum
+     */
+    public void setStripChecksum(boolean isStripChecksum) {
+        this.isStripChecksum = isStripChecksum;
+    }
+
+    /**
+     * Set maximum frame length, longer frames are invalid. Default is 4096.
+     * @param maxFrameLength maximum frame length without checksum
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Get number of received frames with valid checksum.
+     * @return valid frame count
+     */
+    public long getValidFrameCount() {
+        return validFrameCount;
+    }
+
+    /**
+     * Get number of received frames dropped for invalid checksum or length.
+     * @return invalid frame count
+     */
+    public long getInvalidFrameCount() {
+        return invalidFrameCount;
+    }
+
+    @Override
+    public void reset() {
+        resetFrame();
+    }
+
+    @Override
+    public void onSend(byte[] buffer, int offset, int length, Output output) throws IOException {
+        int size = sendCrc.getSize();
+        if(sendBuffer.length < length + size) {
+            sendBuffer = new byte[Math.max(length + size, sendBuffer.length * 2)];
+        }
+        System.arraycopy(buffer, offset, sendBuffer, 0, length);
+        sendCrc.reset();
+        sendCrc.update(sendBuffer, 0, length);
+        sendCrc.writeValue(sendBuffer, length);
+        output.write(sendBuffer, 0, length + size);
+    }
+
+    @Override
+    public void onReceive(byte[] buffer, int offset, int length, Output output) throws IOException {
+        final int size = receiveCrc.getSize();
+        while (length > 0) {
+            if(frameFilled == 0) {
+                // frame starts in this chunk, check it without copy if it is complete
+                int frameLength = framer.getFrameLength(buffer, offset, length);
+                if(frameLength != -1 && !isValidLength(frameLength)) {
+                    // skip one byte to find next frame
+                    invalidFrameCount++;
+                    offset++;
+                    length--;
+                    continue;
+                }
+                if(frameLength >= 0 && length >= frameLength + size) {
+                    receiveCrc.reset();
+                    receiveCrc.update(buffer, offset, frameLength);
+                    deliver(buffer, offset, frameLength, receiveCrc.readValue(buffer, offset + frameLength), output);
+                    offset += frameLength + size;
+                    length -= frameLength + size;
+                    continue;
+                }
+                receiveCrc.reset();
+                crcPosition = 0;
+                currentFrameLength = frameLength;
+            }
+
+            // copy needed bytes of frame, one byte at a time while length is unknown
+            int needed = currentFrameLength >= 0 ? currentFrameLength + size - frameFilled : 1;
+            if(currentFrameLength < 0 && frameFilled == 0) {
+                needed = length; // whole chunk is header of this frame
+            }
+            int count = Math.min(needed, length);
+            ensureFrameCapacity(frameFilled + count);
+            System.arraycopy(buffer, offset, frame, frameFilled, count);
+            frameFilled += count;
+            offset += count;
+            length -= count;
+
+            if(currentFrameLength == -1) {
+                currentFrameLength = framer.getFrameLength(frame, 0, frameFilled);
+            }
+            if(currentFrameLength != -1 && !isValidLength(currentFrameLength)) {
+                invalidFrameCount++;
+                resetFrame();
+                continue;
+            }
+
+            // add new frame bytes to checksum
+            int crcEnd = currentFrameLength >= 0 ? Math.min(frameFilled, currentFrameLength) : frameFilled;
+            if(crcEnd > crcPosition) {
+                receiveCrc.update(frame, crcPosition, crcEnd - crcPosition);
+                crcPosition = crcEnd;
+            }
+
+            if(currentFrameLength >= 0 && frameFilled == currentFrameLength + size) {
+                long received = receiveCrc.readValue(frame, currentFrameLength);
+                int frameLength = currentFrameLength;
+                resetFrame();
+                deliver(frame, 0, frameLength, received, output);
+            }
+        }
+    }
+
+    private void deliver(byte[] buffer, int offset, int frameLength, long receivedChecksum, Output output) throws IOException {
+        if(receiveCrc.getValue() != receivedChecksum) {
+            invalidFrameCount++;
+            return;
+        }
+        validFrameCount++;
+        output.write(buffer, offset, isStripChecksum ? frameLength : frameLength + receiveCrc.getSize());
+    }
+
+    private boolean isValidLength(int frameLength) {
+        return frameLength >= 0 && frameLength <= maxFrameLength;
+    }
+
+    private void resetFrame() {
+        frameFilled = 0;
+        currentFrameLength = -1;
+        crcPosition = 0;
+    }
+
+    private void ensureFrameCapacity(int capacity) {
+        if(frame.length < capacity) {
+            byte[] newFrame = new byte[Math.max(capacity, frame.length * 2)];
+            System.arraycopy(frame, 0, newFrame, 0, frameFilled);
+            frame = newFrame;
+        }
+    }
+}
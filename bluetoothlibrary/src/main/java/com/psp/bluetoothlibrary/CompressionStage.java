@@ -0,0 +1,414 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.os.Debug;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressionStage class compresses sent data and decompresses received data with deflate.
+ * <p>- Each send is one block, blocks of one connection share the compression dictionary (streaming).
+ * <p>- Blocks smaller than threshold are sent without compression.
+ * <p>- Compression ratio and CPU time spent compressing are counted.
+ * <p>- After a bad header the receiver searches the next header. Compressed blocks are dropped after
+ * lost data until the sender starts a new stream, which it does every restart interval.
+ * <p>Block header tells how the block is sent, so any level can be decoded by the other side
+ * and both sides only need CompressionStage (or same block format) at the same position of stages.
+ * Header is checked but data is not, add {@link ChecksumStage} under this stage on links that corrupt data.
+ * <p>Block format : sync 0xC5 (1 byte) | type (1 byte) | length (4 bytes, big endian) | CRC-8 of header (1 byte) | data.
+ */
+public class CompressionStage implements Stage, Stage.Resettable {
+
+    private static final int HEADER_LENGTH = 7;
+    private static final int SYNC = 0xC5; // first byte of header
+    private static final int TYPE_STORED = 0;
+    private static final int TYPE_DEFLATE = 1;
+    private static final int FLAG_NEW_STREAM = 0x80; // receiver resets decompressor before this block
+    private static final boolean IS_CPU_TIME_SUPPORTED = isCpuTimeSupported();
+
+    private final int level;
+    private int threshold = 64;
+    private int maxBlockLength = 1024*1024;
+    private volatile int restartInterval = 64;
+
+    // Send state, used by one sender at a time
+    private Deflater deflater;
+    private boolean isNewStream = true;
+    private int streamBlockCount = 0; // compressed blocks sent in current stream
+    private final Crc sendHeaderCrc = Crc.crc8();
+    private byte[] sendBuffer = new byte[256];
+
+    // Receive state, used on reader thread only
+    private final Inflater inflater = new Inflater(true);
+    private final Crc receiveHeaderCrc = Crc.crc8();
+    private boolean isSyncLost = false; // bytes are skipped till next valid header
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private int headerFilled = 0;
+    private byte[] block = new byte[256];
+    private int blockLength = 0;
+    private int blockFilled = 0;
+    private byte[] inflateBuffer = new byte[1024];
+    private boolean isStreamBroken = false; // deflate blocks are dropped till new stream
+
+    private volatile long sentBytes = 0;
+    private volatile long sentCompressedBytes = 0;
+    private volatile long receivedBytes = 0;
+    private volatile long receivedCompressedBytes = 0;
+    private volatile long bypassedBlockCount = 0;
+    private volatile long invalidBlockCount = 0;
+    private volatile long compressNanos = 0;
+    private volatile long decompressNanos = 0;
+
+
+    /**
+     * Init CompressionStage object with fastest compression level.
+     */
+    public CompressionStage() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Init CompressionStage object
+     * @param level compression level from {@link Deflater#BEST_SPEED} (fastest) to {@link Deflater#BEST_COMPRESSION} (smallest)
+     */
+    public CompressionStage(int level) {
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level : " + level);
+        }
+        this.level = level;
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Set minimum block size to compress, smaller blocks are sent as they are. Default is 64 bytes.
+     * @param threshold minimum size (in bytes)
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Set maximum block length, longer received blocks are invalid. Default is 1 MB.
+     * @param maxBlockLength maximum length (in bytes)
+     */
+    public void setMaxBlockLength(int maxBlockLength) {
+        this.maxBlockLength = maxBlockLength;
+    }
+
+    /**
+     * Set number of compressed blocks after which sender starts a new stream, so receiver can
+     * decode again after lost or corrupted data. Default is 64 blocks.
+     * @param restartInterval blocks of one stream, 0 to never restart
+     */
+    public void setRestartInterval(int restartInterval) {
+        this.restartInterval = restartInterval;
+    }
+
+    /**
+     * Get compression ratio of sent data.
+     * @return original size / sent size, 1 if nothing is sent
+     */
+    public double getSendCompressionRatio() {
+        long compressed = sentCompressedBytes;
+        return compressed == 0 ? 1 : (double) sentBytes / compressed;
+    }
+
+    /**
+     * Get compression ratio of received data.
+     * @return decompressed size / received size, 1 if nothing is received
+     */
+    public double getReceiveCompressionRatio() {
+        long compressed = receivedCompressedBytes;
+        return compressed == 0 ? 1 : (double) receivedBytes / compressed;
+    }
+
+    /**
+     * Get CPU time of sending threads spent compressing sent data.
+     * It is wall time where thread CPU time is not supported.
+     * @return compress time (in milliseconds)
+     */
+    public long getCompressTime() {
+        return compressNanos / 1000000L;
+    }
+
+    /**
+     * Get CPU time of reader thread spent decompressing received data.
+     * It is wall time where thread CPU time is not supported.
+     * @return decompress time (in milliseconds)
+     */
+    public long getDecompressTime() {
+        return decompressNanos / 1000000L;
+    }
+
+    /**
+     * Get number of sent blocks smaller than threshold.
+     * @return bypassed block count
+     */
+    public long getBypassedBlockCount() {
+        return bypassedBlockCount;
+    }
+
+    /**
+     * Get number of received blocks dropped for invalid data, bytes skipped to find the next header count as one block.
+     * @return invalid block count
+     */
+    public long getInvalidBlockCount() {
+        return invalidBlockCount;
+    }
+
+    @Override
+    public synchronized void reset() {
+        deflater.end();
+        deflater = new Deflater(level, true);
+        isNewStream = true;
+        streamBlockCount = 0;
+        inflater.reset();
+        isStreamBroken = false;
+        isSyncLost = false;
+        headerFilled = 0;
+        blockFilled = 0;
+    }
+
+    @Override
+    public synchronized void onSend(byte[] buffer, int offset, int length, Output output) throws IOException {
+        if(length < threshold) {
+            ensureSendCapacity(HEADER_LENGTH + length);
+            System.arraycopy(buffer, offset, sendBuffer, HEADER_LENGTH, length);
+            bypassedBlockCount++;
+            sendBlock(TYPE_STORED, length, length, output);
+            return;
+        }
+
+        long start = cpuTimeNanos();
+        int interval = restartInterval;
+        if(interval > 0 && streamBlockCount >= interval) {
+            deflater.reset(); // new stream, receiver can decode from here
+            isNewStream = true;
+        }
+        deflater.setInput(buffer, offset, length);
+        int compressedLength = 0;
+        ensureSendCapacity(HEADER_LENGTH + length / 2 + 16);
+        while (true) {
+            int count = deflater.deflate(sendBuffer, HEADER_LENGTH + compressedLength,
+                    sendBuffer.length - HEADER_LENGTH - compressedLength, Deflater.SYNC_FLUSH);
+            compressedLength += count;
+            if(HEADER_LENGTH + compressedLength < sendBuffer.length) {
+                break; // flush is finished when output buffer is not full
+            }
+            ensureSendCapacity(sendBuffer.length * 2);
+        }
+        compressNanos += cpuTimeNanos() - start;
+
+        int type = TYPE_DEFLATE;
+        if(isNewStream) {
+            type |= FLAG_NEW_STREAM;
+            isNewStream = false;
+            streamBlockCount = 0;
+        }
+        streamBlockCount++;
+        sendBlock(type, compressedLength, length, output);
+    }
+
+    private void sendBlock(int type, int blockLength, int originalLength, Output output) throws IOException {
+        sendBuffer[0] = (byte) SYNC;
+        sendBuffer[1] = (byte) type;
+        sendBuffer[2] = (byte) (blockLength >>> 24);
+        sendBuffer[3] = (byte) (blockLength >>> 16);
+        sendBuffer[4] = (byte) (blockLength >>> 8);
+        sendBuffer[5] = (byte) blockLength;
+        sendHeaderCrc.reset();
+        sendHeaderCrc.update(sendBuffer, 0, HEADER_LENGTH - 1);
+        sendBuffer[HEADER_LENGTH - 1] = (byte) sendHeaderCrc.getValue();
+        sentBytes += originalLength;
+        sentCompressedBytes += HEADER_LENGTH + blockLength;
+        output.write(sendBuffer, 0, HEADER_LENGTH + blockLength);
+    }
+
+    private void ensureSendCapacity(int capacity) {
+        if(sendBuffer.length < capacity) {
+            byte[] newBuffer = new byte[Math.max(capacity, sendBuffer.length * 2)];
+            System.arraycopy(sendBuffer, 0, newBuffer, 0, sendBuffer.length);
+            sendBuffer = newBuffer;
+        }
+    }
+
+    @Override
+    public void onReceive(byte[] buffer, int offset, int length, Output output) throws IOException {
+        while (length > 0) {
+            // header
+            if(headerFilled < HEADER_LENGTH) {
+                if(headerFilled == 0) {
+                    // skip to sync byte, bytes before it are left from a block with bad header
+                    int start = offset;
+                    while (start < offset + length && (buffer[start] & 0xFF) != SYNC) {
+                        start++;
+                    }
+                    if(start > offset) {
+                        loseSync();
+                        length -= start - offset;
+                        offset = start;
+                        if(length == 0) {
+                            return;
+                        }
+                    }
+                }
+                int count = Math.min(HEADER_LENGTH - headerFilled, length);
+                System.arraycopy(buffer, offset, header, headerFilled, count);
+                headerFilled += count;
+                offset += count;
+                length -= count;
+                if(headerFilled < HEADER_LENGTH) {
+                    return;
+                }
+                if(!isValidHeader()) {
+                    // header may start at a later byte of these
+                    loseSync();
+                    shiftHeader();
+                    continue;
+                }
+                if(isSyncLost) {
+                    // blocks may be lost, dictionary of receiver is not the one of sender
+                    isSyncLost = false;
+                    isStreamBroken = true;
+                }
+                blockFilled = 0;
+            }
+
+            // whole block is in this chunk, use it without copy
+            if(blockFilled == 0 && length >= blockLength) {
+                onBlock(buffer, offset, blockLength, output);
+                offset += blockLength;
+                length -= blockLength;
+                headerFilled = 0;
+                continue;
+            }
+
+            if(block.length < blockLength) {
+                block = new byte[Math.max(blockLength, block.length * 2)];
+            }
+            int count = Math.min(blockLength - blockFilled, length);
+            System.arraycopy(buffer, offset, block, blockFilled, count);
+            blockFilled += count;
+            offset += count;
+            length -= count;
+            if(blockFilled == blockLength) {
+                headerFilled = 0;
+                onBlock(block, 0, blockLength, output);
+            }
+        }
+    }
+
+    // check sync, crc, type and length of received header and set block length
+    private boolean isValidHeader() {
+        receiveHeaderCrc.reset();
+        receiveHeaderCrc.update(header, 0, HEADER_LENGTH - 1);
+        if((header[0] & 0xFF) != SYNC || (byte) receiveHeaderCrc.getValue() != header[HEADER_LENGTH - 1]) {
+            return false;
+        }
+        int type = header[1] & 0xFF & ~FLAG_NEW_STREAM;
+        blockLength = ((header[2] & 0xFF) << 24) | ((header[3] & 0xFF) << 16)
+                | ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+        return (type == TYPE_STORED || type == TYPE_DEFLATE) && blockLength >= 0 && blockLength <= maxBlockLength;
+    }
+
+    // drop bad header till next sync byte in it
+    private void shiftHeader() {
+        int next = 1;
+        while (next < HEADER_LENGTH && (header[next] & 0xFF) != SYNC) {
+            next++;
+        }
+        System.arraycopy(header, next, header, 0, HEADER_LENGTH - next);
+        headerFilled = HEADER_LENGTH - next;
+    }
+
+    // count skipped bytes once as invalid block
+    private void loseSync() {
+        if(!isSyncLost) {
+            invalidBlockCount++;
+            isSyncLost = true;
+        }
+    }
+
+    // CPU time of current thread, wall time where it is not supported
+    private static long cpuTimeNanos() {
+        return IS_CPU_TIME_SUPPORTED ? Debug.threadCpuTimeNanos() : System.nanoTime();
+    }
+
+    // Checked once so start and end of a measure use same clock. Debug is not supported (-1) on some devices,
+    // it throws in local unit tests or returns 0 with default values of android stubs.
+    private static boolean isCpuTimeSupported() {
+        try {
+            return Debug.threadCpuTimeNanos() > 0;
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void onBlock(byte[] buffer, int offset, int length, Output output) throws IOException {
+        receivedCompressedBytes += HEADER_LENGTH + length;
+        if((header[1] & 0xFF & ~FLAG_NEW_STREAM) == TYPE_STORED) {
+            receivedBytes += length;
+            output.write(buffer, offset, length);
+            return;
+        }
+
+        long start = cpuTimeNanos();
+        if((header[1] & FLAG_NEW_STREAM) != 0) {
+            inflater.reset();
+            isStreamBroken = false;
+        }
+        if(isStreamBroken) {
+            invalidBlockCount++;
+            return;
+        }
+        inflater.setInput(buffer, offset, length);
+        try {
+            while (true) {
+                int count = inflater.inflate(inflateBuffer);
+                if(count == 0) {
+                    if(inflater.needsInput() || inflater.finished() || inflater.needsDictionary()) {
+                        break;
+                    }
+                    continue;
+                }
+                receivedBytes += count;
+                decompressNanos += cpuTimeNanos() - start;
+                output.write(inflateBuffer, 0, count);
+                start = cpuTimeNanos();
+            }
+        }
+        catch (DataFormatException e) {
+            // dictionary is lost, blocks are dropped until sender starts a new stream
+            invalidBlockCount++;
+            isStreamBroken = true;
+        }
+        decompressNanos += cpuTimeNanos() - start;
+    }
+}
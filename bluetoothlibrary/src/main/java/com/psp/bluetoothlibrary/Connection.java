@@ -35,7 +35,11 @@ import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Looper;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Connection class provides the following features :
@@ -43,10 +47,13 @@ import java.util.UUID;
  * <p>- Accept incoming bluetooth connection request.
  * <p>- Connect bluetooth device.
  * <p>- Connect timeout.
+ * <p>- Adaptive connect using per device connection stats.
  * <p>- Received data from connected device.
  * <p>- Send data to connected device.
  * <p>- Check connection status.
- * <p>- Disconnect bluetooth connection.
+ * <p>- Reconnect to the last connected device.
+ * <p>- Disconnect bluetooth connection (immediately or after pending data is sent and received).
+ * <p>- Open connection over other transport (in-memory pipe, TCP) to run without Bluetooth.
  */
 public class Connection {
 
@@ -55,22 +62,39 @@ public class Connection {
      */
     private UUID BTMODULEUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
-    private ConnectThread connectThread = null; // Connect Thread
-    private AcceptThread acceptThread = null;  // Accept Thread
+    private volatile ConnectThread connectThread = null; // Connect Thread
+    private volatile AcceptThread acceptThread = null;  // Accept Thread
+    private final Object attemptLock = new Object(); // guards change of connect and accept thread with their state changes
+    private volatile Transport openedTransport = null; // Transport opened with open method
 
     private BluetoothListener.onConnectionListener connectionListener = null; // Connection listener
 
     private final Context context;
 
     // This boolean value is used for check broadcast receiver is register or not
-    private boolean isRegister = false;
+    private boolean isRegister = false; // guarded by receiverLock
+    private final Object receiverLock = new Object();
 
-    //This boolean value is used for check device is connected or not
-    private boolean isConnected = false;
+    // Current connection state, every transition is done with compare-and-set
+    private final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+
+    // Mac address of the connected (or connecting) remote device, used to filter disconnect events
+    private volatile String remoteAddress = null;
+
+    // Last connect request, used by reconnect
+    private String lastDeviceAddress = null;
+    private boolean lastSecureConnection = false;
+    private BluetoothListener.onReceiveListener lastReceiveListener = null;
 
     // This boolean value is used for check bluetooth connect timeout is enabled or not
     private boolean isEnabledConnectTimeout = false;
 
+    // Connection stats, not null if adaptive connect is enabled
+    private volatile ConnectionStats connectionStats = null;
+
+    // Creates transport of connect in place of bluetooth socket, null for bluetooth
+    private volatile TransportFactory transportFactory = null;
+
     /**
      * It indicates that bluetooth device is getting connected.
      */
@@ -91,6 +115,11 @@ public class Connection {
      */
     public static final int START_LISTENING = 104;
 
+    /**
+     * It indicates that the last connected bluetooth device is getting reconnected.
+     */
+    public static final int RECONNECTING = 105;
+
     /**
      * It indicates bluetooth device connect process failed.
      */
@@ -111,6 +140,31 @@ public class Connection {
      */
     public static final int SERVER_SOCKET_NOT_FOUND = 302;
 
+    /**
+     * Connection state : there is no connection and no connect or accept process is running.
+     */
+    public static final int STATE_IDLE = 0;
+
+    /**
+     * Connection state : connect or accept process is running.
+     */
+    public static final int STATE_CONNECTING = 1;
+
+    /**
+     * Connection state : connection is established.
+     */
+    public static final int STATE_CONNECTED = 2;
+
+    /**
+     * Connection state : connection is getting closed by {@link #disconnect()}.
+     */
+    public static final int STATE_DISCONNECTING = 3;
+
+    /**
+     * Connection state : the last connected device is getting reconnected by {@link #reconnect()}.
+     */
+    public static final int STATE_RECONNECTING = 4;
+
     /**
      * The default connect timeout for bluetooth connection is 35 sec.
      * This timeout can also be changed by using {@link #setConnectTimeout} method.
@@ -164,6 +218,41 @@ public class Connection {
         return isEnabledConnectTimeout;
     }
 
+    /**
+     * It switches on adaptive connect feature.
+     * <p>Connect results are saved per device in {@link ConnectionStats}. Connect tries the fastest known
+     * strategy (secure or insecure socket and UUID) first and falls back to the others, secure connection is never
+     * downgraded to insecure. Connect timeout is calculated from measured connect latency and is at most {@link #getConnectTimeout()}.
+     */
+    public void enableAdaptiveConnect() {
+        if(connectionStats == null) {
+            connectionStats = new ConnectionStats(context);
+        }
+    }
+
+    /**
+     * It switches off adaptive connect feature, saved stats are kept.
+     */
+    public void disableAdaptiveConnect() {
+        connectionStats = null;
+    }
+
+    /**
+     * Return true if adaptive connect feature is currently enabled.
+     * @return true if adaptive connect is enabled
+     */
+    public boolean isEnabledAdaptiveConnect() {
+        return connectionStats != null;
+    }
+
+    /**
+     * Get connection stats used by adaptive connect.
+     * @return ConnectionStats or null if adaptive connect is disabled
+     */
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
     /**
      * For bluetooth connection set connect timeout.
      * When connect timeout is over bluetooth connection gets disconnected and {@link #CONNECT_FAILED} gets transmitted.
@@ -182,6 +271,23 @@ public class Connection {
         return this.connectTimeout;
     }
 
+    /**
+     * Set transport factory, connect and reconnect use it in place of bluetooth socket, for example to connect to {@link VirtualSppDevice}.
+     * <p>Connect timeout, adaptive connect and reconnect work as with bluetooth, {@link #DISCONNECTED} is sent if the transport is closed by remote.
+     * @param transportFactory TransportFactory, null to use bluetooth (default)
+     */
+    public void setTransportFactory(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Get transport factory.
+     * @return TransportFactory or null if bluetooth is used
+     */
+    public TransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
     /**
      *  connect method is used to connect bluetooth device using its address.
      *	<p>Note : Don't interrupt with connect method till it gives response to {@link #CONNECTED} or {@link #CONNECT_FAILED}
@@ -196,13 +302,21 @@ public class Connection {
     public boolean connect(String deviceAddress,boolean isSecureConnection, BluetoothListener.onConnectionListener connectionListener,
                            BluetoothListener.onReceiveListener receiveListener) {
         boolean isSuccess = false;
-        if(acceptThread == null && connectThread == null) {
+        if(acceptThread == null && connectThread == null && state.compareAndSet(STATE_IDLE, STATE_CONNECTING)) {
+            // remember connect request for reconnect
+            this.remoteAddress = deviceAddress;
+            this.lastDeviceAddress = deviceAddress;
+            this.lastSecureConnection = isSecureConnection;
+            this.lastReceiveListener = receiveListener;
+
             // initialize bluetooth connection listener for receiving bluetooth connection state
             this.connectionListener = connectionListener;
             this.connectionListener.onConnectionStateChanged(null, CONNECTING);
 
             // initialize connect thread and start thread
-            connectThread = new ConnectThread(deviceAddress,isSecureConnection,this.connectionListener, receiveListener);
+            synchronized (attemptLock) {
+                connectThread = new ConnectThread(deviceAddress,isSecureConnection,this.connectionListener, receiveListener);
+            }
             connectThread.start();
             isSuccess = true;
         }
@@ -239,23 +353,90 @@ public class Connection {
     public boolean accept(boolean isSecureConnection, BluetoothListener.onConnectionListener connectionListener,
                           BluetoothListener.onReceiveListener receiveListener) {
         boolean isSuccess = false;
-        if(connectThread == null && acceptThread == null) {
+        if(connectThread == null && acceptThread == null && state.compareAndSet(STATE_IDLE, STATE_CONNECTING)) {
+            this.remoteAddress = null; // remote device is known once connection is accepted
+            this.lastDeviceAddress = null;
+
             // Initialize bluetooth connection listener for receiving bluetooth connection state
             this.connectionListener = connectionListener;
             this.connectionListener.onConnectionStateChanged(null, START_LISTENING);
 
             // Initialize accept thread and start thread
-            acceptThread = new AcceptThread(isSecureConnection,this.connectionListener, receiveListener);
+            synchronized (attemptLock) {
+                acceptThread = new AcceptThread(isSecureConnection,this.connectionListener, receiveListener);
+            }
             acceptThread.start();
             isSuccess = true;
         }
         return isSuccess;
     }
 
+    /**
+     * open method is used to start send and receive over an already connected transport,
+     * for example {@link PipedTransport} or {@link TcpTransport} to run the library without Bluetooth.
+     * <p>The connection listener gets {@link #CONNECTED} with null socket, and {@link #DISCONNECTED} if the transport is closed by remote.
+     * @param transport connected transport
+     * @param connectionListener Connection listener, you can check all the connection state with this listener
+     * @param receiveListener Receive listener, you can read data with this listener
+     * @return true if open method run successfully
+     */
+    public boolean open(Transport transport, BluetoothListener.onConnectionListener connectionListener,
+                        BluetoothListener.onReceiveListener receiveListener) {
+        boolean isSuccess = false;
+        if(transport != null && connectThread == null && acceptThread == null && openedTransport == null
+                && state.compareAndSet(STATE_IDLE, STATE_CONNECTING)) {
+            this.remoteAddress = transport.getRemoteAddress();
+            this.lastDeviceAddress = null;
+            this.connectionListener = connectionListener;
+            this.openedTransport = transport;
+
+            state.set(STATE_CONNECTED);
+            startSendReceive(transport, receiveListener);
+            setConnectionStateChangedListenerResult(this.connectionListener, null, CONNECTED);
+            isSuccess = true;
+        }
+        return isSuccess;
+    }
+
+    /**
+     * reconnect method is used to connect again to the device last connected with {@link #connect}.
+     * It can be called when connection is established or after {@link #DISCONNECTED} is received,
+     * the connection listener gets {@link #RECONNECTING} and then {@link #CONNECTED} or {@link #CONNECT_FAILED}.
+     * @return true if reconnect method run successfully
+     */
+    public boolean reconnect() {
+        boolean isSuccess = false;
+        if(lastDeviceAddress != null && connectThread != null) {
+            int current = state.get();
+            if((current == STATE_CONNECTED || current == STATE_IDLE) && state.compareAndSet(current, STATE_RECONNECTING)) {
+                // stop old connection without changing state
+                unRegisterBroadcastReceiver();
+                connectThread.cancel();
+
+                remoteAddress = lastDeviceAddress;
+                if(connectionListener != null) {
+                    connectionListener.onConnectionStateChanged(null, RECONNECTING);
+                }
+
+                // initialize connect thread and start thread
+                synchronized (attemptLock) {
+                    connectThread = new ConnectThread(lastDeviceAddress, lastSecureConnection, connectionListener, lastReceiveListener);
+                }
+                connectThread.start();
+                isSuccess = true;
+            }
+        }
+        return isSuccess;
+    }
+
     /**
      * Disconnect bluetooth connection.
      */
     public void disconnect() {
+        if(!startDisconnecting()) {
+            return;
+        }
+
         // unregister broadcast receiver
         unRegisterBroadcastReceiver();
 
@@ -263,16 +444,105 @@ public class Connection {
         removeConnectionListener();
 
         // cancel connect thread
-        if(connectThread != null) {
-            connectThread.cancel();
+        ConnectThread connectThreadT;
+        AcceptThread acceptThreadT;
+        synchronized (attemptLock) {
+            connectThreadT = connectThread;
+            acceptThreadT = acceptThread;
             connectThread = null;
+            acceptThread = null;
+        }
+        if(connectThreadT != null) {
+            connectThreadT.cancel();
         }
 
         //cancel accept thread
-        if(acceptThread != null) {
-            acceptThread.cancel();
+        if(acceptThreadT != null) {
+            acceptThreadT.cancel();
+        }
+
+        // close opened transport
+        if(openedTransport != null) {
+            SendReceive.getInstance().stop();
+            closeTransport(openedTransport);
+            openedTransport = null;
+        }
+
+        remoteAddress = null;
+        state.set(STATE_IDLE);
+    }
+
+    /**
+     * Disconnect bluetooth connection gracefully.
+     * <p>Pending data is sent and data received till close is delivered to receive listener before the connection gets closed.
+     * It runs in background and takes at most about timeout, new writes fail once it is started.
+     * @param timeoutMillis maximum time to wait for pending data (in milliseconds)
+     * @param disconnectListener listener gets shutdown time and discarded bytes, can be null
+     */
+    public void disconnect(final long timeoutMillis, final BluetoothListener.onDisconnectListener disconnectListener) {
+        if(!startDisconnecting()) {
+            return;
+        }
+        final long startTime = System.nanoTime();
+
+        // unregister broadcast receiver
+        unRegisterBroadcastReceiver();
+
+        // remove bluetooth connection listener
+        removeConnectionListener();
+
+        final ConnectThread connectThreadT;
+        final AcceptThread acceptThreadT;
+        synchronized (attemptLock) {
+            connectThreadT = connectThread;
+            acceptThreadT = acceptThread;
+            connectThread = null;
             acceptThread = null;
         }
+        final Transport openedTransportT = openedTransport;
+        openedTransport = null;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // drain and stop send receive, then close sockets
+                final int discardedBytes = SendReceive.getInstance().stop(timeoutMillis);
+                if(connectThreadT != null) {
+                    connectThreadT.close();
+                }
+                if(acceptThreadT != null) {
+                    acceptThreadT.close();
+                }
+                if(openedTransportT != null) {
+                    closeTransport(openedTransportT);
+                }
+
+                remoteAddress = null;
+                state.set(STATE_IDLE);
+
+                final long shutdownMillis = (System.nanoTime() - startTime) / 1000000L;
+                if(disconnectListener != null) {
+                    Dispatcher.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            disconnectListener.onDisconnected(shutdownMillis, discardedBytes);
+                        }
+                    });
+                }
+            }
+        }, "ConnectionShutdown").start();
+    }
+
+    // Move to disconnecting state, returns false if disconnect is already running
+    private boolean startDisconnecting() {
+        int current;
+        do {
+            current = state.get();
+            if(current == STATE_DISCONNECTING) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, STATE_DISCONNECTING));
+        return true;
     }
 
     /**
@@ -280,10 +550,24 @@ public class Connection {
      * @return true if connection is established
      */
     public boolean isConnected() {
-        if(connectThread != null || acceptThread != null) {
-            return isConnected;
-        }
-        return false;
+        return state.get() == STATE_CONNECTED;
+    }
+
+    /**
+     * Get current connection state.
+     * @return one of {@link #STATE_IDLE}, {@link #STATE_CONNECTING}, {@link #STATE_CONNECTED},
+     * {@link #STATE_DISCONNECTING} or {@link #STATE_RECONNECTING}
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Get mac address of the connected device.
+     * @return mac address or null if no device is connected
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
     }
 
     /**
@@ -301,6 +585,24 @@ public class Connection {
         return null;
     }
 
+    /**
+     * Get transport of the connection.
+     * @return Transport or null if not connected
+     */
+    public Transport getTransport() {
+        if(openedTransport != null) {
+            return openedTransport;
+        }
+        if(connectThread != null && connectThread.getTransport() != null) {
+            return connectThread.getTransport();
+        }
+        BluetoothSocket socket = getBluetoothSocket();
+        if(socket != null) {
+            return new BluetoothTransport(socket);
+        }
+        return null;
+    }
+
     /**
      * Sends data in String format message to connected device.
      * @param data String to be send
@@ -338,15 +640,59 @@ public class Connection {
         SendReceive.getInstance().setOnReceiveListener(receiveListener);
     }
 
+    /**
+     * Set read watchdog for connected device, see {@link SendReceive#setReadWatchdog}.
+     * It is kept for reconnect and next connections.
+     * @param idleTimeoutMillis idle timeout (in milliseconds), 0 to disable idle event
+     * @param stallTimeoutMillis stall timeout (in milliseconds), 0 to disable stall event
+     * @param isCloseOnStall true if connection should be closed on stall
+     * @param watchdogListener BluetoothListener.onReadWatchdogListener
+     */
+    public void setReadWatchdog(long idleTimeoutMillis, long stallTimeoutMillis, boolean isCloseOnStall,
+                                BluetoothListener.onReadWatchdogListener watchdogListener) {
+        SendReceive.getInstance().setReadWatchdog(idleTimeoutMillis, stallTimeoutMillis, isCloseOnStall, watchdogListener);
+    }
+
+    // start send receive for connected transport, stages and read watchdog are kept by SendReceive
+    private void startSendReceive(Transport transport, BluetoothListener.onReceiveListener receiveListener) {
+        SendReceive.getInstance().start(transport, receiveListener, transportClosedCallback);
+    }
+
+    // Transport closed by remote or read error, runs on reader thread
+    private final Runnable transportClosedCallback = new Runnable() {
+        @Override
+        public void run() {
+            // Only an established connection can be lost, disconnect and reconnect handle their own teardown
+            if(state.compareAndSet(STATE_CONNECTED, STATE_IDLE)) {
+                setConnectionStateChangedListenerResult(connectionListener, null, DISCONNECTED);
+            }
+        }
+    };
+
+    private void closeTransport(Transport transport) {
+        try {
+            transport.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // register broadcast receiver for bluetooth disconnected
     private void registerBroadcastReceiver() {
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
-                if (context != null && !isRegister) {
-                    IntentFilter intentFilter = new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-                    context.registerReceiver(myReceiver, intentFilter);
-                    isRegister = true;
+                synchronized (receiverLock) {
+                    // connection may be closed before this runs
+                    if (context != null && !isRegister && state.get() == STATE_CONNECTED) {
+                        if(myReceiver == null) {
+                            myReceiver = createDisconnectReceiver();
+                        }
+                        IntentFilter intentFilter = new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+                        context.registerReceiver(myReceiver, intentFilter);
+                        isRegister = true;
+                    }
                 }
             }
         });
@@ -354,25 +700,41 @@ public class Connection {
 
     // unregister broadcast receiver
     private void unRegisterBroadcastReceiver() {
-        if(context != null && isRegister) {
-            context.unregisterReceiver(myReceiver);
-            isRegister = false;
+        synchronized (receiverLock) {
+            if(context != null && isRegister) {
+                context.unregisterReceiver(myReceiver);
+                isRegister = false;
+            }
         }
     }
 
-    // Broadcast Receiver class is used for detect bluetooth device disconnected
-    private final BroadcastReceiver myReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+    // Broadcast Receiver class is used for detect bluetooth device disconnected, created on first register
+    private BroadcastReceiver myReceiver = null;
 
-            if(action != null && !action.equals("") && action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
-                if(connectionListener != null) {
-                    connectionListener.onConnectionStateChanged(null,DISCONNECTED); // Send data to listener
+    private BroadcastReceiver createDisconnectReceiver() {
+        return new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String action = intent.getAction();
+
+                if(action != null && !action.equals("") && action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
+                    // Ignore disconnect of other devices
+                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    String address = remoteAddress;
+                    if(device == null || address == null || !address.equalsIgnoreCase(device.getAddress())) {
+                        return;
+                    }
+
+                    // Only an established connection can be lost, disconnect and reconnect handle their own teardown
+                    if(state.compareAndSet(STATE_CONNECTED, STATE_IDLE)) {
+                        if(connectionListener != null) {
+                            connectionListener.onConnectionStateChanged(null,DISCONNECTED); // Send data to listener
+                        }
+                    }
                 }
             }
-        }
-    };
+        };
+    }
 
     // remove connection listener
     private void removeConnectionListener() {
@@ -386,7 +748,7 @@ public class Connection {
     // Send data to connection state changed listener
     private void setConnectionStateChangedListenerResult(BluetoothListener.onConnectionListener connectionListenerT,
                                                          BluetoothSocket socket, int state) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+        Dispatcher.post(new Runnable() {
             @Override
             public void run() {
                 if(connectionListenerT != null) {
@@ -397,9 +759,41 @@ public class Connection {
 
     }
 
+    // Move from connecting or reconnecting state to the new state, only thread of the current attempt can do it.
+    // A thread of a cancelled attempt must not change state of a new attempt started after disconnect.
+    private boolean transitionFromConnecting(Thread owner, int newState) {
+        synchronized (attemptLock) {
+            if(owner != connectThread && owner != acceptThread) {
+                return false;
+            }
+            return state.compareAndSet(STATE_CONNECTING, newState) || state.compareAndSet(STATE_RECONNECTING, newState);
+        }
+    }
+
+    // true if thread runs the current connect or accept attempt
+    private boolean isCurrentAttempt(Thread owner) {
+        return owner == connectThread || owner == acceptThread;
+    }
+
+    // Move attempt to connected state and start send receive, returns false if the attempt is cancelled.
+    // Done with attempt lock, so disconnect takes the thread after send receive is started and stops it.
+    private boolean startConnection(Thread owner, Transport transport, boolean isBluetooth,
+                                    BluetoothListener.onReceiveListener receiveListener) {
+        synchronized (attemptLock) {
+            if(!transitionFromConnecting(owner, STATE_CONNECTED)) {
+                return false;
+            }
+            startSendReceive(transport, receiveListener);
+            if(isBluetooth) {
+                registerBroadcastReceiver(); // register broadcast receiver for bluetooth disconnected
+            }
+            return true;
+        }
+    }
+
     // Send data to connection failed listener
     private void setConnectionFailedListenerResult(BluetoothListener.onConnectionListener connectionListenerT, int errorCode) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+        Dispatcher.post(new Runnable() {
             @Override
             public void run() {
                 if(connectionListenerT != null) {
@@ -415,18 +809,27 @@ public class Connection {
     // Connection Thread Class
     private class ConnectThread extends Thread {
 
-        private BluetoothSocket mSocket = null;
+        private volatile BluetoothSocket mSocket = null;
+        private volatile Transport mTransport = null; // transport of transport factory
         private BluetoothAdapter btAdapter = null;
         private BluetoothListener.onConnectionListener connectionListenerT = null;
         private BluetoothListener.onReceiveListener receiveListenerT = null;
-        private final Handler timeoutHandler = new Handler(Looper.getMainLooper()); // connection timeout handler
+        private volatile ScheduledFuture<?> timeoutFuture = null; // connection timeout
+        private volatile boolean isTimedOut = false; // connect was stopped by connection timeout
+        private final String deviceAddress;
+        private final boolean isSecureConnection;
+        private final TransportFactory transportFactoryT;
 
         public ConnectThread(String deviceAddress, boolean isSecureConnection, BluetoothListener.onConnectionListener connectionListenerT,
                              BluetoothListener.onReceiveListener receiveListenerT) {
             this.connectionListenerT = connectionListenerT; // initialize bluetooth connection listener
             this.receiveListenerT = receiveListenerT; // initialize bluetooth received listener
-            btAdapter = BluetoothAdapter.getDefaultAdapter(); // get Bluetooth default Adapter
-            mSocket = createBluetoothSocket(deviceAddress,isSecureConnection); // create bluetooth socket
+            this.deviceAddress = deviceAddress;
+            this.isSecureConnection = isSecureConnection;
+            this.transportFactoryT = transportFactory;
+            if(transportFactoryT == null) {
+                btAdapter = BluetoothAdapter.getDefaultAdapter(); // get Bluetooth default Adapter
+            }
         }
 
         private BluetoothDevice getRemoteDevice(String deviceAddress) {
@@ -439,7 +842,7 @@ public class Connection {
         }
 
         // This method is used to create bluetooth socket using device mac address
-        private BluetoothSocket createBluetoothSocket(String deviceAddress,boolean isSecureConnection) {
+        private BluetoothSocket createBluetoothSocket(String deviceAddress, boolean isSecureConnection, UUID uuid) {
             BluetoothSocket socket = null;
             try {
                 if(btAdapter != null) {
@@ -447,11 +850,11 @@ public class Connection {
                     if(device != null) {
                         if(isSecureConnection) {
                             // create secure bluetooth socket
-                            socket = device.createRfcommSocketToServiceRecord(BTMODULEUUID);
+                            socket = device.createRfcommSocketToServiceRecord(uuid);
                         }
                         else {
                             // create insecure bluetooth socket
-                            socket = device.createInsecureRfcommSocketToServiceRecord(BTMODULEUUID);
+                            socket = device.createInsecureRfcommSocketToServiceRecord(uuid);
                         }
                     }
                 }
@@ -465,43 +868,132 @@ public class Connection {
 
         @Override
         public void run() {
-            if (mSocket != null) {
-                try {
-                    // Cancel discovery because it otherwise slows down the connection.
-                    btAdapter.cancelDiscovery();
-
-                    // It add's connect timeout.
-                    addConnectionTimeout();
-
-                    // Connect to the remote device through the socket.
-                    // This call blocks until it succeeds or throws an exception.
-                    mSocket.connect();
-
-                    // It removes connect timeout.
-                    removeConnectionTimeout();
-
-                    // The connection attempt succeeded.
-                    isConnected = true;
-                    // the connection in a separate thread.
-                    //start send receive
-                    SendReceive.getInstance().start(mSocket, this.receiveListenerT);
-                    registerBroadcastReceiver(); // register broadcast receiver for bluetooth disconnected
-                    setConnectionStateChangedListenerResult(this.connectionListenerT, mSocket, CONNECTED); // send to connection listener [CONNECTED]
+            // Strategies to try and connect timeout, from connection stats if adaptive connect is enabled
+            ConnectionStats stats = connectionStats;
+            List<ConnectionStats.Strategy> strategies;
+            long timeout = connectTimeout;
+            if(stats != null) {
+                strategies = stats.getStrategies(deviceAddress, isSecureConnection, BTMODULEUUID);
+                timeout = stats.getConnectTimeout(deviceAddress, connectTimeout);
+            }
+            else {
+                strategies = Collections.singletonList(new ConnectionStats.Strategy(isSecureConnection, BTMODULEUUID));
+            }
+
+            boolean isSocketFound = false;
+            for (int i = 0; i < strategies.size(); i++) {
+                ConnectionStats.Strategy strategy = strategies.get(i);
+                int current = state.get();
+                if(!isCurrentAttempt(this) || (current != STATE_CONNECTING && current != STATE_RECONNECTING)) {
+                    // disconnect was called while connecting
+                    return;
                 }
-                catch (Exception e) {
-                    // Unable to connect; close the socket and return.
+
+                long startTime = System.nanoTime();
+                if(transportFactoryT != null) {
+                    // Create and connect transport, connect timeout interrupts this thread
+                    try {
+                        addConnectionTimeout(stats != null || isEnabledConnectTimeout, timeout);
+                        mTransport = transportFactoryT.createTransport(deviceAddress, strategy.isSecure(), strategy.getUUID());
+                    }
+                    catch (Exception e) {
+                        mTransport = null;
+                        isSocketFound = true;
+                        if(onConnectFailed(stats, strategy, timeout)) {
+                            // adaptive timeout was too short, try again with connect timeout
+                            timeout = connectTimeout;
+                            i--;
+                        }
+                        continue;
+                    }
+                    finally {
+                        removeConnectionTimeout();
+                        Thread.interrupted(); // clear interrupt of timeout
+                    }
+                    if(mTransport == null) {
+                        continue;
+                    }
+                    isSocketFound = true;
+                }
+                else {
+                    mSocket = createBluetoothSocket(deviceAddress, strategy.isSecure(), strategy.getUUID()); // create bluetooth socket
+                    if(mSocket == null) {
+                        continue;
+                    }
+                    isSocketFound = true;
+
+                    try {
+                        // Cancel discovery because it otherwise slows down the connection.
+                        btAdapter.cancelDiscovery();
+
+                        // It add's connect timeout.
+                        addConnectionTimeout(stats != null || isEnabledConnectTimeout, timeout);
+
+                        // Connect to the remote device through the socket.
+                        // This call blocks until it succeeds or throws an exception.
+                        mSocket.connect();
+
+                        // It removes connect timeout.
+                        removeConnectionTimeout();
+                    }
+                    catch (Exception e) {
+                        // Unable to connect; close the socket and try next strategy.
+                        closeSocket();
+                        // It removes connect timeout.
+                        removeConnectionTimeout();
+                        if(onConnectFailed(stats, strategy, timeout)) {
+                            // adaptive timeout was too short, try again with connect timeout
+                            timeout = connectTimeout;
+                            i--;
+                        }
+                        continue;
+                    }
+                }
+
+                if(stats != null) {
+                    stats.recordSuccess(deviceAddress, strategy.isSecure(), strategy.getUUID(), (System.nanoTime() - startTime) / 1000000L);
+                }
+
+                // The connection attempt succeeded.
+                // cancel() closes and clears the fields, so keep what was connected
+                BluetoothSocket socket = mSocket;
+                Transport transport = transportFactoryT != null ? mTransport : (socket != null ? new BluetoothTransport(socket) : null);
+                if(transport == null || !startConnection(this, transport, transportFactoryT == null, this.receiveListenerT)) {
+                    // disconnect was called while connecting
+                    if(transport != null) {
+                        closeTransport(transport);
+                    }
                     closeSocket();
+                    return;
+                }
+                setConnectionStateChangedListenerResult(this.connectionListenerT, socket, CONNECTED); // send to connection listener [CONNECTED]
+                return;
+            }
+
+            if(transitionFromConnecting(this, STATE_IDLE)) {
+                if(isSocketFound) {
                     // if socket throws an exception then message will be send to connection failed listener [CONNECT_FAILED]
                     setConnectionFailedListenerResult(this.connectionListenerT, CONNECT_FAILED);
-                    isConnected = false;
-                    // It removes connect timeout.
-                    removeConnectionTimeout();
+                }
+                else {
+                    // if socket not found then message will be send to connection failed listener [SOCKET_NOT_FOUND]
+                    setConnectionFailedListenerResult(this.connectionListenerT,SOCKET_NOT_FOUND);
                 }
             }
-            else {
-                // if socket not found then message will be send to connection failed listener [SOCKET_NOT_FOUND]
-                setConnectionFailedListenerResult(this.connectionListenerT,SOCKET_NOT_FOUND);
+        }
+
+        // Record failed connect, returns true if it was stopped by a timeout shorter than connect timeout
+        private boolean onConnectFailed(ConnectionStats stats, ConnectionStats.Strategy strategy, long timeout) {
+            boolean isTimedOut = this.isTimedOut;
+            if(stats != null) {
+                if(isTimedOut) {
+                    stats.recordTimeout(deviceAddress, strategy.isSecure(), strategy.getUUID(), timeout);
+                }
+                else {
+                    stats.recordFailure(deviceAddress, strategy.isSecure(), strategy.getUUID());
+                }
             }
+            return isTimedOut && timeout < connectTimeout;
         }
 
         // Get bluetooth socket
@@ -509,6 +1001,11 @@ public class Connection {
             return mSocket;
         }
 
+        // Get transport of transport factory
+        public Transport getTransport() {
+            return mTransport;
+        }
+
         private void closeSocket() {
             try {
                 if(mSocket != null) {
@@ -518,6 +1015,15 @@ public class Connection {
                 }
             }
             catch (Exception e) {}
+
+            try {
+                if(mTransport != null) {
+                    // close transport
+                    mTransport.close();
+                    mTransport = null;
+                }
+            }
+            catch (Exception e) {}
         }
 
 
@@ -535,33 +1041,48 @@ public class Connection {
 
         // This method is used to stop bluetooth connection
         private void cancel() {
+            SendReceive.getInstance().stop(); // stop send receive
+            close();
+        }
+
+        // Stop connect and close socket, send receive is already stopped
+        private void close() {
             removeConnectionTimeout(); // It removes connect timeout.
             deAttachListener();
-            SendReceive.getInstance().stop(); // stop send receive
             closeSocket();
-            isConnected = false;
         }
 
         // It add's connect timeout
-        private void addConnectionTimeout() {
-            if(isEnabledConnectTimeout) {
-                timeoutHandler.postDelayed(timeoutRunnable, connectTimeout);
+        private void addConnectionTimeout(boolean isEnabled, long timeoutMillis) {
+            isTimedOut = false;
+            if(isEnabled) {
+                timeoutFuture = Scheduler.schedule(timeoutRunnable, timeoutMillis);
             }
         }
 
         // It removes connect timeout
         private void removeConnectionTimeout() {
-            timeoutHandler.removeCallbacks(timeoutRunnable);
+            Scheduler.cancel(timeoutFuture);
+            timeoutFuture = null;
         }
 
         private final Runnable timeoutRunnable = new Runnable() {
             @Override
             public void run() {
-                if(mSocket != null) {
-                    if(!mSocket.isConnected()) {
+                if(transportFactoryT != null) {
+                    if(mTransport == null) {
+                        isTimedOut = true;
+                        interrupt(); // stop connect of transport factory
+                    }
+                    return;
+                }
+                BluetoothSocket socket = mSocket;
+                if(socket != null) {
+                    if(!socket.isConnected()) {
+                        isTimedOut = true;
                         try {
                             // close bluetooth socket
-                            mSocket.close();
+                            socket.close();
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
@@ -629,24 +1150,33 @@ public class Connection {
                         }
                         catch (IOException e) {
                             closeServerSocket();
-                            setConnectionFailedListenerResult(this.connectionListenerT, ACCEPT_FAILED); // send to connection listener [ACCEPT_FAILED]
-                            isConnected = false;
+                            if(transitionFromConnecting(this, STATE_IDLE)) {
+                                setConnectionFailedListenerResult(this.connectionListenerT, ACCEPT_FAILED); // send to connection listener [ACCEPT_FAILED]
+                            }
                             break;
                         }
                         // If a connection was accepted
-                        if (socket != null) {
+                        BluetoothSocket acceptedSocket = socket; // cancel() clears the field
+                        if (acceptedSocket != null) {
                             // A connection was accepted.
                             // Do work to manage the connection (in a separate thread)
-                            isConnected = true;
-                            registerBroadcastReceiver(); // register broadcast for bluetooth disconnected
-                            setConnectionStateChangedListenerResult(this.connectionListenerT,socket,CONNECTED); // send to connection listener [CONNECTED]
-                            SendReceive.getInstance().start(socket,this.receiveListenerT); // start send and receive
+                            Transport transport = new BluetoothTransport(acceptedSocket);
+                            if(!startConnection(this, transport, true, this.receiveListenerT)) {
+                                // disconnect was called while listening
+                                closeTransport(transport);
+                                closeServerSocket();
+                                break;
+                            }
+                            if(acceptedSocket.getRemoteDevice() != null) {
+                                remoteAddress = acceptedSocket.getRemoteDevice().getAddress();
+                            }
+                            setConnectionStateChangedListenerResult(this.connectionListenerT, acceptedSocket, CONNECTED); // send to connection listener [CONNECTED]
                             closeServerSocket(); // close server socket
                             break;
                         }
                     }
                 }
-                else {
+                else if(transitionFromConnecting(this, STATE_IDLE)) {
                     // if server socket not found then message will be send to connection failed listener [SERVER_SOCKET_NOT_FOUND]
                     setConnectionFailedListenerResult(this.connectionListenerT,SERVER_SOCKET_NOT_FOUND);
                 }
@@ -696,11 +1226,15 @@ public class Connection {
 
         // This method is used to stop bluetooth connection
         private void cancel() {
-            deAttachListener();
             SendReceive.getInstance().stop();  // stop send receive
+            close();
+        }
+
+        // Stop listening and close socket, send receive is already stopped
+        private void close() {
+            deAttachListener();
             closeServerSocket();
             closeSocket();
-            isConnected = false;
         }
     }
 }
@@ -0,0 +1,417 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * ConnectionStats class stores connect results per bluetooth device :
+ * <p>- Connect latency and success / failure count per strategy (secure or insecure socket and UUID).
+ * <p>- Last seen time of device.
+ * <p>It is used by {@link Connection} to try the fastest known strategy first and to set connect timeout
+ * from measured latency. Stats are saved in shared preferences.
+ */
+public class ConnectionStats {
+
+    private static final String PREFERENCE_NAME = "bluetoothlibrary_connection_stats";
+
+    private static final int MAX_SAMPLES = 32; // latency samples kept per strategy
+    private static final int MIN_SAMPLES = 5; // samples needed before adaptive connect timeout is used
+
+    /**
+     * The default minimum connect timeout is 3 sec.
+     */
+    public static final long MIN_CONNECT_TIMEOUT = 3*1000;
+
+    private final SharedPreferences preferences;
+    private final Map<String, DeviceStats> devices = new HashMap<>(); // key is upper case mac address
+    private boolean isLoaded = false;
+
+    private float timeoutMargin = 2.0f; // connect timeout = p99 latency * margin
+
+
+    /**
+     * Init ConnectionStats object
+     * @param context the current context you use
+     */
+    public ConnectionStats(Context context) {
+        this(context.getApplicationContext().getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE));
+    }
+
+    /*package*/ ConnectionStats(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Set margin for adaptive connect timeout, connect timeout is 99th percentile of connect latency multiplied by margin.
+     * Default margin is 2.
+     * @param margin margin, must be at least 1
+     */
+    public void setTimeoutMargin(float margin) {
+        if(margin < 1) {
+            throw new IllegalArgumentException("Invalid margin : " + margin);
+        }
+        this.timeoutMargin = margin;
+    }
+
+    /**
+     * Record successful connect.
+     * @param deviceAddress bluetooth device mac address
+     * @param isSecureConnection true if secure socket is used
+     * @param uuid UUID used for connection
+     * @param latencyMillis connect time (in milliseconds)
+     */
+    public synchronized void recordSuccess(String deviceAddress, boolean isSecureConnection, UUID uuid, long latencyMillis) {
+        DeviceStats device = getOrCreate(deviceAddress);
+        StrategyStats stats = device.getOrCreate(new Strategy(isSecureConnection, uuid));
+        stats.successCount++;
+        stats.addLatency(latencyMillis);
+        device.lastSeen = System.currentTimeMillis();
+        save(deviceAddress, device);
+    }
+
+    /**
+     * Record failed connect.
+     * @param deviceAddress bluetooth device mac address
+     * @param isSecureConnection true if secure socket is used
+     * @param uuid UUID used for connection
+     */
+    public synchronized void recordFailure(String deviceAddress, boolean isSecureConnection, UUID uuid) {
+        DeviceStats device = getOrCreate(deviceAddress);
+        device.getOrCreate(new Strategy(isSecureConnection, uuid)).failureCount++;
+        save(deviceAddress, device);
+    }
+
+    /**
+     * Record connect stopped by connect timeout, it is a failure with latency of more than the timeout.
+     * So adaptive connect timeout grows after timeouts.
+     * @param deviceAddress bluetooth device mac address
+     * @param isSecureConnection true if secure socket is used
+     * @param uuid UUID used for connection
+     * @param timeoutMillis connect timeout used (in milliseconds)
+     */
+    public synchronized void recordTimeout(String deviceAddress, boolean isSecureConnection, UUID uuid, long timeoutMillis) {
+        DeviceStats device = getOrCreate(deviceAddress);
+        StrategyStats stats = device.getOrCreate(new Strategy(isSecureConnection, uuid));
+        stats.failureCount++;
+        stats.addLatency(-Math.max(1, timeoutMillis));
+        save(deviceAddress, device);
+    }
+
+    /**
+     * Get connect strategies for device, fastest known strategy first.
+     * <p>The requested strategy is always included. An insecure strategy is never returned for a secure request.
+     * @param deviceAddress bluetooth device mac address
+     * @param isSecureConnection requested socket security
+     * @param uuid requested UUID
+     * @return list of strategies to try in order
+     */
+    public synchronized List<Strategy> getStrategies(String deviceAddress, boolean isSecureConnection, UUID uuid) {
+        final Strategy requested = new Strategy(isSecureConnection, uuid);
+        List<Strategy> strategies = new ArrayList<>();
+        strategies.add(requested);
+
+        final DeviceStats device = get(deviceAddress);
+        if(device == null) {
+            return strategies;
+        }
+
+        for (Strategy strategy : device.strategies.keySet()) {
+            // never fall back to insecure socket for secure request
+            if(!strategy.equals(requested) && (strategy.isSecure || !isSecureConnection)) {
+                strategies.add(strategy);
+            }
+        }
+
+        Collections.sort(strategies, new Comparator<Strategy>() {
+            @Override
+            public int compare(Strategy s1, Strategy s2) {
+                int result = Double.compare(device.score(s1), device.score(s2));
+                if(result == 0) {
+                    // unknown strategies, requested first
+                    result = (s1.equals(requested) ? 0 : 1) - (s2.equals(requested) ? 0 : 1);
+                }
+                return result;
+            }
+        });
+        return strategies;
+    }
+
+    /**
+     * Get adaptive connect timeout for device.
+     * <p>If 99th percentile is a timed out connect, timeout is at least double of that timeout.
+     * @param deviceAddress bluetooth device mac address
+     * @param defaultTimeoutMillis timeout returned when there are not enough samples, it is also the upper limit
+     * @return connect timeout (in milliseconds)
+     */
+    public synchronized long getConnectTimeout(String deviceAddress, long defaultTimeoutMillis) {
+        DeviceStats device = get(deviceAddress);
+        if(device == null) {
+            return defaultTimeoutMillis;
+        }
+
+        // all latencies of device, timed out connects are negative
+        List<Long> latencies = new ArrayList<>();
+        for (StrategyStats stats : device.strategies.values()) {
+            for (int i = 0; i < stats.sampleCount; i++) {
+                latencies.add(stats.latencies[i]);
+            }
+        }
+        if(latencies.size() < MIN_SAMPLES) {
+            return defaultTimeoutMillis;
+        }
+
+        Collections.sort(latencies, LATENCY_ORDER);
+        int index = (int) Math.ceil(latencies.size() * 0.99) - 1;
+        long latency = latencies.get(index);
+        long timeout = (long) (Math.abs(latency) * timeoutMargin);
+        if(latency < 0) {
+            // real latency is unknown, grow at least twice
+            timeout = Math.max(timeout, -latency * 2);
+        }
+        return Math.min(defaultTimeoutMillis, Math.max(MIN_CONNECT_TIMEOUT, timeout));
+    }
+
+    /**
+     * Get last time device was connected.
+     * @param deviceAddress bluetooth device mac address
+     * @return time in {@link System#currentTimeMillis()} base or 0 if device was never connected
+     */
+    public synchronized long getLastSeen(String deviceAddress) {
+        DeviceStats device = get(deviceAddress);
+        return device != null ? device.lastSeen : 0;
+    }
+
+    /**
+     * Remove stats of all devices.
+     */
+    public synchronized void clear() {
+        devices.clear();
+        isLoaded = true;
+        preferences.edit().clear().apply();
+    }
+
+
+    // Timed out connect is longer than a successful connect of same time
+    private static final Comparator<Long> LATENCY_ORDER = new Comparator<Long>() {
+        @Override
+        public int compare(Long l1, Long l2) {
+            int result = Long.compare(Math.abs(l1), Math.abs(l2));
+            if(result == 0) {
+                result = Long.compare(l2, l1);
+            }
+            return result;
+        }
+    };
+
+    private DeviceStats get(String deviceAddress) {
+        load();
+        return devices.get(deviceAddress.toUpperCase(Locale.US));
+    }
+
+    private DeviceStats getOrCreate(String deviceAddress) {
+        DeviceStats device = get(deviceAddress);
+        if(device == null) {
+            device = new DeviceStats();
+            devices.put(deviceAddress.toUpperCase(Locale.US), device);
+        }
+        return device;
+    }
+
+    // Read all devices from shared preferences once
+    private void load() {
+        if(isLoaded) {
+            return;
+        }
+        isLoaded = true;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if(entry.getValue() instanceof String) {
+                try {
+                    devices.put(entry.getKey(), DeviceStats.decode((String) entry.getValue()));
+                }
+                catch (Exception e) {
+                    // ignore corrupted entry
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void save(String deviceAddress, DeviceStats device) {
+        preferences.edit().putString(deviceAddress.toUpperCase(Locale.US), device.encode()).apply();
+    }
+
+
+    /**
+     * Strategy class is a way to connect : secure or insecure socket with UUID.
+     */
+    public static final class Strategy {
+
+        private final boolean isSecure;
+        private final UUID uuid;
+
+        public Strategy(boolean isSecure, UUID uuid) {
+            this.isSecure = isSecure;
+            this.uuid = uuid;
+        }
+
+        public boolean isSecure() {
+            return isSecure;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof Strategy)) {
+                return false;
+            }
+            Strategy strategy = (Strategy) o;
+            return isSecure == strategy.isSecure && uuid.equals(strategy.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uuid.hashCode() + (isSecure ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (isSecure ? "S" : "I") + uuid;
+        }
+    }
+
+
+    // Stats of one strategy
+    private static final class StrategyStats {
+
+        private int successCount = 0;
+        private int failureCount = 0;
+        private final long[] latencies = new long[MAX_SAMPLES]; // ring buffer of latencies, negative timeout for timed out connect
+        private int sampleCount = 0;
+        private int nextSample = 0;
+
+        private void addLatency(long latencyMillis) {
+            latencies[nextSample] = latencyMillis;
+            nextSample = (nextSample + 1) % MAX_SAMPLES;
+            if(sampleCount < MAX_SAMPLES) {
+                sampleCount++;
+            }
+        }
+
+        private long medianLatency() {
+            long[] sorted = Arrays.copyOf(latencies, sampleCount);
+            for (int i = 0; i < sampleCount; i++) {
+                sorted[i] = Math.abs(sorted[i]);
+            }
+            Arrays.sort(sorted);
+            return sorted[sampleCount / 2];
+        }
+    }
+
+
+    // Stats of one device
+    private static final class DeviceStats {
+
+        private final Map<Strategy, StrategyStats> strategies = new LinkedHashMap<>();
+        private long lastSeen = 0;
+
+        private StrategyStats getOrCreate(Strategy strategy) {
+            StrategyStats stats = strategies.get(strategy);
+            if(stats == null) {
+                stats = new StrategyStats();
+                strategies.put(strategy, stats);
+            }
+            return stats;
+        }
+
+        // Expected connect time, lower is better, unknown strategies are last
+        private double score(Strategy strategy) {
+            StrategyStats stats = strategies.get(strategy);
+            if(stats == null || stats.successCount == 0 || stats.sampleCount == 0) {
+                return Double.MAX_VALUE;
+            }
+            double successRate = (double) stats.successCount / (stats.successCount + stats.failureCount);
+            return stats.medianLatency() / successRate;
+        }
+
+        // Format : lastSeen|strategy;success;failure;latency,latency...|... , timed out latency is negative
+        private String encode() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(lastSeen);
+            for (Map.Entry<Strategy, StrategyStats> entry : strategies.entrySet()) {
+                StrategyStats stats = entry.getValue();
+                builder.append('|').append(entry.getKey())
+                        .append(';').append(stats.successCount)
+                        .append(';').append(stats.failureCount).append(';');
+                for (int i = 0; i < stats.sampleCount; i++) {
+                    // oldest sample first
+                    int index = (stats.nextSample - stats.sampleCount + i + MAX_SAMPLES) % MAX_SAMPLES;
+                    if(i > 0) {
+                        builder.append(',');
+                    }
+                    builder.append(stats.latencies[index]);
+                }
+            }
+            return builder.toString();
+        }
+
+        private static DeviceStats decode(String value) {
+            DeviceStats device = new DeviceStats();
+            String[] parts = value.split("\\|");
+            device.lastSeen = Long.parseLong(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                String[] fields = parts[i].split(";", -1);
+                String key = fields[0];
+                Strategy strategy = new Strategy(key.charAt(0) == 'S', UUID.fromString(key.substring(1)));
+                StrategyStats stats = device.getOrCreate(strategy);
+                stats.successCount = Integer.parseInt(fields[1]);
+                stats.failureCount = Integer.parseInt(fields[2]);
+                if(!fields[3].isEmpty()) {
+                    for (String latency : fields[3].split(",")) {
+                        stats.addLatency(Long.parseLong(latency));
+                    }
+                }
+            }
+            return device;
+        }
+    }
+}
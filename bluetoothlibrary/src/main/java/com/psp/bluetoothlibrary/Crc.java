@@ -0,0 +1,273 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Crc class computes CRC checksums with precomputed lookup tables (one table lookup per byte).
+ * <p>Value is updated incrementally, data can be added in any number of chunks.
+ * <p>Supported algorithms : {@link #crc8()}, {@link #crc16Modbus()}, {@link #crc16Ccitt()},
+ * {@link #crc16Xmodem()}, {@link #crc32()} or any other with width 8, 16, 24 or 32 bits.
+ * <p>Crc object is not thread safe, use {@link #copy()} to get another object with same algorithm.
+ */
+public final class Crc implements Checksum {
+
+    // Tables are shared by all objects with same width, polynomial and bit order
+    private static final Map<String, int[]> tables = new HashMap<>();
+
+    private final int width;
+    private final int polynomial;
+    private final int init;
+    private final int xorOut;
+    private final boolean isReflected;
+    private final boolean isLittleEndian;
+    private final int mask;
+    private final int[] table;
+
+    private int crc;
+
+
+    /**
+     * CRC-8 (polynomial 0x07, init 0x00).
+     * @return new Crc object
+     */
+    public static Crc crc8() {
+        return new Crc(8, 0x07, 0x00, false, 0x00, false);
+    }
+
+    /**
+     * CRC-16/MODBUS (polynomial 0x8005 reflected, init 0xFFFF), sent low byte first.
+     * @return new Crc object
+     */
+    public static Crc crc16Modbus() {
+        return new Crc(16, 0x8005, 0xFFFF, true, 0x0000, true);
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE (polynomial 0x1021, init 0xFFFF).
+     * @return new Crc object
+     */
+    public static Crc crc16Ccitt() {
+        return new Crc(16, 0x1021, 0xFFFF, false, 0x0000, false);
+    }
+
+    /**
+     * CRC-16/XMODEM (polynomial 0x1021, init 0x0000).
+     * @return new Crc object
+     */
+    public static Crc crc16Xmodem() {
+        return new Crc(16, 0x1021, 0x0000, false, 0x0000, false);
+    }
+
+    /**
+     * CRC-32 (polynomial 0x04C11DB7 reflected, init and final xor 0xFFFFFFFF), sent low byte first.
+     * @return new Crc object
+     */
+    public static Crc crc32() {
+        return new Crc(32, 0x04C11DB7, 0xFFFFFFFF, true, 0xFFFFFFFF, true);
+    }
+
+    /**
+     * Init Crc object
+     * @param width width in bits, 8, 16, 24 or 32
+     * @param polynomial polynomial in normal (not reflected) form
+     * @param init initial value
+     * @param isReflected true if input and output bits are reflected
+     * @param xorOut value xored with result
+     * @param isLittleEndian true if checksum is sent low byte first
+     */
+    public Crc(int width, int polynomial, int init, boolean isReflected, int xorOut, boolean isLittleEndian) {
+        if(width != 8 && width != 16 && width != 24 && width != 32) {
+            throw new IllegalArgumentException("Invalid CRC width : " + width);
+        }
+        this.width = width;
+        this.mask = width == 32 ? 0xFFFFFFFF : (1 << width) - 1;
+        this.polynomial = polynomial & mask;
+        this.init = init & mask;
+        this.xorOut = xorOut & mask;
+        this.isReflected = isReflected;
+        this.isLittleEndian = isLittleEndian;
+        this.table = getTable(width, this.polynomial, isReflected);
+        reset();
+    }
+
+    private Crc(Crc crc) {
+        this.width = crc.width;
+        this.mask = crc.mask;
+        this.polynomial = crc.polynomial;
+        this.init = crc.init;
+        this.xorOut = crc.xorOut;
+        this.isReflected = crc.isReflected;
+        this.isLittleEndian = crc.isLittleEndian;
+        this.table = crc.table;
+        reset();
+    }
+
+    /**
+     * Get new Crc object with same algorithm, lookup table is shared.
+     * @return new Crc object
+     */
+    public Crc copy() {
+        return new Crc(this);
+    }
+
+    /**
+     * Get checksum size.
+     * @return number of bytes of checksum
+     */
+    public int getSize() {
+        return width / 8;
+    }
+
+    @Override
+    public void reset() {
+        crc = isReflected ? reflect(init, width) : init;
+    }
+
+    @Override
+    public void update(int b) {
+        if(isReflected) {
+            crc = table[(crc ^ b) & 0xFF] ^ (crc >>> 8);
+        }
+        else {
+            crc = (table[((crc >>> (width - 8)) ^ b) & 0xFF] ^ (crc << 8)) & mask;
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int value = crc;
+        final int[] table = this.table;
+        final int end = off + len;
+        if(isReflected) {
+            for (int i = off; i < end; i++) {
+                value = table[(value ^ b[i]) & 0xFF] ^ (value >>> 8);
+            }
+        }
+        else {
+            final int shift = width - 8;
+            for (int i = off; i < end; i++) {
+                value = (table[((value >>> shift) ^ b[i]) & 0xFF] ^ (value << 8)) & mask;
+            }
+        }
+        crc = value;
+    }
+
+    /**
+     * Get checksum of data added after last reset.
+     * @return checksum (unsigned)
+     */
+    @Override
+    public long getValue() {
+        return ((crc ^ xorOut) & mask) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Get checksum of data, current value is not changed.
+     * @param b data
+     * @param off offset of data
+     * @param len length of data
+     * @return checksum (unsigned)
+     */
+    public long compute(byte[] b, int off, int len) {
+        int saved = crc;
+        reset();
+        update(b, off, len);
+        long value = getValue();
+        crc = saved;
+        return value;
+    }
+
+    /**
+     * Write checksum to buffer in byte order of algorithm.
+     * @param buffer destination buffer
+     * @param offset offset in buffer, {@link #getSize()} bytes are written
+     */
+    public void writeValue(byte[] buffer, int offset) {
+        long value = getValue();
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            int shift = isLittleEndian ? i * 8 : (size - 1 - i) * 8;
+            buffer[offset + i] = (byte) (value >>> shift);
+        }
+    }
+
+    /**
+     * Read checksum from buffer in byte order of algorithm.
+     * @param buffer source buffer
+     * @param offset offset in buffer
+     * @return checksum (unsigned)
+     */
+    public long readValue(byte[] buffer, int offset) {
+        long value = 0;
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            int shift = isLittleEndian ? i * 8 : (size - 1 - i) * 8;
+            value |= (buffer[offset + i] & 0xFFL) << shift;
+        }
+        return value;
+    }
+
+    // Lookup table, reflected tables work on low bits, normal tables on high bits
+    private static int[] getTable(int width, int polynomial, boolean isReflected) {
+        String key = width + ":" + polynomial + ":" + isReflected;
+        synchronized (tables) {
+            int[] table = tables.get(key);
+            if(table == null) {
+                table = new int[256];
+                int mask = width == 32 ? 0xFFFFFFFF : (1 << width) - 1;
+                if(isReflected) {
+                    int reflectedPolynomial = reflect(polynomial, width);
+                    for (int i = 0; i < 256; i++) {
+                        int value = i;
+                        for (int bit = 0; bit < 8; bit++) {
+                            value = (value & 1) != 0 ? (value >>> 1) ^ reflectedPolynomial : value >>> 1;
+                        }
+                        table[i] = value;
+                    }
+                }
+                else {
+                    int topBit = 1 << (width - 1);
+                    for (int i = 0; i < 256; i++) {
+                        int value = i << (width - 8);
+                        for (int bit = 0; bit < 8; bit++) {
+                            value = (value & topBit) != 0 ? (value << 1) ^ polynomial : value << 1;
+                        }
+                        table[i] = value & mask;
+                    }
+                }
+                tables.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    private static int reflect(int value, int width) {
+        return Integer.reverse(value) >>> (32 - width);
+    }
+}
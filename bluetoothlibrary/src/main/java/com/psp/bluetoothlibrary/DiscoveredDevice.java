@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * DiscoveredDevice class holds a bluetooth device found by discovery with its name, class, signal strength
+ * and the time it was first and last found.
+ */
+public final class DiscoveredDevice {
+
+    /**
+     * RSSI value when signal strength is not reported.
+     */
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final BluetoothDevice device;
+    private final String name;
+    private final BluetoothClass bluetoothClass;
+    private final short rssi;
+    private final long firstSeen;
+    private final long lastSeen;
+
+
+    /*package*/ DiscoveredDevice(BluetoothDevice device, String name, BluetoothClass bluetoothClass, short rssi,
+                                 long firstSeen, long lastSeen) {
+        this.device = device;
+        this.name = name;
+        this.bluetoothClass = bluetoothClass;
+        this.rssi = rssi;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * Get bluetooth device.
+     * @return BluetoothDevice
+     */
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Get device mac address.
+     * @return mac address
+     */
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    /**
+     * Get device name reported by discovery.
+     * @return device name, can be null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get device class reported by discovery.
+     * @return BluetoothClass, can be null
+     */
+    public BluetoothClass getBluetoothClass() {
+        return bluetoothClass;
+    }
+
+    /**
+     * Get signal strength of last discovery result.
+     * @return rssi in dBm or {@link #RSSI_UNKNOWN}
+     */
+    public short getRssi() {
+        return rssi;
+    }
+
+    /**
+     * Get time the device was found first.
+     * @return time in {@link System#currentTimeMillis()} base
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * Get time the device was found last.
+     * @return time in {@link System#currentTimeMillis()} base
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+}
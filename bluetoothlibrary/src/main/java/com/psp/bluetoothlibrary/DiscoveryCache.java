@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DiscoveryCache class keeps discovery results by mac address.
+ * <p>It decides if a discovery result should be reported (first result of the device in a discovery
+ * or significant RSSI change) and removes devices not found again within time to live.
+ */
+/*package*/ final class DiscoveryCache {
+
+    /**
+     * The default time to live of a discovered device is 5 min.
+     */
+    static final long DEFAULT_TTL = 5*60*1000;
+
+    /**
+     * The default RSSI change reported again is 10 dBm.
+     */
+    static final int DEFAULT_RSSI_THRESHOLD = 10;
+
+    private final Map<String, Entry> devices = new LinkedHashMap<>(); // key is upper case mac address, first found first
+
+    private long ttlMillis = DEFAULT_TTL;
+    private int rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+    private boolean isNotifyOnlyChanges = true;
+    private int discovery = 0; // number of running discovery, each device is reported once per discovery
+
+
+    synchronized void setTtl(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    synchronized void setRssiThreshold(int rssiThreshold) {
+        this.rssiThreshold = rssiThreshold;
+    }
+
+    synchronized void setNotifyOnlyChanges(boolean isNotifyOnlyChanges) {
+        this.isNotifyOnlyChanges = isNotifyOnlyChanges;
+    }
+
+    // New discovery is started, devices found before get reported again
+    synchronized void startDiscovery() {
+        discovery++;
+    }
+
+    // Add or update discovery result, returns the device if it should be reported or null
+    synchronized DiscoveredDevice update(String address, BluetoothDevice device, String name, BluetoothClass bluetoothClass, short rssi) {
+        long now = System.currentTimeMillis();
+        String key = address.toUpperCase(Locale.US);
+        Entry entry = devices.get(key);
+
+        if(entry == null || isExpired(entry, now)) {
+            entry = new Entry(now);
+            devices.remove(key); // keep first found order
+            devices.put(key, entry);
+        }
+        entry.update(device, name, bluetoothClass, rssi, now);
+
+        // first result of this discovery is always reported, later ones only on change
+        if(entry.notifiedDiscovery != discovery || !isNotifyOnlyChanges || isSignificantChange(entry.notifiedRssi, rssi)) {
+            entry.notifiedDiscovery = discovery;
+            entry.notifiedRssi = rssi;
+            return entry.getDevice();
+        }
+        return null;
+    }
+
+    // Get discovered device or null
+    synchronized DiscoveredDevice get(String address) {
+        Entry entry = devices.get(address.toUpperCase(Locale.US));
+        if(entry == null || isExpired(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.getDevice();
+    }
+
+    // Get all discovered devices not expired, first found first
+    synchronized List<DiscoveredDevice> snapshot() {
+        evict();
+        List<DiscoveredDevice> list = new ArrayList<>(devices.size());
+        for (Entry entry : devices.values()) {
+            list.add(entry.getDevice());
+        }
+        return list;
+    }
+
+    // Remove expired devices
+    synchronized void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            if(isExpired(iterator.next(), now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        devices.clear();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMillis > 0 && now - entry.lastSeen > ttlMillis;
+    }
+
+    private boolean isSignificantChange(short notifiedRssi, short rssi) {
+        if(notifiedRssi == DiscoveredDevice.RSSI_UNKNOWN || rssi == DiscoveredDevice.RSSI_UNKNOWN) {
+            return notifiedRssi != rssi;
+        }
+        return Math.abs(rssi - notifiedRssi) >= rssiThreshold;
+    }
+
+
+    // Latest result of device, DiscoveredDevice is created only when it is reported or read
+    private static final class Entry {
+        private BluetoothDevice device;
+        private String name = null;
+        private BluetoothClass bluetoothClass = null;
+        private short rssi;
+        private final long firstSeen;
+        private long lastSeen;
+        private DiscoveredDevice discoveredDevice = null; // null after update
+        private short notifiedRssi; // rssi when device was reported last
+        private int notifiedDiscovery = -1; // discovery in which device was reported last
+
+        private Entry(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+
+        // name and class are kept if result does not have them
+        private void update(BluetoothDevice device, String name, BluetoothClass bluetoothClass, short rssi, long now) {
+            this.device = device;
+            if(name != null) {
+                this.name = name;
+            }
+            if(bluetoothClass != null) {
+                this.bluetoothClass = bluetoothClass;
+            }
+            this.rssi = rssi;
+            this.lastSeen = now;
+            this.discoveredDevice = null;
+        }
+
+        private DiscoveredDevice getDevice() {
+            if(discoveredDevice == null) {
+                discoveredDevice = new DiscoveredDevice(device, name, bluetoothClass, rssi, firstSeen, lastSeen);
+            }
+            return discoveredDevice;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * DiscoveryFilter class selects which discovery results are reported by {@link Bluetooth#startDetectNearbyDevices(DiscoveryFilter)}.
+ * <p>It is checked inside the discovery broadcast receiver before a result is stored or reported, cheap checks first.
+ * <p>Default filter reports devices with name which are not paired.
+ */
+public class DiscoveryFilter {
+
+    /**
+     * Value of filters which are not set.
+     */
+    public static final int ANY = -1;
+
+    private String namePrefix = null;
+    private Pattern namePattern = null;
+    private String addressOui = null; // upper case "XX:XX:XX"
+    private int majorDeviceClass = ANY;
+    private int minRssi = ANY;
+    private boolean isIncludeBonded = false;
+    private boolean isIncludeNameless = false;
+    private int maxMatches = 0;
+    private String targetAddress = null; // upper case mac address
+
+
+    /**
+     * Report only devices whose name starts with prefix.
+     * @param namePrefix name prefix, for example "HC-"
+     * @return this filter
+     */
+    public DiscoveryFilter setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+        return this;
+    }
+
+    /**
+     * Report only devices whose name matches regular expression.
+     * @param regex regular expression for whole name
+     * @return this filter
+     */
+    public DiscoveryFilter setNamePattern(String regex) {
+        this.namePattern = regex != null ? Pattern.compile(regex) : null;
+        return this;
+    }
+
+    /**
+     * Report only devices of manufacturer, first three bytes of mac address.
+     * @param oui organizationally unique identifier, for example "00:21:13"
+     * @return this filter
+     */
+    public DiscoveryFilter setAddressOui(String oui) {
+        if(oui != null) {
+            String value = oui.toUpperCase(Locale.US);
+            if(!value.matches("[0-9A-F]{2}:[0-9A-F]{2}:[0-9A-F]{2}")) {
+                throw new IllegalArgumentException("Invalid OUI : " + oui);
+            }
+            this.addressOui = value;
+        }
+        else {
+            this.addressOui = null;
+        }
+        return this;
+    }
+
+    /**
+     * Report only devices of major device class.
+     * @param majorDeviceClass one of BluetoothClass.Device.Major values or {@link #ANY}
+     * @return this filter
+     */
+    public DiscoveryFilter setMajorDeviceClass(int majorDeviceClass) {
+        this.majorDeviceClass = majorDeviceClass;
+        return this;
+    }
+
+    /**
+     * Report only devices with signal strength of at least minRssi. Devices without RSSI are not reported.
+     * @param minRssi minimum rssi (in dBm)
+     * @return this filter
+     */
+    public DiscoveryFilter setMinRssi(int minRssi) {
+        this.minRssi = minRssi;
+        return this;
+    }
+
+    /**
+     * Report paired devices also. Default is false.
+     * @param isIncludeBonded true to report paired devices
+     * @return this filter
+     */
+    public DiscoveryFilter setIncludeBonded(boolean isIncludeBonded) {
+        this.isIncludeBonded = isIncludeBonded;
+        return this;
+    }
+
+    /**
+     * Report devices without name also. Default is false.
+     * @param isIncludeNameless true to report devices without name
+     * @return this filter
+     */
+    public DiscoveryFilter setIncludeNameless(boolean isIncludeNameless) {
+        this.isIncludeNameless = isIncludeNameless;
+        return this;
+    }
+
+    /**
+     * Stop discovery when this many different devices are reported.
+     * @param maxMatches number of devices, 0 for no limit
+     * @return this filter
+     */
+    public DiscoveryFilter setMaxMatches(int maxMatches) {
+        this.maxMatches = Math.max(0, maxMatches);
+        return this;
+    }
+
+    /**
+     * Stop discovery when device with this address is reported.
+     * @param targetAddress Bluetooth device mac address
+     * @return this filter
+     */
+    public DiscoveryFilter setTargetAddress(String targetAddress) {
+        this.targetAddress = targetAddress != null ? targetAddress.toUpperCase(Locale.US) : null;
+        return this;
+    }
+
+    /*package*/ int getMaxMatches() {
+        return maxMatches;
+    }
+
+    // check primitive values of the broadcast, nothing is unparcelled or copied
+    /*package*/ boolean matchesAddressAndSignal(String address, short rssi) {
+        if(addressOui != null && !address.regionMatches(true, 0, addressOui, 0, addressOui.length())) {
+            return false;
+        }
+        if(minRssi != ANY && (rssi == DiscoveredDevice.RSSI_UNKNOWN || rssi < minRssi)) {
+            return false;
+        }
+        return true;
+    }
+
+    // check class of device, class is unparcelled from the broadcast
+    /*package*/ boolean matchesDeviceClass(BluetoothClass bluetoothClass) {
+        return majorDeviceClass == ANY || (bluetoothClass != null && bluetoothClass.getMajorDeviceClass() == majorDeviceClass);
+    }
+
+    // check device name
+    /*package*/ boolean matchesName(String name) {
+        if(name == null) {
+            return isIncludeNameless && namePrefix == null && namePattern == null;
+        }
+        if(namePrefix != null && !name.startsWith(namePrefix)) {
+            return false;
+        }
+        if(namePattern != null && !namePattern.matcher(name).matches()) {
+            return false;
+        }
+        return true;
+    }
+
+    // check bond state, it needs IPC so it is checked last
+    /*package*/ boolean matchesBondState(BluetoothDevice device) {
+        return isIncludeBonded || device.getBondState() != BluetoothDevice.BOND_BONDED;
+    }
+
+    /*package*/ boolean isTarget(String address) {
+        return targetAddress != null && targetAddress.equalsIgnoreCase(address);
+    }
+}
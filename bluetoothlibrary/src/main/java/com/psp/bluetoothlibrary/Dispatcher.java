@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatcher class runs the listener callbacks of the library, on the main thread by default.
+ * <p>Set an executor to run callbacks without Android main looper, for example on a JVM with {@link PipedTransport}
+ * or {@link TcpTransport} in tests and benchmarks.
+ */
+public final class Dispatcher {
+
+    /**
+     * Executor that runs callbacks on the thread that produced them (reader thread, timer thread etc.).
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile Executor executor = null; // null if callbacks run on main thread
+    private static Handler mainHandler = null;
+
+    private Dispatcher() { }
+
+    /**
+     * Set executor of listener callbacks, callbacks run in posted order only if executor keeps order.
+     * @param executor Executor, null to run callbacks on main thread (default)
+     */
+    public static void setExecutor(Executor executor) {
+        Dispatcher.executor = executor;
+    }
+
+    /**
+     * Get executor of listener callbacks.
+     * @return Executor or null if callbacks run on main thread
+     */
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    // Run callback with executor or on main thread
+    /*package*/ static void post(Runnable task) {
+        Executor current = executor;
+        if(current != null) {
+            current.execute(task);
+        }
+        else {
+            getMainHandler().post(task);
+        }
+    }
+
+    // Get main thread handler, create it on first use
+    private static synchronized Handler getMainHandler() {
+        if(mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+/**
+ * Flyweight class reads and writes message fields directly in a byte array, without copy or allocation.
+ * <p>Extend it with accessors of your message fields, for example :
+ * <pre>
+ * class Telemetry extends Flyweight {
+ *     int temperature() { return getInt16(0); }
+ *     void temperature(int value) { putInt16(0, value); }
+ *     long timestamp() { return getInt64(2); }
+ *     void timestamp(long value) { putInt64(2, value); }
+ *     public int getMinLength() { return 10; }
+ * }
+ * </pre>
+ * Field index is relative to the start of message payload. One object is used for any number of messages,
+ * it is only valid while it is wrapped around a buffer.
+ */
+public abstract class Flyweight {
+
+    private final boolean isLittleEndian;
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    /**
+     * Init Flyweight object with big endian fields.
+     */
+    protected Flyweight() {
+        this(false);
+    }
+
+    /**
+     * Init Flyweight object
+     * @param isLittleEndian true if multi byte fields are low byte first
+     */
+    protected Flyweight(boolean isLittleEndian) {
+        this.isLittleEndian = isLittleEndian;
+    }
+
+    /**
+     * Minimum payload length of this message type, shorter messages are not decoded. Default is 0.
+     * @return minimum length (in bytes)
+     */
+    public int getMinLength() {
+        return 0;
+    }
+
+    /**
+     * Point this object to a message payload.
+     * @param buffer buffer with message
+     * @param offset offset of payload in buffer
+     * @param length length of payload
+     * @return this object
+     */
+    public Flyweight wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * Get buffer this object is wrapped around.
+     * @return buffer, null if not wrapped
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get offset of payload in buffer.
+     * @return offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get length of payload.
+     * @return length (in bytes)
+     */
+    public int getLength() {
+        return length;
+    }
+
+    protected final byte getInt8(int index) {
+        return buffer[position(index, 1)];
+    }
+
+    protected final int getUint8(int index) {
+        return buffer[position(index, 1)] & 0xFF;
+    }
+
+    protected final short getInt16(int index) {
+        return (short) get(position(index, 2), 2);
+    }
+
+    protected final int getUint16(int index) {
+        return (int) get(position(index, 2), 2);
+    }
+
+    protected final int getInt32(int index) {
+        return (int) get(position(index, 4), 4);
+    }
+
+    protected final long getUint32(int index) {
+        return get(position(index, 4), 4);
+    }
+
+    protected final long getInt64(int index) {
+        return get(position(index, 8), 8);
+    }
+
+    protected final float getFloat(int index) {
+        return Float.intBitsToFloat(getInt32(index));
+    }
+
+    protected final double getDouble(int index) {
+        return Double.longBitsToDouble(getInt64(index));
+    }
+
+    protected final void getBytes(int index, byte[] destination, int destinationOffset, int count) {
+        System.arraycopy(buffer, position(index, count), destination, destinationOffset, count);
+    }
+
+    protected final void putInt8(int index, int value) {
+        buffer[position(index, 1)] = (byte) value;
+    }
+
+    protected final void putInt16(int index, int value) {
+        put(position(index, 2), 2, value);
+    }
+
+    protected final void putInt32(int index, int value) {
+        put(position(index, 4), 4, value);
+    }
+
+    protected final void putInt64(int index, long value) {
+        put(position(index, 8), 8, value);
+    }
+
+    protected final void putFloat(int index, float value) {
+        putInt32(index, Float.floatToRawIntBits(value));
+    }
+
+    protected final void putDouble(int index, double value) {
+        putInt64(index, Double.doubleToRawLongBits(value));
+    }
+
+    protected final void putBytes(int index, byte[] source, int sourceOffset, int count) {
+        System.arraycopy(source, sourceOffset, buffer, position(index, count), count);
+    }
+
+    // position of field in buffer, field must be inside payload
+    private int position(int index, int size) {
+        if(index < 0 || index + size > length) {
+            throw new IndexOutOfBoundsException("Field " + index + "+" + size + " outside message of length " + length);
+        }
+        return offset + index;
+    }
+
+    private long get(int position, int size) {
+        long value = 0;
+        if(isLittleEndian) {
+            for (int i = size - 1; i >= 0; i--) {
+                value = (value << 8) | (buffer[position + i] & 0xFF);
+            }
+        }
+        else {
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (buffer[position + i] & 0xFF);
+            }
+        }
+        return value;
+    }
+
+    private void put(int position, int size, long value) {
+        for (int i = 0; i < size; i++) {
+            int shift = isLittleEndian ? i * 8 : (size - 1 - i) * 8;
+            buffer[position + i] = (byte) (value >>> shift);
+        }
+    }
+}
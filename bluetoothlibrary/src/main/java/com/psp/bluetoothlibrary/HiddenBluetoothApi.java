@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothDevice;
+import java.lang.reflect.Method;
+
+/**
+ * HiddenBluetoothApi class calls hidden BluetoothDevice methods using reflection.
+ * <p>Methods are looked up once and cached, a method not found on this device stays null.
+ */
+/*package*/ final class HiddenBluetoothApi {
+
+    private static Method removeBond = null;
+    private static Method cancelBondProcess = null;
+    private static boolean isResolved = false;
+
+    private HiddenBluetoothApi() { }
+
+    // Look up all methods once
+    private static synchronized void resolve() {
+        if(isResolved) {
+            return;
+        }
+        removeBond = findMethod("removeBond");
+        cancelBondProcess = findMethod("cancelBondProcess");
+        isResolved = true;
+    }
+
+    private static Method findMethod(String name) {
+        try {
+            return BluetoothDevice.class.getMethod(name);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Remove bond (unpair), returns true if request is sent
+    static boolean removeBond(BluetoothDevice device) {
+        resolve();
+        return invokeBoolean(removeBond, device);
+    }
+
+    // Cancel running bonding, returns true if request is sent
+    static boolean cancelBondProcess(BluetoothDevice device) {
+        resolve();
+        return invokeBoolean(cancelBondProcess, device);
+    }
+
+    private static boolean invokeBoolean(Method method, BluetoothDevice device) {
+        if(method == null || device == null) {
+            return false;
+        }
+        try {
+            Object result = method.invoke(device);
+            return !(result instanceof Boolean) || (Boolean) result;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
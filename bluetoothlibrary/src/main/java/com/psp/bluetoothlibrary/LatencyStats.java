@@ -0,0 +1,107 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+/**
+ * LatencyStats class collects latency samples : count, minimum, maximum, average and last.
+ * <p>It is thread safe and does not allocate per sample.
+ */
+public final class LatencyStats {
+
+    private long count = 0;
+    private long totalNanos = 0;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos = 0;
+    private long lastNanos = 0;
+
+    /*package*/ synchronized void record(long latencyNanos) {
+        count++;
+        totalNanos += latencyNanos;
+        lastNanos = latencyNanos;
+        if(latencyNanos < minNanos) {
+            minNanos = latencyNanos;
+        }
+        if(latencyNanos > maxNanos) {
+            maxNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * Get number of samples.
+     * @return number of samples
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Get minimum latency.
+     * @return minimum latency (in milliseconds), 0 if there is no sample
+     */
+    public synchronized double getMinMillis() {
+        return count > 0 ? minNanos / 1e6 : 0;
+    }
+
+    /**
+     * Get maximum latency.
+     * @return maximum latency (in milliseconds)
+     */
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Get average latency.
+     * @return average latency (in milliseconds), 0 if there is no sample
+     */
+    public synchronized double getAverageMillis() {
+        return count > 0 ? totalNanos / 1e6 / count : 0;
+    }
+
+    /**
+     * Get latency of last sample.
+     * @return last latency (in milliseconds)
+     */
+    public synchronized double getLastMillis() {
+        return lastNanos / 1e6;
+    }
+
+    /**
+     * Remove all samples.
+     */
+    public synchronized void reset() {
+        count = 0;
+        totalNanos = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = 0;
+        lastNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(java.util.Locale.US, "count=%d min=%.2fms avg=%.2fms max=%.2fms",
+                count, getMinMillis(), getAverageMillis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * LineParserStage class splits received text into lines (AT commands, OBD adapters, NMEA etc.) :
+ * <p>- Delimiters are found in received bytes, lines split across reads are joined.
+ * <p>- Line characters are collected in one reused CharBuffer, line length is limited.
+ * <p>- Line listeners get a new String or a CharSequence view of the buffer (no allocation).
+ * <p>- Each line (without delimiter) is passed to next stage, so receive listeners get whole lines.
+ * <p>- Prompt characters (for example '>' of ELM327) are lines of their own, they do not wait for a delimiter.
+ * <p>Bytes are read as ISO-8859-1 characters. Sent data is not changed.
+ */
+public class LineParserStage implements Stage, Stage.Resettable {
+
+    private final List<BluetoothListener.onLineListener> lineListeners = new CopyOnWriteArrayList<>();
+    private final boolean[] delimiters = new boolean[256];
+    private final boolean[] prompts = new boolean[256];
+    private int maxLineLength = 1024;
+    private boolean isEmitViews = false;
+    private boolean isSkipEmptyLines = true;
+    private boolean isForwardLines = true;
+
+    // Line state, used on reader thread only
+    private CharBuffer line = CharBuffer.allocate(64);
+    private boolean isOverflow = false; // dropping rest of too long line
+    private byte[] forwardBuffer = new byte[64];
+    private final char[] promptLine = new char[1];
+    private final CharBuffer promptView = CharBuffer.wrap(promptLine);
+
+    private volatile long lineCount = 0;
+    private volatile long overflowCount = 0;
+
+
+    /**
+     * Init LineParserStage object, lines end with '\r' or '\n'.
+     */
+    public LineParserStage() {
+        setDelimiters("\r\n");
+    }
+
+    /**
+     * Set line delimiters, any of these characters ends a line. Default is "\r\n".
+     * @param delimiters delimiter characters
+     */
+    public synchronized void setDelimiters(String delimiters) {
+        setCharacters(this.delimiters, delimiters);
+    }
+
+    /**
+     * Set prompt characters, each is passed as a line of its own as soon as it is received. Default is none.
+     * @param prompts prompt characters, for example ">"
+     */
+    public synchronized void setPrompts(String prompts) {
+        setCharacters(this.prompts, prompts);
+    }
+
+    /**
+     * Set maximum line length, longer lines are dropped. Default is 1024.
+     * @param maxLineLength maximum characters
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Set line listeners get a CharSequence view of the line buffer instead of new String.
+     * The view is only valid till the listener returns. Default is false.
+     * @param isEmitViews true to get views
+     */
+    public void setEmitViews(boolean isEmitViews) {
+        this.isEmitViews = isEmitViews;
+    }
+
+    /**
+     * Set empty lines (for example between '\r' and '\n') are skipped. Default is true.
+     * @param isSkipEmptyLines true to skip empty lines
+     */
+    public void setSkipEmptyLines(boolean isSkipEmptyLines) {
+        this.isSkipEmptyLines = isSkipEmptyLines;
+    }
+
+    /**
+     * Set lines are passed to next stage and receive listeners. Default is true.
+     * @param isForwardLines false if only line listeners need lines
+     */
+    public void setForwardLines(boolean isForwardLines) {
+        this.isForwardLines = isForwardLines;
+    }
+
+    /**
+     * Add line listener, it is called on reader thread.
+     * @param lineListener BluetoothListener.onLineListener
+     */
+    public void addOnLineListener(BluetoothListener.onLineListener lineListener) {
+        if(lineListener != null && !lineListeners.contains(lineListener)) {
+            lineListeners.add(lineListener);
+        }
+    }
+
+    /**
+     * Remove line listener.
+     * @param lineListener BluetoothListener.onLineListener
+     */
+    public void removeOnLineListener(BluetoothListener.onLineListener lineListener) {
+        lineListeners.remove(lineListener);
+    }
+
+    /**
+     * Get number of received lines.
+     * @return line count
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Get number of lines dropped for length.
+     * @return overflow count
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    @Override
+    public void reset() {
+        line.clear();
+        isOverflow = false;
+    }
+
+    @Override
+    public void onSend(byte[] buffer, int offset, int length, Output output) throws IOException {
+        output.write(buffer, offset, length);
+    }
+
+    @Override
+    public void onReceive(byte[] buffer, int offset, int length, Output output) throws IOException {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int c = buffer[i] & 0xFF;
+            if(delimiters[c]) {
+                endLine(output);
+            }
+            else if(prompts[c]) {
+                endLine(output);
+                promptLine[0] = (char) c;
+                promptView.clear();
+                emit(promptView, output);
+            }
+            else if(!isOverflow) {
+                if(line.position() >= maxLineLength) {
+                    overflowCount++;
+                    isOverflow = true;
+                    line.clear();
+                }
+                else {
+                    if(!line.hasRemaining()) {
+                        grow();
+                    }
+                    line.put((char) c);
+                }
+            }
+        }
+    }
+
+    private void endLine(Output output) throws IOException {
+        if(isOverflow) {
+            isOverflow = false;
+            return;
+        }
+        if(line.position() == 0 && isSkipEmptyLines) {
+            return;
+        }
+        line.flip();
+        try {
+            emit(line, output);
+        }
+        finally {
+            line.clear();
+        }
+    }
+
+    // line is a view from position to limit
+    private void emit(CharBuffer text, Output output) throws IOException {
+        lineCount++;
+        if(!lineListeners.isEmpty()) {
+            CharSequence value = isEmitViews ? text : text.toString();
+            for (BluetoothListener.onLineListener lineListener : lineListeners) {
+                try {
+                    lineListener.onLine(value);
+                }
+                catch (Exception e) {
+                    // listener error must not stop parsing
+                    e.printStackTrace();
+                }
+            }
+        }
+        if(isForwardLines) {
+            int length = text.remaining();
+            if(forwardBuffer.length < length) {
+                forwardBuffer = new byte[Math.max(length, forwardBuffer.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                forwardBuffer[i] = (byte) text.charAt(i);
+            }
+            output.write(forwardBuffer, 0, length);
+        }
+    }
+
+    private void grow() {
+        CharBuffer newLine = CharBuffer.allocate(Math.min(Math.max(1, maxLineLength), line.capacity() * 2));
+        line.flip();
+        newLine.put(line);
+        line = newLine;
+    }
+
+    private static void setCharacters(boolean[] table, String characters) {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = false;
+        }
+        for (int i = 0; i < characters.length(); i++) {
+            char c = characters.charAt(i);
+            if(c < table.length) {
+                table[c] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+/**
+ * MessageCodec class decodes and encodes binary messages without allocation :
+ * <p>- Message type is a header byte or short, each type is registered with a {@link Flyweight} and listener.
+ * <p>- Received messages are read in place, the registered flyweight is wrapped around the received buffer.
+ * <p>- Sent messages are written by a flyweight into a pooled buffer.
+ * <p>Each raw receive must be one message, so add a framing stage before it (for example {@link ChecksumStage}).
+ * Listeners are called on the reader thread.
+ */
+public class MessageCodec implements BluetoothListener.onRawReceiveListener {
+
+    /**
+     * Message type is 1 byte.
+     */
+    public static final int TYPE_BYTE = 1;
+
+    /**
+     * Message type is 2 bytes (big endian).
+     */
+    public static final int TYPE_SHORT = 2;
+
+    private final Connection connection;
+    private final int typeLength;
+    private final BufferPool bufferPool;
+
+    // Registered types, page is high byte of type, replaced on change
+    private volatile Registration<?>[][] registrations = new Registration<?>[256][];
+
+    private volatile long decodedCount = 0;
+    private volatile long unknownTypeCount = 0;
+    private volatile long invalidLengthCount = 0;
+
+
+    /**
+     * Init MessageCodec object with 1 byte message type.
+     * @param connection connection used to send messages
+     */
+    public MessageCodec(Connection connection) {
+        this(connection, TYPE_BYTE, BufferPool.getDefault());
+    }
+
+    /**
+     * Init MessageCodec object
+     * @param connection connection used to send messages
+     * @param typeLength {@link #TYPE_BYTE} or {@link #TYPE_SHORT}
+     * @param bufferPool pool of send buffers
+     */
+    public MessageCodec(Connection connection, int typeLength, BufferPool bufferPool) {
+        if(typeLength != TYPE_BYTE && typeLength != TYPE_SHORT) {
+            throw new IllegalArgumentException("Invalid type length : " + typeLength);
+        }
+        this.connection = connection;
+        this.typeLength = typeLength;
+        this.bufferPool = bufferPool;
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+    }
+
+    /**
+     * Register message type, registered type is replaced.
+     * @param type message type
+     * @param flyweight flyweight used to read received messages of this type, used on reader thread only
+     * @param messageListener BluetoothListener.onMessageListener
+     */
+    public synchronized <T extends Flyweight> void register(int type, T flyweight, BluetoothListener.onMessageListener<T> messageListener) {
+        checkType(type);
+        setRegistration(type, new Registration<>(flyweight, messageListener));
+    }
+
+    /**
+     * Remove registered message type.
+     * @param type message type
+     */
+    public synchronized void unregister(int type) {
+        checkType(type);
+        setRegistration(type, null);
+    }
+
+    /**
+     * Start new message, flyweight is wrapped around a pooled buffer to write its fields.
+     * Send it with {@link #send(Flyweight)}.
+     * @param type message type
+     * @param flyweight flyweight used to write message
+     * @param length payload length
+     * @return flyweight
+     */
+    public <T extends Flyweight> T newMessage(int type, T flyweight, int length) {
+        checkType(type);
+        byte[] buffer = bufferPool.acquire(typeLength + length);
+        if(typeLength == TYPE_SHORT) {
+            buffer[0] = (byte) (type >>> 8);
+            buffer[1] = (byte) type;
+        }
+        else {
+            buffer[0] = (byte) type;
+        }
+        flyweight.wrap(buffer, typeLength, length);
+        return flyweight;
+    }
+
+    /**
+     * Send message started with {@link #newMessage}, its buffer goes back to pool.
+     * @param message flyweight of message
+     * @return true if message send successfully
+     */
+    public boolean send(Flyweight message) {
+        byte[] buffer = message.getBuffer();
+        if(buffer == null || message.getOffset() != typeLength) {
+            throw new IllegalStateException("Message is not started with newMessage");
+        }
+        boolean isSent = connection.send(buffer, 0, typeLength + message.getLength());
+        message.wrap(null, 0, 0);
+        bufferPool.release(buffer);
+        return isSent;
+    }
+
+    /**
+     * Get number of decoded messages.
+     * @return decoded count
+     */
+    public long getDecodedCount() {
+        return decodedCount;
+    }
+
+    /**
+     * Get number of received messages with type not registered.
+     * @return unknown type count
+     */
+    public long getUnknownTypeCount() {
+        return unknownTypeCount;
+    }
+
+    /**
+     * Get number of received messages shorter than minimum length of their type.
+     * @return invalid length count
+     */
+    public long getInvalidLengthCount() {
+        return invalidLengthCount;
+    }
+
+    /**
+     * Stop decoding received messages.
+     */
+    public void close() {
+        SendReceive.getInstance().removeOnRawReceiveListener(this);
+    }
+
+
+    private void checkType(int type) {
+        if(type < 0 || type >= 1 << (typeLength * 8)) {
+            throw new IllegalArgumentException("Invalid message type : " + type);
+        }
+    }
+
+    // copy changed page, readers keep using old pages, call with lock
+    private void setRegistration(int type, Registration<?> registration) {
+        Registration<?>[][] newRegistrations = registrations.clone();
+        Registration<?>[] page = newRegistrations[type >>> 8];
+        page = page == null ? new Registration<?>[256] : page.clone();
+        page[type & 0xFF] = registration;
+        newRegistrations[type >>> 8] = page;
+        registrations = newRegistrations;
+    }
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        if(length < typeLength) {
+            invalidLengthCount++;
+            return;
+        }
+        int type = buffer[offset] & 0xFF;
+        if(typeLength == TYPE_SHORT) {
+            type = (type << 8) | (buffer[offset + 1] & 0xFF);
+        }
+        Registration<?>[] page = registrations[type >>> 8];
+        Registration<?> registration = page != null ? page[type & 0xFF] : null;
+        if(registration == null) {
+            unknownTypeCount++;
+            return;
+        }
+        if(length - typeLength < registration.flyweight.getMinLength()) {
+            invalidLengthCount++;
+            return;
+        }
+        decodedCount++;
+        registration.dispatch(type, buffer, offset + typeLength, length - typeLength);
+    }
+
+
+    // Flyweight and listener of one message type
+    private static final class Registration<T extends Flyweight> {
+        private final T flyweight;
+        private final BluetoothListener.onMessageListener<T> messageListener;
+
+        private Registration(T flyweight, BluetoothListener.onMessageListener<T> messageListener) {
+            this.flyweight = flyweight;
+            this.messageListener = messageListener;
+        }
+
+        private void dispatch(int type, byte[] buffer, int offset, int length) {
+            flyweight.wrap(buffer, offset, length);
+            try {
+                messageListener.onMessage(type, flyweight);
+            }
+            finally {
+                flyweight.wrap(null, 0, 0);
+            }
+        }
+    }
+}
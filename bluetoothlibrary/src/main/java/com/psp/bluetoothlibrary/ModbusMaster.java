@@ -0,0 +1,856 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * ModbusMaster class sends Modbus RTU requests over a {@link Connection} (Bluetooth to serial bridge) :
+ * <p>- Requests are queued and sent one at a time with inter frame silence, next request is sent right after it.
+ * <p>- Requests get CRC-16/MODBUS from lookup table, responses are joined across reads and checked,
+ * bytes left from an earlier try are dropped and a response is searched after stray bytes.
+ * <p>- Timeout and retries per request.
+ * <p>- Poll groups read registers at a fixed rate, adjacent reads of a group are merged into one request.
+ * <p>Responses are decoded on the reader thread, listeners are called on main thread.
+ */
+public class ModbusMaster implements BluetoothListener.onRawReceiveListener {
+
+    /**
+     * Function code of read holding registers.
+     */
+    public static final int READ_HOLDING_REGISTERS = 0x03;
+
+    /**
+     * Function code of read input registers.
+     */
+    public static final int READ_INPUT_REGISTERS = 0x04;
+
+    /**
+     * Function code of write single register.
+     */
+    public static final int WRITE_SINGLE_REGISTER = 0x06;
+
+    /**
+     * Function code of write multiple registers.
+     */
+    public static final int WRITE_MULTIPLE_REGISTERS = 0x10;
+
+    /**
+     * It indicates no valid response received within timeout after all retries.
+     */
+    public static final int TIMEOUT = 431;
+
+    /**
+     * It indicates request could not be sent.
+     */
+    public static final int SEND_FAILED = 432;
+
+    /**
+     * It indicates master is closed before response received.
+     */
+    public static final int CLOSED = 433;
+
+    private static final int MAX_READ_REGISTERS = 125;
+    private static final int MAX_WRITE_REGISTERS = 123;
+    private static final int EXCEPTION_FLAG = 0x80;
+    private static final int EXCEPTION_LENGTH = 5;
+
+    private final Connection connection;
+
+    // Request state, changed with lock
+    private final Object lock = new Object();
+    private final Crc requestCrc = Crc.crc16Modbus();
+    private final Queue<Transaction> waitingTransactions = new ArrayDeque<>();
+    private Transaction currentTransaction = null;
+    private boolean isSendScheduled = false;
+    private long lastFrameNanos = 0; // end of last request or response
+    private boolean isClosed = false;
+
+    private volatile long interFrameNanos = interFrameNanos(9600);
+    private volatile long timeout = 1000;
+    private volatile int retries = 1;
+    private volatile int maxMergeGap = 0;
+    private final List<PollGroup> pollGroups = new CopyOnWriteArrayList<>();
+
+    // Receive state, used on reader thread only
+    private final Crc responseCrc = Crc.crc16Modbus();
+    private byte[] receiveBuffer = new byte[256];
+    private int receiveLength = 0;
+    private Transaction receiveTransaction = null; // request and try the buffered bytes belong to
+    private int receiveTry = 0;
+
+    private final LatencyStats latencyStats = new LatencyStats();
+    private volatile long timeoutCount = 0;
+    private volatile long retryCount = 0;
+    private volatile long invalidResponseCount = 0;
+
+
+    /**
+     * Init ModbusMaster object
+     * @param connection connection used to send requests
+     */
+    public ModbusMaster(Connection connection) {
+        this.connection = connection;
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+    }
+
+    /**
+     * Set serial baud rate of slaves, it sets inter frame silence (3.5 characters, minimum 1.75 ms). Default is 9600.
+     * @param baudRate baud rate
+     */
+    public void setBaudRate(int baudRate) {
+        this.interFrameNanos = interFrameNanos(baudRate);
+    }
+
+    /**
+     * Set response timeout of each try. Default is 1 sec.
+     * @param timeoutMillis timeout (in milliseconds)
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    /**
+     * Set number of times a request is sent again after timeout or invalid response. Default is 1.
+     * @param retries retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Set maximum unused registers between two reads of a poll group that are merged into one request. Default is 0.
+     * @param maxMergeGap maximum gap (in registers)
+     */
+    public void setMaxMergeGap(int maxMergeGap) {
+        this.maxMergeGap = maxMergeGap;
+        for (PollGroup pollGroup : pollGroups) {
+            pollGroup.invalidateMerge();
+        }
+    }
+
+    /**
+     * Read holding registers (function 0x03).
+     * @param slaveId slave address
+     * @param address first register address
+     * @param count number of registers, 1 to 125
+     * @param responseListener BluetoothListener.onModbusResponseListener, called on main thread
+     */
+    public void readHoldingRegisters(int slaveId, int address, int count, BluetoothListener.onModbusResponseListener responseListener) {
+        read(slaveId, READ_HOLDING_REGISTERS, address, count, responseListener);
+    }
+
+    /**
+     * Read input registers (function 0x04).
+     * @param slaveId slave address
+     * @param address first register address
+     * @param count number of registers, 1 to 125
+     * @param responseListener BluetoothListener.onModbusResponseListener, called on main thread
+     */
+    public void readInputRegisters(int slaveId, int address, int count, BluetoothListener.onModbusResponseListener responseListener) {
+        read(slaveId, READ_INPUT_REGISTERS, address, count, responseListener);
+    }
+
+    /**
+     * Write single register (function 0x06).
+     * @param slaveId slave address
+     * @param address register address
+     * @param value register value
+     * @param responseListener BluetoothListener.onModbusResponseListener, called on main thread, can be null
+     */
+    public void writeSingleRegister(int slaveId, int address, int value, BluetoothListener.onModbusResponseListener responseListener) {
+        byte[] pdu = {(byte) WRITE_SINGLE_REGISTER, (byte) (address >>> 8), (byte) address, (byte) (value >>> 8), (byte) value};
+        enqueue(new Transaction(slaveId, WRITE_SINGLE_REGISTER, address, new int[] {value & 0xFFFF}, pdu, responseListener));
+    }
+
+    /**
+     * Write multiple registers (function 0x10).
+     * @param slaveId slave address
+     * @param address first register address
+     * @param values register values, 1 to 123 registers
+     * @param responseListener BluetoothListener.onModbusResponseListener, called on main thread, can be null
+     */
+    public void writeMultipleRegisters(int slaveId, int address, int[] values, BluetoothListener.onModbusResponseListener responseListener) {
+        if(values.length < 1 || values.length > MAX_WRITE_REGISTERS) {
+            throw new IllegalArgumentException("Invalid register count : " + values.length);
+        }
+        byte[] pdu = new byte[6 + values.length * 2];
+        pdu[0] = (byte) WRITE_MULTIPLE_REGISTERS;
+        pdu[1] = (byte) (address >>> 8);
+        pdu[2] = (byte) address;
+        pdu[3] = (byte) (values.length >>> 8);
+        pdu[4] = (byte) values.length;
+        pdu[5] = (byte) (values.length * 2);
+        for (int i = 0; i < values.length; i++) {
+            pdu[6 + i * 2] = (byte) (values[i] >>> 8);
+            pdu[7 + i * 2] = (byte) values[i];
+        }
+        int[] written = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            written[i] = values[i] & 0xFFFF;
+        }
+        enqueue(new Transaction(slaveId, WRITE_MULTIPLE_REGISTERS, address, written, pdu, responseListener));
+    }
+
+    /**
+     * Add poll group, its reads are sent every period. Group is started at once.
+     * @param periodMillis poll period (in milliseconds)
+     * @return PollGroup
+     */
+    public PollGroup addPollGroup(long periodMillis) {
+        PollGroup pollGroup = new PollGroup(periodMillis);
+        pollGroups.add(pollGroup);
+        pollGroup.start();
+        return pollGroup;
+    }
+
+    /**
+     * Stop and remove poll group.
+     * @param pollGroup PollGroup
+     */
+    public void removePollGroup(PollGroup pollGroup) {
+        pollGroups.remove(pollGroup);
+        pollGroup.stop();
+    }
+
+    /**
+     * Get number of requests waiting in queue.
+     * @return queued requests, not including request in flight
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return waitingTransactions.size();
+        }
+    }
+
+    /**
+     * Get latency stats of answered requests.
+     * @return LatencyStats
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Get number of requests failed with {@link #TIMEOUT}.
+     * @return timeout count
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Get number of requests sent again.
+     * @return retry count
+     */
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Get number of responses with invalid CRC or not matching request.
+     * @return invalid response count
+     */
+    public long getInvalidResponseCount() {
+        return invalidResponseCount;
+    }
+
+    /**
+     * Close master, poll groups are stopped and pending requests fail with {@link #CLOSED}.
+     */
+    public void close() {
+        SendReceive.getInstance().removeOnRawReceiveListener(this);
+        for (PollGroup pollGroup : pollGroups) {
+            pollGroup.stop();
+        }
+        pollGroups.clear();
+        List<Transaction> pending;
+        synchronized (lock) {
+            isClosed = true;
+            pending = new ArrayList<>(waitingTransactions);
+            if(currentTransaction != null) {
+                pending.add(currentTransaction);
+                currentTransaction = null;
+            }
+            waitingTransactions.clear();
+        }
+        for (Transaction transaction : pending) {
+            fail(transaction, CLOSED);
+        }
+    }
+
+
+    // 3.5 characters of 11 bits, fixed 1.75 ms above 19200 baud
+    private static long interFrameNanos(int baudRate) {
+        if(baudRate > 19200) {
+            return 1750000L;
+        }
+        return 38500000000L / baudRate;
+    }
+
+    private void read(int slaveId, int function, int address, int count, BluetoothListener.onModbusResponseListener responseListener) {
+        if(count < 1 || count > MAX_READ_REGISTERS) {
+            throw new IllegalArgumentException("Invalid register count : " + count);
+        }
+        enqueue(newRead(slaveId, function, address, count, responseListener));
+    }
+
+    private Transaction newRead(int slaveId, int function, int address, int count, BluetoothListener.onModbusResponseListener responseListener) {
+        byte[] pdu = {(byte) function, (byte) (address >>> 8), (byte) address, (byte) (count >>> 8), (byte) count};
+        return new Transaction(slaveId, function, address, count, pdu, responseListener);
+    }
+
+    private void enqueue(Transaction transaction) {
+        synchronized (lock) {
+            if(!isClosed) {
+                // frame is slave id | pdu | crc (low byte first)
+                byte[] frame = new byte[transaction.pdu.length + 3];
+                frame[0] = (byte) transaction.slaveId;
+                System.arraycopy(transaction.pdu, 0, frame, 1, transaction.pdu.length);
+                requestCrc.reset();
+                requestCrc.update(frame, 0, frame.length - 2);
+                requestCrc.writeValue(frame, frame.length - 2);
+                transaction.frame = frame;
+                waitingTransactions.add(transaction);
+            }
+        }
+        if(transaction.frame == null) {
+            fail(transaction, CLOSED);
+            return;
+        }
+        sendNext();
+    }
+
+    // Send next request if none is in flight and inter frame silence is over
+    private void sendNext() {
+        Transaction transaction;
+        synchronized (lock) {
+            if(isClosed || currentTransaction != null || isSendScheduled || waitingTransactions.isEmpty()) {
+                return;
+            }
+            long waitNanos = lastFrameNanos + interFrameNanos - System.nanoTime();
+            if(lastFrameNanos != 0 && waitNanos > 0) {
+                isSendScheduled = true;
+                Scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (lock) {
+                            isSendScheduled = false;
+                        }
+                        sendNext();
+                    }
+                }, Math.max(1, waitNanos / 1000000L));
+                return;
+            }
+            transaction = waitingTransactions.poll();
+            currentTransaction = transaction;
+        }
+        transmit(transaction);
+    }
+
+    private void transmit(final Transaction transaction) {
+        synchronized (lock) {
+            if(currentTransaction != transaction) {
+                return;
+            }
+            transaction.tries++;
+            transaction.sentNanos = System.nanoTime();
+            lastFrameNanos = transaction.sentNanos;
+            Scheduler.cancel(transaction.timeoutFuture);
+            transaction.timeoutFuture = Scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(transaction);
+                }
+            }, timeout);
+        }
+        if(!connection.send(transaction.frame)) {
+            if(finish(transaction)) {
+                fail(transaction, SEND_FAILED);
+                sendNext();
+            }
+        }
+    }
+
+    // Remove transaction from flight, returns false if it is already finished
+    private boolean finish(Transaction transaction) {
+        synchronized (lock) {
+            if(currentTransaction != transaction) {
+                return false;
+            }
+            currentTransaction = null;
+            lastFrameNanos = System.nanoTime();
+        }
+        Scheduler.cancel(transaction.timeoutFuture);
+        return true;
+    }
+
+    private void onTimeout(Transaction transaction) {
+        retryOrFail(transaction, true);
+    }
+
+    private void retryOrFail(final Transaction transaction, boolean isTimeout) {
+        synchronized (lock) {
+            if(currentTransaction != transaction) {
+                return;
+            }
+            if(transaction.tries <= retries) {
+                // send again after silence, keep it in flight
+                retryCount++;
+                lastFrameNanos = System.nanoTime();
+                Scheduler.cancel(transaction.timeoutFuture);
+                transaction.timeoutFuture = Scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        transmit(transaction);
+                    }
+                }, Math.max(1, interFrameNanos / 1000000L));
+                return;
+            }
+        }
+        if(finish(transaction)) {
+            if(isTimeout) {
+                timeoutCount++;
+            }
+            fail(transaction, TIMEOUT);
+            sendNext();
+        }
+    }
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        final Transaction transaction;
+        final int tries;
+        synchronized (lock) {
+            transaction = currentTransaction;
+            tries = transaction != null ? transaction.tries : 0;
+        }
+        if(transaction == null) {
+            receiveLength = 0; // no request in flight, drop data
+            return;
+        }
+        if(transaction != receiveTransaction || tries != receiveTry) {
+            // request is sent again or a new one is sent, drop partial bytes of the earlier try
+            receiveTransaction = transaction;
+            receiveTry = tries;
+            receiveLength = 0;
+        }
+
+        // append to receive buffer
+        if(receiveLength + length > receiveBuffer.length) {
+            receiveBuffer = Arrays.copyOf(receiveBuffer, Math.max(receiveBuffer.length * 2, receiveLength + length));
+        }
+        System.arraycopy(buffer, offset, receiveBuffer, receiveLength, length);
+        receiveLength += length;
+
+        boolean isException;
+        while (true) {
+            if(receiveLength < 2) {
+                return;
+            }
+            isException = (receiveBuffer[1] & 0xFF) == (transaction.function | EXCEPTION_FLAG);
+            int expectedLength = isException ? EXCEPTION_LENGTH : transaction.responseLength;
+            if(receiveLength < expectedLength) {
+                return;
+            }
+            responseCrc.reset();
+            responseCrc.update(receiveBuffer, 0, expectedLength - 2);
+            if(responseCrc.getValue() == responseCrc.readValue(receiveBuffer, expectedLength - 2)
+                    && (receiveBuffer[0] & 0xFF) == transaction.slaveId
+                    && (isException || isValidResponse(transaction))) {
+                break;
+            }
+
+            // not a response of this request, it may start later if late bytes of an earlier frame came first
+            int next = nextFrameStart(transaction.slaveId);
+            if(next < 0) {
+                receiveLength = 0;
+                invalidResponseCount++;
+                retryOrFail(transaction, false);
+                return;
+            }
+            System.arraycopy(receiveBuffer, next, receiveBuffer, 0, receiveLength - next);
+            receiveLength -= next;
+        }
+
+        // complete response, extra bytes are dropped
+        receiveLength = 0;
+        if(!finish(transaction)) {
+            return; // timed out meanwhile
+        }
+
+        long latencyNanos = System.nanoTime() - transaction.sentNanos;
+        latencyStats.record(latencyNanos);
+        if(isException) {
+            fail(transaction, receiveBuffer[2] & 0xFF);
+        }
+        else {
+            int[] values = transaction.values;
+            if(values == null) {
+                values = new int[transaction.count];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = ((receiveBuffer[3 + i * 2] & 0xFF) << 8) | (receiveBuffer[4 + i * 2] & 0xFF);
+                }
+            }
+            respond(transaction, values, latencyNanos / 1000000L);
+        }
+        sendNext();
+    }
+
+    // index of next byte that can start a response of slave, -1 if none
+    private int nextFrameStart(int slaveId) {
+        for (int i = 1; i < receiveLength; i++) {
+            if((receiveBuffer[i] & 0xFF) == slaveId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // function code matches and read response has expected byte count
+    private boolean isValidResponse(Transaction transaction) {
+        if((receiveBuffer[1] & 0xFF) != transaction.function) {
+            return false;
+        }
+        return transaction.values != null || (receiveBuffer[2] & 0xFF) == transaction.count * 2;
+    }
+
+    private void respond(final Transaction transaction, final int[] values, final long latencyMillis) {
+        if(transaction.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    transaction.responseListener.onModbusResponse(transaction.slaveId, transaction.address, values, latencyMillis);
+                }
+            });
+        }
+    }
+
+    private void fail(final Transaction transaction, final int errorCode) {
+        if(transaction.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    transaction.responseListener.onModbusFailure(transaction.slaveId, transaction.address, errorCode);
+                }
+            });
+        }
+    }
+
+
+    // One request
+    private static final class Transaction {
+        private final int slaveId;
+        private final int function;
+        private final int address;
+        private final int count;
+        private final int[] values; // written values, null for reads
+        private final byte[] pdu;
+        private final int responseLength;
+        private final BluetoothListener.onModbusResponseListener responseListener;
+        private byte[] frame = null;
+        private int tries = 0; // changed with lock
+        private long sentNanos = 0;
+        private ScheduledFuture<?> timeoutFuture = null;
+
+        // read request
+        private Transaction(int slaveId, int function, int address, int count, byte[] pdu, BluetoothListener.onModbusResponseListener responseListener) {
+            this.slaveId = slaveId;
+            this.function = function;
+            this.address = address;
+            this.count = count;
+            this.values = null;
+            this.pdu = pdu;
+            this.responseLength = 5 + count * 2;
+            this.responseListener = responseListener;
+        }
+
+        // write request, response echoes address and value or count
+        private Transaction(int slaveId, int function, int address, int[] values, byte[] pdu, BluetoothListener.onModbusResponseListener responseListener) {
+            this.slaveId = slaveId;
+            this.function = function;
+            this.address = address;
+            this.count = values.length;
+            this.values = values;
+            this.pdu = pdu;
+            this.responseLength = 8;
+            this.responseListener = responseListener;
+        }
+    }
+
+
+    /**
+     * PollGroup class reads registers every period, reads are merged into as few requests as possible.
+     */
+    public final class PollGroup {
+        private final long periodMillis;
+        private final List<PollRead> reads = new ArrayList<>(); // changed with group lock
+        private List<MergedRead> mergedReads = null; // null when reads are changed
+        private ScheduledFuture<?> pollFuture = null;
+
+        private int pendingRequests = 0;
+        private long cycleStartNanos = 0;
+        private final LatencyStats cycleLatencyStats = new LatencyStats();
+        private long cycleCount = 0;
+        private long overrunCount = 0;
+
+        private PollGroup(long periodMillis) {
+            this.periodMillis = periodMillis;
+        }
+
+        /**
+         * Add read to group.
+         * @param slaveId slave address
+         * @param function {@link #READ_HOLDING_REGISTERS} or {@link #READ_INPUT_REGISTERS}
+         * @param address first register address
+         * @param count number of registers, 1 to 125
+         * @param responseListener BluetoothListener.onModbusResponseListener, called on main thread every period
+         */
+        public synchronized void addRead(int slaveId, int function, int address, int count,
+                                         BluetoothListener.onModbusResponseListener responseListener) {
+            if(function != READ_HOLDING_REGISTERS && function != READ_INPUT_REGISTERS) {
+                throw new IllegalArgumentException("Invalid read function : " + function);
+            }
+            if(count < 1 || count > MAX_READ_REGISTERS) {
+                throw new IllegalArgumentException("Invalid register count : " + count);
+            }
+            reads.add(new PollRead(slaveId, function, address, count, responseListener));
+            mergedReads = null;
+        }
+
+        /**
+         * Remove all reads of listener.
+         * @param responseListener BluetoothListener.onModbusResponseListener
+         */
+        public synchronized void removeRead(BluetoothListener.onModbusResponseListener responseListener) {
+            for (int i = reads.size() - 1; i >= 0; i--) {
+                if(reads.get(i).responseListener == responseListener) {
+                    reads.remove(i);
+                }
+            }
+            mergedReads = null;
+        }
+
+        /**
+         * Get number of requests sent every period.
+         * @return merged request count
+         */
+        public synchronized int getRequestCount() {
+            return getMergedReads().size();
+        }
+
+        /**
+         * Get time from period start to last response of period.
+         * @return LatencyStats
+         */
+        public LatencyStats getCycleLatencyStats() {
+            return cycleLatencyStats;
+        }
+
+        /**
+         * Get number of finished periods.
+         * @return cycle count
+         */
+        public synchronized long getCycleCount() {
+            return cycleCount;
+        }
+
+        /**
+         * Get number of periods skipped because previous period was not finished.
+         * @return overrun count
+         */
+        public synchronized long getOverrunCount() {
+            return overrunCount;
+        }
+
+        private synchronized void invalidateMerge() {
+            mergedReads = null;
+        }
+
+        private synchronized void start() {
+            if(pollFuture == null) {
+                pollFuture = Scheduler.scheduleRepeating(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                }, periodMillis);
+            }
+        }
+
+        private synchronized void stop() {
+            Scheduler.cancel(pollFuture);
+            pollFuture = null;
+        }
+
+        private void poll() {
+            List<MergedRead> merged;
+            synchronized (this) {
+                if(pendingRequests > 0) {
+                    overrunCount++;
+                    return;
+                }
+                merged = getMergedReads();
+                if(merged.isEmpty()) {
+                    return;
+                }
+                pendingRequests = merged.size();
+                cycleStartNanos = System.nanoTime();
+            }
+            for (MergedRead mergedRead : merged) {
+                enqueue(newRead(mergedRead.slaveId, mergedRead.function, mergedRead.address, mergedRead.count, mergedRead));
+            }
+        }
+
+        // called on main thread after each response of a period
+        private void onRequestFinished() {
+            synchronized (this) {
+                pendingRequests--;
+                if(pendingRequests > 0) {
+                    return;
+                }
+                cycleCount++;
+            }
+            cycleLatencyStats.record(System.nanoTime() - cycleStartNanos);
+        }
+
+        // Sort reads and merge reads of same slave and function that are close, call with group lock
+        private List<MergedRead> getMergedReads() {
+            if(mergedReads != null) {
+                return mergedReads;
+            }
+            List<PollRead> sorted = new ArrayList<>(reads);
+            Collections.sort(sorted, new Comparator<PollRead>() {
+                @Override
+                public int compare(PollRead a, PollRead b) {
+                    if(a.slaveId != b.slaveId) {
+                        return a.slaveId - b.slaveId;
+                    }
+                    if(a.function != b.function) {
+                        return a.function - b.function;
+                    }
+                    return a.address - b.address;
+                }
+            });
+
+            List<MergedRead> merged = new ArrayList<>();
+            MergedRead current = null;
+            for (PollRead read : sorted) {
+                if(current != null && current.slaveId == read.slaveId && current.function == read.function
+                        && read.address <= current.address + current.count + maxMergeGap
+                        && Math.max(current.address + current.count, read.address + read.count) - current.address <= MAX_READ_REGISTERS) {
+                    current.count = Math.max(current.address + current.count, read.address + read.count) - current.address;
+                }
+                else {
+                    current = new MergedRead(read.slaveId, read.function, read.address, read.count);
+                    merged.add(current);
+                }
+                current.reads.add(read);
+            }
+            mergedReads = merged;
+            return merged;
+        }
+
+
+        // One request of period, splits response to its reads
+        private final class MergedRead implements BluetoothListener.onModbusResponseListener {
+            private final int slaveId;
+            private final int function;
+            private final int address;
+            private int count;
+            private final List<PollRead> reads = new ArrayList<>();
+
+            private MergedRead(int slaveId, int function, int address, int count) {
+                this.slaveId = slaveId;
+                this.function = function;
+                this.address = address;
+                this.count = count;
+            }
+
+            // listener error must not stop other reads or next periods
+            @Override
+            public void onModbusResponse(int slaveId, int address, int[] values, long latencyMillis) {
+                try {
+                    for (PollRead read : reads) {
+                        try {
+                            int start = read.address - address;
+                            read.responseListener.onModbusResponse(slaveId, read.address,
+                                    Arrays.copyOfRange(values, start, start + read.count), latencyMillis);
+                        }
+                        catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                finally {
+                    onRequestFinished();
+                }
+            }
+
+            @Override
+            public void onModbusFailure(int slaveId, int address, int errorCode) {
+                try {
+                    for (PollRead read : reads) {
+                        try {
+                            read.responseListener.onModbusFailure(slaveId, read.address, errorCode);
+                        }
+                        catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                finally {
+                    onRequestFinished();
+                }
+            }
+        }
+    }
+
+    // One read of poll group
+    private static final class PollRead {
+        private final int slaveId;
+        private final int function;
+        private final int address;
+        private final int count;
+        private final BluetoothListener.onModbusResponseListener responseListener;
+
+        private PollRead(int slaveId, int function, int address, int count, BluetoothListener.onModbusResponseListener responseListener) {
+            this.slaveId = slaveId;
+            this.function = function;
+            this.address = address;
+            this.count = count;
+            this.responseListener = responseListener;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * PairingQueue class pairs a list of bluetooth devices :
+ * <p>- Configurable number of devices paired at the same time.
+ * <p>- Retry on failure or timeout.
+ * <p>- Result and time for each device.
+ * <p>- Optional PIN / confirmation answer without user input.
+ * <p>Note : most bluetooth stacks bond one device at a time, concurrency above 1 relies on retry.
+ */
+public class PairingQueue {
+
+    private final Context context;
+    private final Handler handler;
+
+    private int concurrency = 1;
+    private int maxRetries = 2;
+    private long pairTimeout = 30*1000;
+    private long retryDelay = 1000;
+
+    private BluetoothListener.onPairingQueueListener pairingQueueListener = null;
+    private BluetoothListener.onPairingPinListener pairingPinListener = null;
+
+    // Queue state, used on main thread only
+    private final Queue<Job> waitingJobs = new ArrayDeque<>();
+    private final Map<String, Job> activeJobs = new HashMap<>(); // key is upper case mac address
+    private boolean isRunning = false;
+    private boolean isRegister = false; // this boolean is check broadcast receiver is register or not
+    private long startTime = 0;
+    private int pairedCount = 0;
+    private int failedCount = 0;
+
+
+    /**
+     * Init PairingQueue object
+     * @param context the current context you use
+     */
+    public PairingQueue(Context context) {
+        this.context = context;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Set number of devices paired at the same time. Default is 1.
+     * @param concurrency number of devices, at least 1
+     */
+    public void setConcurrency(int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency : " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Set number of retries of a failed device. Default is 2.
+     * @param maxRetries number of retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Set time to wait for pair result of one attempt. Default is 30 sec.
+     * @param timeoutMillis pair timeout (in milliseconds)
+     */
+    public void setPairTimeout(long timeoutMillis) {
+        this.pairTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set time to wait before retry. Default is 1 sec.
+     * @param retryDelayMillis retry delay (in milliseconds)
+     */
+    public void setRetryDelay(long retryDelayMillis) {
+        this.retryDelay = Math.max(0, retryDelayMillis);
+    }
+
+    /**
+     * Set pairing queue listener, you can get result of each device with this listener.
+     * @param pairingQueueListener BluetoothListener.onPairingQueueListener
+     */
+    public void setOnPairingQueueListener(BluetoothListener.onPairingQueueListener pairingQueueListener) {
+        this.pairingQueueListener = pairingQueueListener;
+    }
+
+    /**
+     * Set pairing pin listener, you can answer pairing requests without user input with this listener.
+     * <p>Note : passkey confirmation needs BLUETOOTH_PRIVILEGED permission, without it the user is asked.
+     * @param pairingPinListener BluetoothListener.onPairingPinListener, null to let user answer
+     */
+    public void setOnPairingPinListener(BluetoothListener.onPairingPinListener pairingPinListener) {
+        this.pairingPinListener = pairingPinListener;
+    }
+
+    /**
+     * Start pairing devices. Already paired devices are reported as paired with 0 attempts.
+     * Call from main thread.
+     * @param addresses list of Bluetooth device mac address
+     * @return true if queue started, false if queue is already running or bluetooth is not supported
+     */
+    public boolean start(List<String> addresses) {
+        if(isRunning || !Bluetooth.isBluetoothSupported() || addresses == null) {
+            return false;
+        }
+        isRunning = true;
+        startTime = System.nanoTime();
+        pairedCount = 0;
+        failedCount = 0;
+        Set<String> keys = new HashSet<>();
+        for (String address : addresses) {
+            // skip invalid and duplicate addresses
+            if(address != null && keys.add(address.toUpperCase(Locale.US))) {
+                waitingJobs.add(new Job(address));
+            }
+        }
+        registerBroadcastReceiver();
+        pump();
+        return true;
+    }
+
+    /**
+     * Cancel queue, running pairing is cancelled and no more results are reported.
+     */
+    public void cancel() {
+        if(!isRunning) {
+            return;
+        }
+        for (Job job : activeJobs.values()) {
+            handler.removeCallbacks(job.timeoutRunnable);
+            handler.removeCallbacks(job.retryRunnable);
+            HiddenBluetoothApi.cancelBondProcess(job.device);
+        }
+        activeJobs.clear();
+        waitingJobs.clear();
+        finish(false);
+    }
+
+    /**
+     * isRunning method is used to check queue is running or not.
+     * @return true if queue is running
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+
+    // Start waiting jobs till concurrency is reached
+    private void pump() {
+        while (isRunning && activeJobs.size() < concurrency && !waitingJobs.isEmpty()) {
+            Job job = waitingJobs.poll();
+            activeJobs.put(job.key, job);
+            job.startTime = System.nanoTime();
+            attempt(job);
+        }
+
+        if(isRunning && activeJobs.isEmpty() && waitingJobs.isEmpty()) {
+            finish(true);
+        }
+    }
+
+    // Send pair request of job
+    private void attempt(Job job) {
+        job.device = Bluetooth.getRemoteDevice(job.address);
+        if(job.device == null) {
+            // invalid address, retry does not help
+            complete(job, false);
+            return;
+        }
+        if(job.device.getBondState() == BluetoothDevice.BOND_BONDED) {
+            complete(job, true);
+            return;
+        }
+
+        job.attempts++;
+        boolean isSent = false;
+        try {
+            isSent = job.device.createBond();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if(isSent) {
+            job.isBonding = true;
+            handler.postDelayed(job.timeoutRunnable, pairTimeout);
+        }
+        else {
+            retryOrFail(job);
+        }
+    }
+
+    private void retryOrFail(Job job) {
+        handler.removeCallbacks(job.timeoutRunnable);
+        handler.removeCallbacks(job.retryRunnable);
+        if(job.attempts <= maxRetries) {
+            handler.postDelayed(job.retryRunnable, retryDelay);
+        }
+        else {
+            complete(job, false);
+        }
+    }
+
+    // Report result of job and start next
+    private void complete(Job job, boolean isPaired) {
+        handler.removeCallbacks(job.timeoutRunnable);
+        handler.removeCallbacks(job.retryRunnable);
+        activeJobs.remove(job.key);
+        if(isPaired) {
+            pairedCount++;
+        }
+        else {
+            failedCount++;
+        }
+        if(pairingQueueListener != null) {
+            pairingQueueListener.onDevicePairResult(job.address, isPaired, job.attempts, elapsedMillis(job.startTime));
+        }
+        pump();
+    }
+
+    private void finish(boolean isReport) {
+        isRunning = false;
+        unRegisterBroadcastReceiver();
+        if(isReport && pairingQueueListener != null) {
+            pairingQueueListener.onPairingQueueFinished(pairedCount, failedCount, elapsedMillis(startTime));
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    private void registerBroadcastReceiver() {
+        if(!isRegister) {
+            IntentFilter intentFilter = new IntentFilter();
+            intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            intentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
+            intentFilter.setPriority(1000); // receive pairing request before system dialog
+            context.registerReceiver(pairingReceiver, intentFilter);
+            isRegister = true;
+        }
+    }
+
+    private void unRegisterBroadcastReceiver() {
+        if(isRegister) {
+            context.unregisterReceiver(pairingReceiver);
+            isRegister = false;
+        }
+    }
+
+    // One receiver for all devices of queue, result is matched by mac address
+    private final BroadcastReceiver pairingReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if(action == null || device == null || device.getAddress() == null) {
+                return;
+            }
+            Job job = activeJobs.get(device.getAddress().toUpperCase(Locale.US));
+            if(job == null) {
+                return;
+            }
+
+            if(action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+                int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
+                if(state == BluetoothDevice.BOND_BONDED) {
+                    complete(job, true);
+                }
+                else if(state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDING && job.isBonding) {
+                    // attempt failed, ignored if the attempt was already ended by timeout
+                    job.isBonding = false;
+                    retryOrFail(job);
+                }
+            }
+            else if(action.equals(BluetoothDevice.ACTION_PAIRING_REQUEST) && pairingPinListener != null) {
+                int variant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, BluetoothDevice.ERROR);
+                String pin = pairingPinListener.onPinRequested(device, variant);
+                if(pin != null) {
+                    try {
+                        if(variant == BluetoothDevice.PAIRING_VARIANT_PIN) {
+                            device.setPin(pin.getBytes());
+                        }
+                        else {
+                            device.setPairingConfirmation(true);
+                        }
+                        abortBroadcast(); // do not show system dialog
+                    }
+                    catch (Exception e) {
+                        // no permission, user answers system dialog
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    };
+
+
+    // One device of queue
+    private final class Job {
+        private final String address;
+        private final String key;
+        private BluetoothDevice device = null;
+        private int attempts = 0;
+        private long startTime = 0;
+        private boolean isBonding = false; // bond request of current attempt is running
+
+        private final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if(!isBonding) {
+                    return;
+                }
+                // end attempt before cancel, cancel makes BONDING to NONE broadcast
+                isBonding = false;
+                HiddenBluetoothApi.cancelBondProcess(device);
+                retryOrFail(Job.this);
+            }
+        };
+
+        private final Runnable retryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if(activeJobs.get(key) == Job.this) {
+                    attempt(Job.this);
+                }
+            }
+        };
+
+        private Job(String address) {
+            this.address = address;
+            this.key = address.toUpperCase(Locale.US);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * PipedTransport class is an in-memory {@link Transport}, two transports of a pair are connected to each other.
+ * <p>Data written to one end is read from the other, write blocks while the pipe buffer is full.
+ * Closing one end closes the pair, the other end reads remaining data and then end of stream.
+ */
+public class PipedTransport implements Transport {
+
+    /**
+     * The default pipe buffer size is 64 KB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    private final Pipe inPipe;
+    private final Pipe outPipe;
+    private final String remoteAddress;
+
+    /**
+     * Create connected pair with default buffer size.
+     * @return two transports, data written to one is read from the other
+     */
+    public static PipedTransport[] createPair() {
+        return createPair(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create connected pair.
+     * @param bufferSize buffer size of each direction (in bytes)
+     * @return two transports, data written to one is read from the other
+     */
+    public static PipedTransport[] createPair(int bufferSize) {
+        Pipe aToB = new Pipe(bufferSize);
+        Pipe bToA = new Pipe(bufferSize);
+        return new PipedTransport[] {
+                new PipedTransport(bToA, aToB, "pipe:b"),
+                new PipedTransport(aToB, bToA, "pipe:a")
+        };
+    }
+
+    private PipedTransport(Pipe inPipe, Pipe outPipe, String remoteAddress) {
+        this.inPipe = inPipe;
+        this.outPipe = outPipe;
+        this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inPipe.inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outPipe.outputStream;
+    }
+
+    @Override
+    public void close() {
+        inPipe.close();
+        outPipe.close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // One direction, ring buffer with blocking read and write
+    /*package*/ static final class Pipe {
+        private final byte[] buffer;
+        private int readIndex = 0;
+        private int count = 0;
+        private boolean isClosed = false;
+
+        /*package*/ final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        /*package*/ final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        /*package*/ Pipe(int bufferSize) {
+            buffer = new byte[Math.max(1, bufferSize)];
+        }
+
+        // Blocks until data is available, returns -1 at end of stream
+        /*package*/ synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while (count == 0) {
+                if(isClosed) {
+                    return -1;
+                }
+                await();
+            }
+            int total = Math.min(len, count);
+            int first = Math.min(total, buffer.length - readIndex);
+            System.arraycopy(buffer, readIndex, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, total - first);
+            readIndex = (readIndex + total) % buffer.length;
+            count -= total;
+            notifyAll();
+            return total;
+        }
+
+        // Blocks while buffer is full
+        /*package*/ synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buffer.length && !isClosed) {
+                    await();
+                }
+                if(isClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int writeIndex = (readIndex + count) % buffer.length;
+                int chunk = Math.min(len, Math.min(buffer.length - count, buffer.length - writeIndex));
+                System.arraycopy(b, off, buffer, writeIndex, chunk);
+                count += chunk;
+                off += chunk;
+                len -= chunk;
+                notifyAll();
+            }
+        }
+
+        /*package*/ synchronized int available() {
+            return count;
+        }
+
+        /*package*/ synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
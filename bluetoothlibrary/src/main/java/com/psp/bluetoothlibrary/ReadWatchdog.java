@@ -0,0 +1,143 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * ReadWatchdog class watches the time since the last received byte of a connection.
+ * <p>The reader thread only stores a timestamp per read, the check runs on the shared {@link Scheduler} thread.
+ */
+/*package*/ final class ReadWatchdog implements Runnable {
+
+    private static final long MIN_CHECK_INTERVAL = 50; // milliseconds
+
+    private final long idleTimeoutMillis; // 0 if idle event is disabled
+    private final long stallTimeoutMillis; // 0 if stall event is disabled
+    private final boolean isCloseOnStall;
+    private final BluetoothListener.onReadWatchdogListener watchdogListener;
+
+    private volatile long lastReadNanos = System.nanoTime(); // time of the last received byte
+    private Runnable closeAction = null; // closes the connection to unblock the reader
+    private ScheduledFuture<?> future = null;
+
+    // Only used on scheduler thread
+    private boolean isIdleReported = false;
+    private boolean isStallReported = false;
+
+
+    ReadWatchdog(long idleTimeoutMillis, long stallTimeoutMillis, boolean isCloseOnStall,
+                 BluetoothListener.onReadWatchdogListener watchdogListener) {
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+        this.stallTimeoutMillis = Math.max(0, stallTimeoutMillis);
+        this.isCloseOnStall = isCloseOnStall;
+        this.watchdogListener = watchdogListener;
+    }
+
+    // start checking, closeAction is called on stall if close on stall is enabled
+    synchronized void start(Runnable closeAction) {
+        if(future == null) {
+            long timeout = minTimeout();
+            if(timeout > 0) {
+                this.closeAction = closeAction;
+                lastReadNanos = System.nanoTime();
+                future = Scheduler.scheduleRepeating(this, Math.max(MIN_CHECK_INTERVAL, timeout / 4));
+            }
+        }
+    }
+
+    // stop checking
+    synchronized void stop() {
+        Scheduler.cancel(future);
+        future = null;
+        closeAction = null;
+    }
+
+    // called by reader thread for every read
+    void onRead() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    // Get milliseconds since the last received byte
+    long getIdleMillis() {
+        return (System.nanoTime() - lastReadNanos) / 1000000L;
+    }
+
+    // Smallest enabled timeout
+    private long minTimeout() {
+        if(idleTimeoutMillis > 0 && stallTimeoutMillis > 0) {
+            return Math.min(idleTimeoutMillis, stallTimeoutMillis);
+        }
+        return Math.max(idleTimeoutMillis, stallTimeoutMillis);
+    }
+
+    @Override
+    public void run() {
+        final long idleMillis = getIdleMillis();
+
+        if(idleMillis < minTimeout()) {
+            // data received again, re-arm events
+            isIdleReported = false;
+            isStallReported = false;
+            return;
+        }
+
+        if(idleTimeoutMillis > 0 && idleMillis >= idleTimeoutMillis && !isIdleReported) {
+            isIdleReported = true;
+            postResult(false, idleMillis);
+        }
+
+        if(stallTimeoutMillis > 0 && idleMillis >= stallTimeoutMillis && !isStallReported) {
+            isStallReported = true;
+            postResult(true, idleMillis);
+
+            Runnable action;
+            synchronized (this) {
+                action = closeAction;
+            }
+            if(isCloseOnStall && action != null) {
+                action.run();
+            }
+        }
+    }
+
+    // Send event to watchdog listener on main thread
+    private void postResult(final boolean isStalled, final long idleMillis) {
+        if(watchdogListener == null) {
+            return;
+        }
+        Dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                if(isStalled) {
+                    watchdogListener.onReadStalled(idleMillis);
+                }
+                else {
+                    watchdogListener.onReadIdle(idleMillis);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,655 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * ReliableChannel class delivers data over a {@link Connection} even if bytes are lost on the link :
+ * <p>- Each send is one frame with sequence number and checksum.
+ * <p>- Many frames are sent without waiting for acknowledgement (sliding window), more frames wait in queue.
+ * <p>- Receiver acknowledges frames received out of order, only lost frames are sent again (selective retransmit).
+ * <p>- Retransmit timeout follows measured round trip time, frames are sent again on the channel's own thread.
+ * <p>- Sequences start again on each new connection, data not acknowledged before is sent again.
+ * <p>Both devices must use ReliableChannel (or same frame format) with same window size.
+ * Frames are decoded on the reader thread, data is delivered in order on main thread.
+ * <p>Frame format : 0xA7 | type (1 byte) | sequence (2 bytes) | length (2 bytes) | header CRC-8 (1 byte) | payload | CRC-16/CCITT (2 bytes).
+ * Header has its own checksum so a corrupted length is found before waiting for the payload.
+ */
+public class ReliableChannel implements BluetoothListener.onRawReceiveListener, Stage.Resettable {
+
+    /**
+     * It indicates a frame is not acknowledged after maximum retransmits.
+     */
+    public static final int RETRANSMIT_LIMIT = 411;
+
+    private static final int MAGIC = 0xA7;
+    private static final int TYPE_DATA = 1;
+    private static final int TYPE_ACK = 2;
+    private static final int HEADER_LENGTH = 7;
+    private static final int CRC_LENGTH = 2;
+    private static final int MAX_PAYLOAD_LENGTH = 4096;
+    private static final int SEQUENCE_MASK = 0xFFFF;
+    private static final int SACK_BITS = 32; // frames after cumulative ack reported in ack
+
+    private static final long INITIAL_RTO = 1000;
+    private static final long MIN_RTO = 200;
+    private static final long MAX_RTO = 10*1000;
+    private static final int FAST_RETRANSMIT_ACKS = 3;
+
+    private final Connection connection;
+    private final int windowSize;
+    private final int mask;
+    private final BluetoothListener.onReliableReceiveListener receiveListener;
+
+    // Send state, changed with lock
+    private final Object lock = new Object();
+    private final Crc sendCrc = Crc.crc16Ccitt();
+    private final Crc sendHeaderCrc = Crc.crc8();
+    private final Frame[] sendWindow; // index is sequence & mask
+    private final ArrayDeque<byte[]> waitingData = new ArrayDeque<>();
+    private final ArrayDeque<Frame> retransmitFrames = new ArrayDeque<>(); // sent again by sender thread
+    private boolean isSendWaiting = false; // sender thread sends waiting data after reset
+    private int baseSequence = 0; // oldest frame not acknowledged
+    private int nextSequence = 0;
+    private int lastAck = -1;
+    private int duplicateAcks = 0;
+    private double smoothedRtt = -1; // milliseconds, -1 till first sample
+    private double rttVariance = 0;
+    private long rto = INITIAL_RTO;
+    private int maxRetransmits = 10;
+    private boolean isClosed = false;
+
+    // Receive state, used on reader thread only
+    private final Crc receiveCrc = Crc.crc16Ccitt();
+    private final Crc receiveHeaderCrc = Crc.crc8();
+    private final byte[][] receiveWindow;
+    private final int[] receiveSequences;
+    private int expectedSequence = 0;
+    private byte[] receiveBuffer = new byte[256];
+    private int receiveLength = 0;
+    private final byte[] ackFrame = new byte[HEADER_LENGTH + 4 + CRC_LENGTH];
+
+    private volatile long sentFrameCount = 0;
+    private volatile long retransmitCount = 0;
+    private volatile long receivedFrameCount = 0;
+    private volatile long duplicateFrameCount = 0;
+    private volatile long invalidFrameCount = 0;
+
+
+    /**
+     * Init ReliableChannel object with window of 16 frames.
+     * @param connection connection used to send frames
+     * @param receiveListener BluetoothListener.onReliableReceiveListener, called on main thread
+     */
+    public ReliableChannel(Connection connection, BluetoothListener.onReliableReceiveListener receiveListener) {
+        this(connection, 16, receiveListener);
+    }
+
+    /**
+     * Init ReliableChannel object
+     * @param connection connection used to send frames
+     * @param windowSize maximum frames sent and not acknowledged, same on both devices
+     * @param receiveListener BluetoothListener.onReliableReceiveListener, called on main thread
+     */
+    public ReliableChannel(Connection connection, int windowSize, BluetoothListener.onReliableReceiveListener receiveListener) {
+        if(windowSize < 1 || windowSize > 1024) {
+            throw new IllegalArgumentException("Invalid window size : " + windowSize);
+        }
+        this.connection = connection;
+        this.windowSize = windowSize;
+        this.receiveListener = receiveListener;
+
+        int size = Integer.highestOneBit(windowSize * 2 - 1);
+        this.mask = size - 1;
+        this.sendWindow = new Frame[size];
+        this.receiveWindow = new byte[size][];
+        this.receiveSequences = new int[size];
+
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+        Thread senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "ReliableChannel");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Set maximum retransmits of one frame, channel fails with {@link #RETRANSMIT_LIMIT} after it. Default is 10.
+     * @param maxRetransmits maximum retransmits
+     */
+    public void setMaxRetransmits(int maxRetransmits) {
+        this.maxRetransmits = maxRetransmits;
+    }
+
+    /**
+     * Send data, it waits in queue if window is full.
+     * @param data data to be send, maximum 4096 bytes
+     * @return true if data is accepted, false if channel is closed
+     */
+    public boolean send(byte[] data) {
+        if(data.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Data too long : " + data.length);
+        }
+        Frame frame = null;
+        synchronized (lock) {
+            if(isClosed) {
+                return false;
+            }
+            if(isWindowFree() && waitingData.isEmpty()) {
+                frame = newFrame(data);
+            }
+            else {
+                waitingData.add(data);
+            }
+        }
+        if(frame != null) {
+            transmit(frame, false);
+        }
+        return true;
+    }
+
+    /**
+     * Get number of frames sent and not acknowledged.
+     * @return frames in flight
+     */
+    public int getInFlightCount() {
+        synchronized (lock) {
+            return (nextSequence - baseSequence) & SEQUENCE_MASK;
+        }
+    }
+
+    /**
+     * Get number of data waiting for free window.
+     * @return queued data count
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return waitingData.size();
+        }
+    }
+
+    /**
+     * Get current retransmit timeout.
+     * @return retransmit timeout (in milliseconds)
+     */
+    public long getRetransmitTimeout() {
+        synchronized (lock) {
+            return rto;
+        }
+    }
+
+    /**
+     * Get smoothed round trip time.
+     * @return round trip time (in milliseconds), -1 if not measured yet
+     */
+    public double getSmoothedRtt() {
+        synchronized (lock) {
+            return smoothedRtt;
+        }
+    }
+
+    /**
+     * Get number of data frames sent first time.
+     * @return sent frame count
+     */
+    public long getSentFrameCount() {
+        return sentFrameCount;
+    }
+
+    /**
+     * Get number of data frames sent again.
+     * @return retransmit count
+     */
+    public long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    /**
+     * Get number of data frames received and delivered.
+     * @return received frame count
+     */
+    public long getReceivedFrameCount() {
+        return receivedFrameCount;
+    }
+
+    /**
+     * Get number of data frames received again (retransmits of frames already received).
+     * @return duplicate frame count
+     */
+    public long getDuplicateFrameCount() {
+        return duplicateFrameCount;
+    }
+
+    /**
+     * Get number of received frames dropped for invalid checksum.
+     * @return invalid frame count
+     */
+    public long getInvalidFrameCount() {
+        return invalidFrameCount;
+    }
+
+    /**
+     * Close channel, data not acknowledged yet is not sent again.
+     */
+    public void close() {
+        SendReceive.getInstance().removeOnRawReceiveListener(this);
+        synchronized (lock) {
+            isClosed = true;
+            for (int i = 0; i < sendWindow.length; i++) {
+                if(sendWindow[i] != null) {
+                    Scheduler.cancel(sendWindow[i].timeoutFuture);
+                    sendWindow[i] = null;
+                }
+            }
+            waitingData.clear();
+            retransmitFrames.clear();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Start sequences again, it is called by {@link SendReceive} when a new connection is started.
+     * Both devices start again on connect. Data not acknowledged before is sent again first,
+     * the other device may receive it twice if its acknowledgement was lost.
+     */
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            if(isClosed) {
+                return;
+            }
+            // unacknowledged data goes before waiting data, in sent order
+            List<byte[]> unacked = new ArrayList<>();
+            for (int sequence = baseSequence; sequence != nextSequence; sequence = (sequence + 1) & SEQUENCE_MASK) {
+                Frame frame = sendWindow[sequence & mask];
+                if(frame != null) {
+                    Scheduler.cancel(frame.timeoutFuture);
+                    if(!frame.isAcked) {
+                        unacked.add(Arrays.copyOfRange(frame.data, HEADER_LENGTH, frame.data.length - CRC_LENGTH));
+                        frame.isAcked = true; // old sequence, sender thread may hold it and must not send it again
+                    }
+                }
+            }
+            Arrays.fill(sendWindow, null);
+            for (int i = unacked.size() - 1; i >= 0; i--) {
+                waitingData.addFirst(unacked.get(i));
+            }
+            retransmitFrames.clear();
+            baseSequence = 0;
+            nextSequence = 0;
+            lastAck = -1;
+            duplicateAcks = 0;
+            isSendWaiting = !waitingData.isEmpty();
+            lock.notifyAll();
+        }
+
+        // reader thread of new connection is not started yet
+        Arrays.fill(receiveWindow, null);
+        expectedSequence = 0;
+        receiveLength = 0;
+    }
+
+
+    // Send frames again and waiting data after reset, so timer and reader threads never block on send
+    private void sendLoop() {
+        while (true) {
+            Frame retransmit = null;
+            List<Frame> sendNow = null;
+            synchronized (lock) {
+                while (!isClosed && retransmitFrames.isEmpty() && !isSendWaiting) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(isClosed) {
+                    return;
+                }
+                if(!retransmitFrames.isEmpty()) {
+                    retransmit = retransmitFrames.poll();
+                }
+                else {
+                    isSendWaiting = false;
+                    sendNow = takeWaiting();
+                }
+            }
+            if(retransmit != null) {
+                transmit(retransmit, true);
+            }
+            transmitAll(sendNow);
+        }
+    }
+
+    // Hand frame to sender thread, call with lock
+    private void queueRetransmit(Frame frame) {
+        if(!retransmitFrames.contains(frame)) {
+            retransmitFrames.add(frame);
+            lock.notifyAll();
+        }
+    }
+
+    // Frames of waiting data that fit in window, call with lock
+    private List<Frame> takeWaiting() {
+        List<Frame> sendNow = null;
+        while (isWindowFree() && !waitingData.isEmpty()) {
+            if(sendNow == null) {
+                sendNow = new ArrayList<>();
+            }
+            sendNow.add(newFrame(waitingData.poll()));
+        }
+        return sendNow;
+    }
+
+    // call with lock
+    private boolean isWindowFree() {
+        return ((nextSequence - baseSequence) & SEQUENCE_MASK) < windowSize;
+    }
+
+    // Encode data as next frame of window, call with lock
+    private Frame newFrame(byte[] data) {
+        Frame frame = new Frame(encode(sendCrc, sendHeaderCrc, TYPE_DATA, nextSequence, data, new byte[HEADER_LENGTH + data.length + CRC_LENGTH]));
+        sendWindow[nextSequence & mask] = frame;
+        nextSequence = (nextSequence + 1) & SEQUENCE_MASK;
+        return frame;
+    }
+
+    private static byte[] encode(Crc crc, Crc headerCrc, int type, int sequence, byte[] payload, byte[] frame) {
+        int length = payload.length;
+        frame[0] = (byte) MAGIC;
+        frame[1] = (byte) type;
+        frame[2] = (byte) (sequence >>> 8);
+        frame[3] = (byte) sequence;
+        frame[4] = (byte) (length >>> 8);
+        frame[5] = (byte) length;
+        frame[6] = (byte) headerCrc.compute(frame, 0, HEADER_LENGTH - 1);
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, length);
+        crc.reset();
+        crc.update(frame, 0, HEADER_LENGTH + length);
+        crc.writeValue(frame, HEADER_LENGTH + length);
+        return frame;
+    }
+
+    private void transmit(final Frame frame, boolean isRetransmit) {
+        long timeout;
+        synchronized (lock) {
+            if(isClosed || frame.isAcked) {
+                return;
+            }
+            Scheduler.cancel(frame.timeoutFuture);
+            if(isRetransmit) {
+                frame.retransmits++;
+                retransmitCount++;
+            }
+            else {
+                sentFrameCount++;
+            }
+            frame.sentNanos = System.nanoTime();
+            // back off per frame, other frames keep measured timeout
+            timeout = Math.min(rto << Math.min(frame.retransmits, 6), MAX_RTO);
+            frame.timeoutFuture = Scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onRetransmitTimeout(frame);
+                }
+            }, timeout);
+        }
+        // lost send is found by retransmit timeout
+        connection.send(frame.data);
+    }
+
+    private void transmitAll(List<Frame> frames) {
+        if(frames != null) {
+            for (Frame frame : frames) {
+                transmit(frame, false);
+            }
+        }
+    }
+
+    // Called on scheduler thread
+    private void onRetransmitTimeout(Frame frame) {
+        boolean isFailed;
+        synchronized (lock) {
+            if(isClosed || frame.isAcked) {
+                return;
+            }
+            isFailed = frame.retransmits >= maxRetransmits;
+            if(!isFailed) {
+                queueRetransmit(frame);
+                return;
+            }
+        }
+
+        if(isFailed) {
+            close();
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(receiveListener != null) {
+                        receiveListener.onReliableFailed(RETRANSMIT_LIMIT);
+                    }
+                }
+            });
+        }
+    }
+
+    // Acknowledge frames before ack and frames set in selective ack bits
+    private void onAck(int ack, int selectiveAcks) {
+        List<Frame> sendNow;
+        synchronized (lock) {
+            if(isClosed) {
+                return;
+            }
+            int inFlight = (nextSequence - baseSequence) & SEQUENCE_MASK;
+            int acked = (ack - baseSequence) & SEQUENCE_MASK;
+            if(acked > inFlight) {
+                return; // old ack
+            }
+
+            for (int i = 0; i < acked; i++) {
+                acknowledge(sendWindow[(baseSequence + i) & mask]);
+            }
+            for (int i = 0; i < SACK_BITS; i++) {
+                if((selectiveAcks & (1 << i)) != 0) {
+                    int sequence = (ack + 1 + i) & SEQUENCE_MASK;
+                    if(((sequence - baseSequence) & SEQUENCE_MASK) < inFlight) {
+                        acknowledge(sendWindow[sequence & mask]);
+                    }
+                }
+            }
+
+            // slide window over acknowledged frames
+            while (baseSequence != nextSequence && sendWindow[baseSequence & mask].isAcked) {
+                sendWindow[baseSequence & mask] = null;
+                baseSequence = (baseSequence + 1) & SEQUENCE_MASK;
+            }
+
+            // same ack with later frames received, first frame is lost
+            if(ack == lastAck && selectiveAcks != 0 && baseSequence != nextSequence) {
+                duplicateAcks++;
+                if(duplicateAcks % FAST_RETRANSMIT_ACKS == 0) {
+                    queueRetransmit(sendWindow[baseSequence & mask]);
+                }
+            }
+            else if(ack != lastAck) {
+                lastAck = ack;
+                duplicateAcks = 0;
+            }
+
+            sendNow = takeWaiting();
+        }
+        transmitAll(sendNow);
+    }
+
+    // call with lock
+    private void acknowledge(Frame frame) {
+        if(frame == null || frame.isAcked) {
+            return;
+        }
+        frame.isAcked = true;
+        Scheduler.cancel(frame.timeoutFuture);
+        if(frame.retransmits == 0) {
+            // frames sent again give no round trip sample, ack may be for any copy
+            updateRto((System.nanoTime() - frame.sentNanos) / 1000000.0);
+        }
+    }
+
+    // Round trip time estimate (RFC 6298), call with lock
+    private void updateRto(double rttMillis) {
+        if(smoothedRtt < 0) {
+            smoothedRtt = rttMillis;
+            rttVariance = rttMillis / 2;
+        }
+        else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rttMillis;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long) Math.ceil(smoothedRtt + 4 * rttVariance)));
+    }
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        // append to receive buffer
+        if(receiveLength + length > receiveBuffer.length) {
+            receiveBuffer = Arrays.copyOf(receiveBuffer, Math.max(receiveBuffer.length * 2, receiveLength + length));
+        }
+        System.arraycopy(buffer, offset, receiveBuffer, receiveLength, length);
+        receiveLength += length;
+
+        // decode all complete frames, skip bytes till valid frame is found
+        int position = 0;
+        while (receiveLength - position >= HEADER_LENGTH + CRC_LENGTH) {
+            if((receiveBuffer[position] & 0xFF) != MAGIC) {
+                position++;
+                continue;
+            }
+            int payloadLength = ((receiveBuffer[position + 4] & 0xFF) << 8) | (receiveBuffer[position + 5] & 0xFF);
+            if((byte) receiveHeaderCrc.compute(receiveBuffer, position, HEADER_LENGTH - 1) != receiveBuffer[position + HEADER_LENGTH - 1]
+                    || payloadLength > MAX_PAYLOAD_LENGTH) {
+                invalidFrameCount++;
+                position++;
+                continue;
+            }
+            int frameLength = HEADER_LENGTH + payloadLength + CRC_LENGTH;
+            if(receiveLength - position < frameLength) {
+                break;
+            }
+            receiveCrc.reset();
+            receiveCrc.update(receiveBuffer, position, HEADER_LENGTH + payloadLength);
+            if(receiveCrc.getValue() != receiveCrc.readValue(receiveBuffer, position + HEADER_LENGTH + payloadLength)) {
+                invalidFrameCount++;
+                position++;
+                continue;
+            }
+            int type = receiveBuffer[position + 1];
+            int sequence = ((receiveBuffer[position + 2] & 0xFF) << 8) | (receiveBuffer[position + 3] & 0xFF);
+            if(type == TYPE_DATA) {
+                onData(sequence, Arrays.copyOfRange(receiveBuffer, position + HEADER_LENGTH, position + HEADER_LENGTH + payloadLength));
+            }
+            else if(type == TYPE_ACK && payloadLength == 4) {
+                int p = position + HEADER_LENGTH;
+                onAck(sequence, ((receiveBuffer[p] & 0xFF) << 24) | ((receiveBuffer[p + 1] & 0xFF) << 16)
+                        | ((receiveBuffer[p + 2] & 0xFF) << 8) | (receiveBuffer[p + 3] & 0xFF));
+            }
+            position += frameLength;
+        }
+
+        // keep partial frame
+        if(position > 0) {
+            System.arraycopy(receiveBuffer, position, receiveBuffer, 0, receiveLength - position);
+            receiveLength -= position;
+        }
+    }
+
+    // Called on reader thread
+    private void onData(int sequence, byte[] data) {
+        int distance = (short) (sequence - expectedSequence); // negative for frames already delivered
+        if(distance < 0 || distance >= windowSize) {
+            duplicateFrameCount++;
+        }
+        else if(receiveWindow[sequence & mask] != null) {
+            duplicateFrameCount++;
+        }
+        else {
+            receiveWindow[sequence & mask] = data;
+            receiveSequences[sequence & mask] = sequence;
+
+            // deliver frames in order
+            while (receiveWindow[expectedSequence & mask] != null
+                    && receiveSequences[expectedSequence & mask] == expectedSequence) {
+                final byte[] received = receiveWindow[expectedSequence & mask];
+                receiveWindow[expectedSequence & mask] = null;
+                expectedSequence = (expectedSequence + 1) & SEQUENCE_MASK;
+                receivedFrameCount++;
+                Dispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(receiveListener != null) {
+                            receiveListener.onReliableReceived(received);
+                        }
+                    }
+                });
+            }
+        }
+        sendAck();
+    }
+
+    // Ack next expected frame and frames received after it, called on reader thread
+    private void sendAck() {
+        int selectiveAcks = 0;
+        for (int i = 0; i < SACK_BITS && i + 1 < windowSize; i++) {
+            int sequence = (expectedSequence + 1 + i) & SEQUENCE_MASK;
+            if(receiveWindow[sequence & mask] != null && receiveSequences[sequence & mask] == sequence) {
+                selectiveAcks |= 1 << i;
+            }
+        }
+        byte[] bits = {(byte) (selectiveAcks >>> 24), (byte) (selectiveAcks >>> 16), (byte) (selectiveAcks >>> 8), (byte) selectiveAcks};
+        connection.send(encode(receiveCrc, receiveHeaderCrc, TYPE_ACK, expectedSequence, bits, ackFrame));
+    }
+
+
+    // One data frame of send window
+    private static final class Frame {
+        private final byte[] data;
+        private long sentNanos = 0;
+        private int retransmits = 0;
+        private boolean isAcked = false; // changed with lock
+        private ScheduledFuture<?> timeoutFuture = null;
+
+        private Frame(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * RequestClient class sends requests over a {@link Connection} and matches responses by sequence id :
+ * <p>- Many requests in flight at the same time (pipelining), more requests wait in queue.
+ * <p>- Response is matched to its request without search.
+ * <p>- Timeout per request.
+ * <p>- Latency stats.
+ * <p>Responses are decoded on the reader thread, listeners are called on main thread.
+ * The remote device must send the sequence id of the request back in its response, see {@link Codec}.
+ */
+public class RequestClient implements BluetoothListener.onRawReceiveListener, Stage.Resettable {
+
+    /**
+     * It indicates no response received within request timeout.
+     */
+    public static final int TIMEOUT = 401;
+
+    /**
+     * It indicates request could not be sent.
+     */
+    public static final int SEND_FAILED = 402;
+
+    /**
+     * It indicates request client is closed before response received.
+     */
+    public static final int CLOSED = 403;
+
+    private static final int MAX_SEQUENCE_ID = 0xFFFF;
+
+    private final Connection connection;
+    private final Codec codec;
+    private final int maxOutstanding;
+
+    private final Object lock = new Object();
+    private final Request[] slots; // in flight requests, index is sequence id & mask
+    private final int mask;
+    private final Queue<Request> waitingRequests = new ArrayDeque<>(); // requests waiting for free slot
+    private int outstanding = 0;
+    private int nextSequenceId = 0;
+    private boolean isClosed = false;
+
+    private long defaultTimeout = 5*1000;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private volatile long timeoutCount = 0;
+
+    // Received bytes not decoded yet, used on reader thread only
+    private byte[] receiveBuffer = new byte[256];
+    private int receiveLength = 0;
+    private final Frame frame = new Frame();
+
+
+    /**
+     * Init RequestClient object with default codec and 8 requests in flight.
+     * @param connection connection used to send requests
+     */
+    public RequestClient(Connection connection) {
+        this(connection, 8, new DefaultCodec());
+    }
+
+    /**
+     * Init RequestClient object
+     * @param connection connection used to send requests
+     * @param maxOutstanding maximum number of requests in flight
+     * @param codec frame format of requests and responses
+     */
+    public RequestClient(Connection connection, int maxOutstanding, Codec codec) {
+        if(maxOutstanding < 1 || maxOutstanding > MAX_SEQUENCE_ID / 2) {
+            throw new IllegalArgumentException("Invalid max outstanding : " + maxOutstanding);
+        }
+        this.connection = connection;
+        this.codec = codec;
+        this.maxOutstanding = maxOutstanding;
+
+        // slots are at least twice max outstanding so a new sequence id rarely hits a used slot
+        int size = Integer.highestOneBit(maxOutstanding * 2 - 1) << 1;
+        this.slots = new Request[size];
+        this.mask = size - 1;
+
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+    }
+
+    /**
+     * Set timeout for requests sent without timeout. Default is 5 sec.
+     * @param timeoutMillis request timeout (in milliseconds)
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        this.defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * Send request with default timeout.
+     * @param payload request payload
+     * @return ResponseFuture
+     */
+    public ResponseFuture send(byte[] payload) {
+        return send(payload, defaultTimeout, null);
+    }
+
+    /**
+     * Send request. Request waits in queue if maximum number of requests are in flight,
+     * timeout includes time in queue.
+     * @param payload request payload
+     * @param timeoutMillis request timeout (in milliseconds)
+     * @param responseListener BluetoothListener.onResponseListener, called on main thread, can be null
+     * @return ResponseFuture
+     */
+    public ResponseFuture send(byte[] payload, long timeoutMillis, BluetoothListener.onResponseListener responseListener) {
+        final Request request = new Request(payload, responseListener);
+        boolean isSendNow = false;
+        synchronized (lock) {
+            if(isClosed) {
+                request.isDone = true;
+            }
+            else if(outstanding < maxOutstanding) {
+                assignSlot(request);
+                isSendNow = true;
+            }
+            else {
+                waitingRequests.add(request);
+            }
+        }
+
+        if(request.isDone) {
+            fail(request, CLOSED);
+            return request.future;
+        }
+
+        request.timeoutFuture = Scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(request);
+            }
+        }, timeoutMillis);
+
+        if(isSendNow) {
+            transmit(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * Get number of requests in flight.
+     * @return number of requests sent and waiting for response
+     */
+    public int getOutstandingCount() {
+        synchronized (lock) {
+            return outstanding;
+        }
+    }
+
+    /**
+     * Get number of requests waiting in queue.
+     * @return number of requests not sent yet
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return waitingRequests.size();
+        }
+    }
+
+    /**
+     * Get latency stats of answered requests.
+     * @return LatencyStats
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Get number of requests timed out.
+     * @return timeout count
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Close request client, pending requests fail with {@link #CLOSED}.
+     */
+    public void close() {
+        SendReceive.getInstance().removeOnRawReceiveListener(this);
+        List<Request> pending = new ArrayList<>();
+        synchronized (lock) {
+            isClosed = true;
+            for (int i = 0; i < slots.length; i++) {
+                if(slots[i] != null) {
+                    pending.add(slots[i]);
+                    slots[i] = null;
+                }
+            }
+            pending.addAll(waitingRequests);
+            waitingRequests.clear();
+            outstanding = 0;
+        }
+        for (Request request : pending) {
+            fail(request, CLOSED);
+        }
+    }
+
+
+    /**
+     * Drop partly received response, it is called by {@link SendReceive} when a new connection is started.
+     * Requests in flight on the old connection fail with {@link #TIMEOUT}.
+     */
+    @Override
+    public void reset() {
+        receiveLength = 0;
+    }
+
+
+    // Give request a sequence id with free slot, call with lock
+    private void assignSlot(Request request) {
+        while (slots[nextSequenceId & mask] != null) {
+            nextSequenceId = (nextSequenceId + 1) & MAX_SEQUENCE_ID;
+        }
+        request.sequenceId = nextSequenceId;
+        slots[nextSequenceId & mask] = request;
+        nextSequenceId = (nextSequenceId + 1) & MAX_SEQUENCE_ID;
+        outstanding++;
+    }
+
+    // Free slot of request and move waiting requests to free slots, call with lock
+    private List<Request> releaseSlot(Request request) {
+        slots[request.sequenceId & mask] = null;
+        outstanding--;
+        List<Request> sendNow = null;
+        while (outstanding < maxOutstanding && !waitingRequests.isEmpty()) {
+            Request next = waitingRequests.poll();
+            assignSlot(next);
+            if(sendNow == null) {
+                sendNow = new ArrayList<>();
+            }
+            sendNow.add(next);
+        }
+        return sendNow;
+    }
+
+    private void transmit(Request request) {
+        byte[] data = codec.encode(request.sequenceId, request.payload);
+        request.sentNanos = System.nanoTime();
+        if(!connection.send(data)) {
+            List<Request> sendNow;
+            synchronized (lock) {
+                if(request.isDone || slots[request.sequenceId & mask] != request) {
+                    return;
+                }
+                request.isDone = true;
+                sendNow = releaseSlot(request);
+            }
+            fail(request, SEND_FAILED);
+            transmitAll(sendNow);
+        }
+    }
+
+    private void transmitAll(List<Request> requests) {
+        if(requests != null) {
+            for (Request request : requests) {
+                transmit(request);
+            }
+        }
+    }
+
+    private void onTimeout(Request request) {
+        List<Request> sendNow = null;
+        synchronized (lock) {
+            if(request.isDone) {
+                return;
+            }
+            request.isDone = true;
+            if(!waitingRequests.remove(request)) {
+                sendNow = releaseSlot(request);
+            }
+        }
+        timeoutCount++;
+        fail(request, TIMEOUT);
+        transmitAll(sendNow);
+    }
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        // append to receive buffer
+        if(receiveLength + length > receiveBuffer.length) {
+            receiveBuffer = Arrays.copyOf(receiveBuffer, Math.max(receiveBuffer.length * 2, receiveLength + length));
+        }
+        System.arraycopy(buffer, offset, receiveBuffer, receiveLength, length);
+        receiveLength += length;
+
+        // decode all complete frames
+        int position = 0;
+        while (position < receiveLength) {
+            frame.isFound = false;
+            int consumed = codec.decode(receiveBuffer, position, receiveLength - position, frame);
+            if(consumed <= 0) {
+                break;
+            }
+            if(frame.isFound) {
+                onResponse(frame.sequenceId, Arrays.copyOfRange(receiveBuffer, frame.payloadOffset,
+                        frame.payloadOffset + frame.payloadLength));
+            }
+            position += consumed;
+        }
+
+        // keep partial frame
+        if(position > 0) {
+            System.arraycopy(receiveBuffer, position, receiveBuffer, 0, receiveLength - position);
+            receiveLength -= position;
+        }
+    }
+
+    private void onResponse(int sequenceId, final byte[] response) {
+        final Request request;
+        List<Request> sendNow;
+        synchronized (lock) {
+            Request slot = slots[sequenceId & mask];
+            if(slot == null || slot.sequenceId != sequenceId || slot.isDone) {
+                // late response of timed out request or unknown id
+                return;
+            }
+            request = slot;
+            request.isDone = true;
+            sendNow = releaseSlot(request);
+        }
+
+        Scheduler.cancel(request.timeoutFuture);
+        long latencyNanos = System.nanoTime() - request.sentNanos;
+        final long latencyMillis = latencyNanos / 1000000L;
+        latencyStats.record(latencyNanos);
+        request.future.complete(response, 0, latencyMillis);
+        if(request.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    request.responseListener.onResponse(response, latencyMillis);
+                }
+            });
+        }
+        transmitAll(sendNow);
+    }
+
+    private void fail(final Request request, final int errorCode) {
+        Scheduler.cancel(request.timeoutFuture);
+        request.future.complete(null, errorCode, -1);
+        if(request.responseListener != null) {
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    request.responseListener.onFailure(errorCode);
+                }
+            });
+        }
+    }
+
+
+    // One request
+    private static final class Request {
+        private final byte[] payload;
+        private final BluetoothListener.onResponseListener responseListener;
+        private final ResponseFuture future = new ResponseFuture();
+        private int sequenceId = -1;
+        private long sentNanos = 0;
+        private boolean isDone = false; // changed with lock
+        private volatile ScheduledFuture<?> timeoutFuture = null;
+
+        private Request(byte[] payload, BluetoothListener.onResponseListener responseListener) {
+            this.payload = payload;
+            this.responseListener = responseListener;
+        }
+    }
+
+
+    /**
+     * Frame class is the position of a decoded response in the receive buffer.
+     */
+    public static final class Frame {
+        private boolean isFound = false;
+        private int sequenceId;
+        private int payloadOffset;
+        private int payloadLength;
+
+        /**
+         * Set decoded response.
+         * @param sequenceId sequence id of response
+         * @param payloadOffset offset of payload in buffer
+         * @param payloadLength length of payload
+         */
+        public void set(int sequenceId, int payloadOffset, int payloadLength) {
+            this.isFound = true;
+            this.sequenceId = sequenceId;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /**
+     * Codec interface is the frame format of requests and responses.
+     */
+    public interface Codec {
+        /**
+         * Encode request.
+         * @param sequenceId sequence id (0 - 65535) the response must carry
+         * @param payload request payload
+         * @return request frame
+         */
+        byte[] encode(int sequenceId, byte[] payload);
+
+        /**
+         * Decode one response from buffer.
+         * @param buffer receive buffer
+         * @param offset start of undecoded data
+         * @param length length of undecoded data
+         * @param frame call {@link Frame#set} if a response is decoded
+         * @return number of bytes consumed, 0 if more data is needed
+         */
+        int decode(byte[] buffer, int offset, int length, Frame frame);
+    }
+
+    /**
+     * DefaultCodec class frame format : 0xA5, sequence id (2 bytes), payload length (2 bytes), payload.
+     * Numbers are big endian.
+     */
+    public static class DefaultCodec implements Codec {
+
+        private static final byte START = (byte) 0xA5;
+        private static final int HEADER_LENGTH = 5;
+
+        @Override
+        public byte[] encode(int sequenceId, byte[] payload) {
+            if(payload.length > 0xFFFF) {
+                throw new IllegalArgumentException("Payload too long : " + payload.length);
+            }
+            byte[] data = new byte[HEADER_LENGTH + payload.length];
+            data[0] = START;
+            data[1] = (byte) (sequenceId >> 8);
+            data[2] = (byte) sequenceId;
+            data[3] = (byte) (payload.length >> 8);
+            data[4] = (byte) payload.length;
+            System.arraycopy(payload, 0, data, HEADER_LENGTH, payload.length);
+            return data;
+        }
+
+        @Override
+        public int decode(byte[] buffer, int offset, int length, Frame frame) {
+            if(buffer[offset] != START) {
+                return 1; // skip byte till start of frame
+            }
+            if(length < HEADER_LENGTH) {
+                return 0;
+            }
+            int payloadLength = ((buffer[offset + 3] & 0xFF) << 8) | (buffer[offset + 4] & 0xFF);
+            if(length < HEADER_LENGTH + payloadLength) {
+                return 0;
+            }
+            int sequenceId = ((buffer[offset + 1] & 0xFF) << 8) | (buffer[offset + 2] & 0xFF);
+            frame.set(sequenceId, offset + HEADER_LENGTH, payloadLength);
+            return HEADER_LENGTH + payloadLength;
+        }
+    }
+}
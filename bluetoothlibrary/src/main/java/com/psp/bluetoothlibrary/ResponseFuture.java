@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResponseFuture class is the pending result of a request sent with {@link RequestClient}.
+ */
+public final class ResponseFuture {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile byte[] response = null;
+    private volatile int errorCode = 0;
+    private volatile long latencyMillis = -1;
+
+
+    /*package*/ ResponseFuture() { }
+
+    // Set result once, returns false if already done
+    /*package*/ synchronized boolean complete(byte[] response, int errorCode, long latencyMillis) {
+        if(latch.getCount() == 0) {
+            return false;
+        }
+        this.response = response;
+        this.errorCode = errorCode;
+        this.latencyMillis = latencyMillis;
+        latch.countDown();
+        return true;
+    }
+
+    /**
+     * Wait for response. Don't call on main thread.
+     * @param timeoutMillis maximum wait time (in milliseconds)
+     * @return response or null if request failed or wait timed out
+     */
+    public byte[] get(long timeoutMillis) {
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return response;
+    }
+
+    /**
+     * isDone method is used to check request is finished or not.
+     * @return true if response is received or request failed
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Get response.
+     * @return response or null if request is not finished or failed
+     */
+    public byte[] getResponse() {
+        return response;
+    }
+
+    /**
+     * Get error code of failed request.
+     * @return error code or 0 if request did not fail
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get time from request sent to response received.
+     * @return latency (in milliseconds) or -1 if no response is received
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+}
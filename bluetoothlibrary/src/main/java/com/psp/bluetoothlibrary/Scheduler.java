@@ -0,0 +1,76 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler class runs the library's timers (watchdogs, timeouts) on one shared background thread,
+ * so a timer per connection does not cost a thread per connection.
+ */
+/*package*/ final class Scheduler {
+
+    private static ScheduledExecutorService executor = null; // shared timer thread
+
+    private Scheduler() { }
+
+    // Get shared executor, create it on first use
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if(executor == null) {
+            ScheduledThreadPoolExecutor tmpExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BluetoothLibraryScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            tmpExecutor.setRemoveOnCancelPolicy(true); // cancelled timers do not stay in the queue
+            executor = tmpExecutor;
+        }
+        return executor;
+    }
+
+    // Run task once after delay
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return getExecutor().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Run task repeatedly with fixed delay between runs
+    static ScheduledFuture<?> scheduleRepeating(Runnable task, long periodMillis) {
+        return getExecutor().scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Cancel scheduled task, null is ignored
+    static void cancel(ScheduledFuture<?> future) {
+        if(future != null) {
+            future.cancel(false);
+        }
+    }
+}
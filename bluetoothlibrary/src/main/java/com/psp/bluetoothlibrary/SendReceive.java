@@ -24,22 +24,40 @@
 
 package com.psp.bluetoothlibrary;
 
-import android.bluetooth.BluetoothSocket;
-import android.os.Handler;
-import android.os.Looper;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * SendReceive class provides the following features:
  * <p>- Send data to connected device (using one or more Classes / Activities / Fragments).
  * <p>- Receive data from connected device (using one or more Classes / Activities / Fragments).
+ * <p>- Receive raw data on the reader thread (for protocol layers).
+ * <p>- Process sent and received data with stages (checksum etc.), see {@link Stage}.
+ * <p>- Replace named stages while connected (for example switch protocol after handshake).
  */
 public class SendReceive {
 
     private static SendReceive instance; // SendReceive Static variable
-    private SendReceiveThread sendReceiveThread; // SendReceived Thread
+    private static volatile long lastTrafficNanos = 0; // time of last read or write of any connection, 0 if none
+
+    // Raw receive listeners, kept for next connections
+    private static final List<BluetoothListener.onRawReceiveListener> rawReceiveListeners = new CopyOnWriteArrayList<>();
+    // Stages, kept for next connections, array is replaced on change
+    private static volatile Stage[] stages = new Stage[0];
+    private static String[] stageNames = new String[0]; // name of each stage (null if not named), guarded by class lock
+    private volatile SendReceiveThread sendReceiveThread; // SendReceived Thread
+
+    // Read watchdog settings, kept for next connections, guarded by class lock
+    // watchdog is disabled if both timeouts are 0
+    private static long watchdogIdleTimeout = 0;
+    private static long watchdogStallTimeout = 0;
+    private static boolean isWatchdogCloseOnStall = false;
+    private static BluetoothListener.onReadWatchdogListener watchdogListener = null;
 
 
     // Static method is used to initialize this class at one time
@@ -50,12 +68,15 @@ public class SendReceive {
         return instance;
     }
 
-    /*package*/ // start sendReceive thread
-    protected void start(BluetoothSocket socket, BluetoothListener.onReceiveListener receiveListener) {
+    /*package*/ // start sendReceive thread, closedCallback runs on reader thread if transport is closed by remote or error
+    protected void start(Transport transport, BluetoothListener.onReceiveListener receiveListener, Runnable closedCallback) {
         if(sendReceiveThread == null) {
-            sendReceiveThread = new SendReceiveThread(socket);
+            resetStages();
+            sendReceiveThread = new SendReceiveThread(transport, closedCallback);
+            resetRawReceiveListeners(); // they may send, so after thread is set and before reading
             setOnReceiveListener(receiveListener);
             sendReceiveThread.start();
+            applyReadWatchdog();
         }
     }
 
@@ -71,6 +92,22 @@ public class SendReceive {
         }
     }
 
+    /*package*/ // stop sendReceive thread after pending data is sent and received, blocks up to timeout
+    // returns number of received bytes discarded
+    protected int stop(long timeoutMillis) {
+        int discardedBytes = 0;
+        SendReceiveThread thread = sendReceiveThread;
+        if(thread != null) {
+            discardedBytes = thread.drainAndCancel(timeoutMillis);
+            sendReceiveThread = null;
+        }
+
+        if(instance != null) {
+            instance = null;
+        }
+        return discardedBytes;
+    }
+
     /**
      * Set receive listener,you can read data with this listener.
      * @param receiveListener BluetoothListener.onReceivedListener
@@ -81,6 +118,307 @@ public class SendReceive {
         }
     }
 
+    /**
+     * Add raw receive listener, it gets received data on the reader thread after stages, before it is sent to receive listener.
+     * Listener is kept for next connections till it is removed, if it implements {@link Stage.Resettable} it is reset on each new connection.
+     * @param rawReceiveListener BluetoothListener.onRawReceiveListener
+     */
+    public void addOnRawReceiveListener(BluetoothListener.onRawReceiveListener rawReceiveListener) {
+        if(rawReceiveListener != null && !rawReceiveListeners.contains(rawReceiveListener)) {
+            rawReceiveListeners.add(rawReceiveListener);
+        }
+    }
+
+    /**
+     * Remove raw receive listener.
+     * @param rawReceiveListener BluetoothListener.onRawReceiveListener
+     */
+    public void removeOnRawReceiveListener(BluetoothListener.onRawReceiveListener rawReceiveListener) {
+        rawReceiveListeners.remove(rawReceiveListener);
+    }
+
+    /**
+     * Add stage, received data goes through stages in added order and sent data in reverse order.
+     * Stage is kept for next connections till it is removed.
+     * @param stage Stage
+     */
+    public void addStage(Stage stage) {
+        synchronized (SendReceive.class) {
+            if(stage != null && indexOf(stage) < 0) {
+                setStages(stages.length, null, stage);
+            }
+        }
+    }
+
+    /**
+     * Add named stage after all stages, name can be used to replace or remove it while connected.
+     * @param name unique stage name
+     * @param stage Stage
+     * @return true if stage is added, false if name or stage is already added
+     */
+    public boolean addStage(String name, Stage stage) {
+        synchronized (SendReceive.class) {
+            if(name == null || stage == null || indexOf(name) >= 0 || indexOf(stage) >= 0) {
+                return false;
+            }
+            setStages(stages.length, name, stage);
+            return true;
+        }
+    }
+
+    /**
+     * Add named stage before other stage, so it is closer to the socket.
+     * @param baseName name of added stage
+     * @param name unique stage name
+     * @param stage Stage
+     * @return true if stage is added, false if base stage is not found or name or stage is already added
+     */
+    public boolean addStageBefore(String baseName, String name, Stage stage) {
+        synchronized (SendReceive.class) {
+            int index = indexOf(baseName);
+            if(index < 0 || name == null || stage == null || indexOf(name) >= 0 || indexOf(stage) >= 0) {
+                return false;
+            }
+            setStages(index, name, stage);
+            return true;
+        }
+    }
+
+    /**
+     * Add named stage after other stage, so it is closer to the listeners.
+     * @param baseName name of added stage
+     * @param name unique stage name
+     * @param stage Stage
+     * @return true if stage is added, false if base stage is not found or name or stage is already added
+     */
+    public boolean addStageAfter(String baseName, String name, Stage stage) {
+        synchronized (SendReceive.class) {
+            int index = indexOf(baseName);
+            if(index < 0 || name == null || stage == null || indexOf(name) >= 0 || indexOf(stage) >= 0) {
+                return false;
+            }
+            setStages(index + 1, name, stage);
+            return true;
+        }
+    }
+
+    /**
+     * Replace named stage, it can be called while connected (also from a stage), new stage is used from the next read or send.
+     * New stage is not reset, it starts with its current state.
+     * @param name stage name
+     * @param stage new Stage
+     * @return replaced stage or null if name is not found
+     */
+    public Stage replaceStage(String name, Stage stage) {
+        synchronized (SendReceive.class) {
+            int index = indexOf(name);
+            if(index < 0 || stage == null) {
+                return null;
+            }
+            Stage oldStage = stages[index];
+            if(oldStage != stage) {
+                if(indexOf(stage) >= 0) {
+                    return null;
+                }
+                Stage[] newStages = stages.clone();
+                newStages[index] = stage;
+                stages = newStages;
+            }
+            return oldStage;
+        }
+    }
+
+    /**
+     * Get named stage.
+     * @param name stage name
+     * @return Stage or null if name is not found
+     */
+    public Stage getStage(String name) {
+        synchronized (SendReceive.class) {
+            int index = indexOf(name);
+            return index < 0 ? null : stages[index];
+        }
+    }
+
+    /**
+     * Remove stage.
+     * @param stage Stage
+     */
+    public void removeStage(Stage stage) {
+        synchronized (SendReceive.class) {
+            removeStageAt(indexOf(stage));
+        }
+    }
+
+    /**
+     * Remove named stage.
+     * @param name stage name
+     * @return removed stage or null if name is not found
+     */
+    public Stage removeStage(String name) {
+        synchronized (SendReceive.class) {
+            return removeStageAt(indexOf(name));
+        }
+    }
+
+    /**
+     * Remove all stages.
+     */
+    public void clearStages() {
+        synchronized (SendReceive.class) {
+            stages = new Stage[0];
+            stageNames = new String[0];
+        }
+    }
+
+    // Insert stage at index, called with class lock
+    private static void setStages(int index, String name, Stage stage) {
+        int count = stages.length;
+        Stage[] newStages = new Stage[count + 1];
+        String[] newNames = new String[count + 1];
+        System.arraycopy(stages, 0, newStages, 0, index);
+        System.arraycopy(stageNames, 0, newNames, 0, index);
+        newStages[index] = stage;
+        newNames[index] = name;
+        System.arraycopy(stages, index, newStages, index + 1, count - index);
+        System.arraycopy(stageNames, index, newNames, index + 1, count - index);
+        stageNames = newNames;
+        stages = newStages;
+    }
+
+    // Remove stage at index, called with class lock
+    private static Stage removeStageAt(int index) {
+        if(index < 0) {
+            return null;
+        }
+        int count = stages.length;
+        Stage removed = stages[index];
+        Stage[] newStages = new Stage[count - 1];
+        String[] newNames = new String[count - 1];
+        System.arraycopy(stages, 0, newStages, 0, index);
+        System.arraycopy(stageNames, 0, newNames, 0, index);
+        System.arraycopy(stages, index + 1, newStages, index, count - index - 1);
+        System.arraycopy(stageNames, index + 1, newNames, index, count - index - 1);
+        stageNames = newNames;
+        stages = newStages;
+        return removed;
+    }
+
+    // Index of stage, -1 if not added
+    private static int indexOf(Stage stage) {
+        for (int i = 0; i < stages.length; i++) {
+            if(stages[i] == stage) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of named stage, -1 if not found
+    private static int indexOf(String name) {
+        if(name != null) {
+            for (int i = 0; i < stageNames.length; i++) {
+                if(name.equals(stageNames[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // New connection, clear state of raw receive listeners
+    private static void resetRawReceiveListeners() {
+        for (BluetoothListener.onRawReceiveListener rawReceiveListener : rawReceiveListeners) {
+            if(rawReceiveListener instanceof Stage.Resettable) {
+                try {
+                    ((Stage.Resettable) rawReceiveListener).reset();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // New connection, clear state of previous connection
+    private static void resetStages() {
+        for (Stage stage : stages) {
+            if(stage instanceof Stage.Resettable) {
+                try {
+                    ((Stage.Resettable) stage).reset();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set read watchdog, it checks time since the last received byte.
+     * <p>The listener gets {@link BluetoothListener.onReadWatchdogListener#onReadIdle} after idle timeout
+     * and {@link BluetoothListener.onReadWatchdogListener#onReadStalled} after stall timeout, each once until data is received again.
+     * <p>Watchdog is kept for next connections till it is removed.
+     * @param idleTimeoutMillis idle timeout (in milliseconds), 0 to disable idle event
+     * @param stallTimeoutMillis stall timeout (in milliseconds), 0 to disable stall event
+     * @param isCloseOnStall true if connection should be closed on stall, it unblocks the reader thread
+     * @param watchdogListener BluetoothListener.onReadWatchdogListener
+     */
+    public void setReadWatchdog(long idleTimeoutMillis, long stallTimeoutMillis, boolean isCloseOnStall,
+                                BluetoothListener.onReadWatchdogListener watchdogListener) {
+        synchronized (SendReceive.class) {
+            SendReceive.watchdogIdleTimeout = idleTimeoutMillis;
+            SendReceive.watchdogStallTimeout = stallTimeoutMillis;
+            SendReceive.isWatchdogCloseOnStall = isCloseOnStall;
+            SendReceive.watchdogListener = watchdogListener;
+        }
+        applyReadWatchdog();
+    }
+
+    /**
+     * Remove read watchdog.
+     */
+    public void removeReadWatchdog() {
+        setReadWatchdog(0, 0, false, null);
+    }
+
+    /**
+     * Get time since the last received byte.
+     * @return milliseconds since last received byte or -1 if read watchdog is not running
+     */
+    public long getReadIdleTime() {
+        if(sendReceiveThread != null) {
+            return sendReceiveThread.getReadIdleTime();
+        }
+        return -1;
+    }
+
+    // Start or replace watchdog of running thread
+    private void applyReadWatchdog() {
+        SendReceiveThread thread = sendReceiveThread;
+        if(thread != null) {
+            ReadWatchdog watchdog = null;
+            synchronized (SendReceive.class) {
+                if(watchdogIdleTimeout > 0 || watchdogStallTimeout > 0) {
+                    watchdog = new ReadWatchdog(watchdogIdleTimeout, watchdogStallTimeout, isWatchdogCloseOnStall, watchdogListener);
+                }
+            }
+            thread.attachReadWatchdog(watchdog);
+        }
+    }
+
+    /**
+     * Get time since data was last sent or received.
+     * @return milliseconds since last send or receive, {@link Long#MAX_VALUE} if no data was sent or received
+     */
+    public static long getTrafficIdleTime() {
+        long last = lastTrafficNanos;
+        if(last == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (System.nanoTime() - last) / 1000000L;
+    }
+
     /**
      * Sends data in String format message to connected device.
      * @param data string to be send
@@ -121,23 +459,88 @@ public class SendReceive {
 
 
 
+    // Links stages, received data goes first to last stage and sent data last to first
+    private static class Chain {
+        private final Stage[] stages;
+        private final Stage.Output receiveHead;
+        private final Stage.Output sendHead;
+
+        private Chain(Stage[] stages, Stage.Output receiveTerminal, Stage.Output sendTerminal) {
+            this.stages = stages;
+
+            Stage.Output next = receiveTerminal;
+            for (int i = stages.length - 1; i >= 0; i--) {
+                final Stage stage = stages[i];
+                final Stage.Output output = next;
+                next = new Stage.Output() {
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException {
+                        stage.onReceive(buffer, offset, length, output);
+                    }
+                };
+            }
+            this.receiveHead = next;
+
+            next = sendTerminal;
+            for (final Stage stage : stages) {
+                final Stage.Output output = next;
+                next = new Stage.Output() {
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException {
+                        stage.onSend(buffer, offset, length, output);
+                    }
+                };
+            }
+            this.sendHead = next;
+        }
+    }
+
     private static class SendReceiveThread extends Thread {
 
+        // Drain is finished when no data is received for this time
+        private static final long DRAIN_QUIET_MILLIS = 100;
+        private static final int READ_BUFFER_SIZE = 1024;
+
         // Input and Output Stream
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        private BluetoothListener.onReceiveListener receiveListener = null; // Bluetooth receive listener
+        private final Transport mmTransport;
+        private final Runnable closedCallback;
+
+        private volatile BluetoothListener.onReceiveListener receiveListener = null; // Bluetooth receive listener
+        private volatile ReadWatchdog readWatchdog = null; // Read watchdog
+
+        private final ReentrantLock writeLock = new ReentrantLock(); // one write at a time, drain waits for it
+        private volatile boolean isClosing = false; // true when graceful close is started, no more writes
+        private volatile boolean isCancelled = false; // true when closed by this side
+        private volatile long lastReadNanos = System.nanoTime(); // time of last read
+        private volatile Chain chain = null; // stages chain
+
+        // Ends of stages chain
+        private final Stage.Output receiveTerminal = new Stage.Output() {
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                deliver(buffer, offset, length);
+            }
+        };
+        private final Stage.Output sendTerminal = new Stage.Output() {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                mmOutStream.write(buffer, offset, length);
+            }
+        };
 
 
-        public SendReceiveThread(BluetoothSocket socket) {
+        public SendReceiveThread(Transport transport, Runnable closedCallback) {
+            mmTransport = transport;
+            this.closedCallback = closedCallback;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
             try {
                 //Create I/O streams for connection
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             }
             catch (IOException e) {
                 e.printStackTrace();
@@ -148,69 +551,189 @@ public class SendReceive {
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = BufferPool.getDefault().acquire(READ_BUFFER_SIZE); // passed by reference through stages
             int bytes;
 
             // Keep looping to listen received data
             while (true) {
                 try {
                     bytes = mmInStream.read(buffer);
+                    if (bytes < 0) {
+                        break; // end of stream
+                    }
+                    lastReadNanos = System.nanoTime();
+                    lastTrafficNanos = lastReadNanos;
+                    ReadWatchdog watchdog = readWatchdog;
+                    if (watchdog != null) {
+                        watchdog.onRead();
+                    }
                     if (bytes > 0) {
-                        byte[] newData = new byte[bytes];
-                        System.arraycopy(buffer, 0, newData, 0, bytes);//read bytes from input buffer
-                        String readMessage = new String(buffer, 0, bytes);
-                        setReceivedListenerResult(readMessage);
-                        setReceivedListenerResult(readMessage, newData);// send data to receive listener
+                        try {
+                            getChain().receiveHead.write(buffer, 0, bytes);
+                        }
+                        catch (Exception e) {
+                            // stage error must not stop reading
+                            e.printStackTrace();
+                        }
                     }
                 }
                 catch (IOException e) {
                     break;
                 }
             }
+            BufferPool.getDefault().release(buffer);
+
+            if (!isCancelled && !isClosing && closedCallback != null) {
+                closedCallback.run();
+            }
+        }
+
+        // data passed all stages, send it to listeners
+        private void deliver(byte[] buffer, int offset, int length) {
+            for (BluetoothListener.onRawReceiveListener rawReceiveListener : rawReceiveListeners) {
+                try {
+                    rawReceiveListener.onRawReceived(buffer, offset, length);
+                }
+                catch (Exception e) {
+                    // listener error must not stop reading
+                    e.printStackTrace();
+                }
+            }
+            if(receiveListener == null) {
+                return; // nothing to post, don't copy
+            }
+            byte[] newData = new byte[length];
+            System.arraycopy(buffer, offset, newData, 0, length);//read bytes from input buffer
+            String readMessage = new String(buffer, offset, length);
+            setReceivedListenerResult(readMessage);
+            setReceivedListenerResult(readMessage, newData);// send data to receive listener
+        }
+
+        // chain of current stages, rebuilt when stages are changed
+        private Chain getChain() {
+            Chain current = chain;
+            Stage[] currentStages = stages;
+            if(current == null || current.stages != currentStages) {
+                current = new Chain(currentStages, receiveTerminal, sendTerminal);
+                chain = current;
+            }
+            return current;
         }
 
         // write method String
         public boolean write(String input) {
             byte[] msgBuffer = input.getBytes();   //converts entered String into bytes
+            return write(msgBuffer, 0, msgBuffer.length);
+        }
+
+        // write method Byte
+        public boolean write(byte[] b) {
+            return write(b, 0, b.length);
+        }
 
+        //write method Byte ,Offset,Length
+        public boolean write(byte[] b,int off,int len) {
+            if(isClosing) {
+                return false;
+            }
+            writeLock.lock();
             try {
-                mmOutStream.write(msgBuffer);
+                lastTrafficNanos = System.nanoTime();
+                getChain().sendHead.write(b,off,len);
                 return true;
             }
             catch (IOException e) {
                 e.printStackTrace();
                 return false;
             }
+            finally {
+                writeLock.unlock();
+            }
         }
 
-        // write method Byte
-        public boolean write(byte[] b) {
+        // flush pending writes, wait until received data stops, then close and join reader thread
+        // returns number of received bytes discarded
+        private int drainAndCancel(long timeoutMillis) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+            isClosing = true;
+
+            // wait for running write and flush output stream
             try {
-                mmOutStream.write(b);
-                return true;
+                if(writeLock.tryLock(remainingMillis(deadline), TimeUnit.MILLISECONDS)) {
+                    try {
+                        if(mmOutStream != null) {
+                            mmOutStream.flush();
+                        }
+                    }
+                    finally {
+                        writeLock.unlock();
+                    }
+                }
             }
             catch (IOException e) {
                 e.printStackTrace();
-                return false;
             }
-        }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
-        //write method Byte ,Offset,Length
-        public boolean write(byte[] b,int off,int len) {
+            // let reader thread deliver remaining received data
             try {
-                mmOutStream.write(b,off,len);
-                return true;
+                while (remainingMillis(deadline) > 0 && isAlive()) {
+                    long quietMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+                    if(available() == 0 && quietMillis >= DRAIN_QUIET_MILLIS) {
+                        break;
+                    }
+                    Thread.sleep(10);
+                }
             }
-            catch (IOException e) {
-                e.printStackTrace();
-                return false;
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int discardedBytes = available();
+
+            // close streams, listener is removed after data already posted to main thread is delivered
+            attachReadWatchdog(null);
+            closeStreams();
+            try {
+                join(Math.max(1, remainingMillis(deadline)));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    deAttachReceiveListener();
+                }
+            });
+            return discardedBytes;
+        }
+
+        private long remainingMillis(long deadline) {
+            return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+
+        // Received bytes not read yet
+        private int available() {
+            try {
+                if(mmInStream != null) {
+                    return mmInStream.available();
+                }
             }
+            catch (IOException e) { }
+            return 0;
         }
 
         // cancel send receive process
         private void cancel() {
+            isCancelled = true;
             deAttachReceiveListener();
+            attachReadWatchdog(null);
+            closeStreams();
+        }
 
+        private void closeStreams() {
             if(mmInStream != null) {
                 try {
                     // close input stream
@@ -230,6 +753,41 @@ public class SendReceive {
             }
         }
 
+        // replace read watchdog, null removes it
+        private synchronized void attachReadWatchdog(ReadWatchdog watchdog) {
+            if(readWatchdog != null) {
+                readWatchdog.stop();
+            }
+            readWatchdog = watchdog;
+            if(watchdog != null) {
+                watchdog.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeTransport(); // unblock read
+                    }
+                });
+            }
+        }
+
+        private long getReadIdleTime() {
+            ReadWatchdog watchdog = readWatchdog;
+            if(watchdog != null) {
+                return watchdog.getIdleMillis();
+            }
+            return -1;
+        }
+
+        private void closeTransport() {
+            try {
+                if(mmTransport != null) {
+                    mmTransport.close();
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         private void attachReceiveListener(BluetoothListener.onReceiveListener receiveListener) {
             if(receiveListener != null) {
                 // attach receive listener
@@ -245,7 +803,7 @@ public class SendReceive {
         }
 
         private void setReceivedListenerResult(String receivedData) {
-            new Handler(Looper.getMainLooper()).post(new Runnable() {
+            Dispatcher.post(new Runnable() {
                 @Override
                 public void run() {
                     if (SendReceiveThread.this.receiveListener != null) {
@@ -256,7 +814,7 @@ public class SendReceive {
         }
 
         private void setReceivedListenerResult(String receivedData, byte[] buffer) {
-            new Handler(Looper.getMainLooper()).post(new Runnable() {
+            Dispatcher.post(new Runnable() {
                 @Override
                 public void run() {
                     if (SendReceiveThread.this.receiveListener != null) {
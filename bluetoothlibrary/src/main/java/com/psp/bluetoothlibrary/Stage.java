@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+
+/**
+ * Stage processes data between the connection socket and the listeners, for example checksum or compression.
+ * <p>Stages are added with {@link SendReceive#addStage(Stage)}. Received data goes through stages in added order,
+ * sent data goes through stages in reverse order, so the first added stage is the closest to the socket.
+ * <p>{@link #onReceive} is called on the reader thread, {@link #onSend} is called by one sender at a time.
+ * A stage may call output any number of times (zero to drop data), buffer must not be kept after return.
+ * Buffers are passed by reference, the read buffer is pooled and no stage boundary copies data.
+ * <p>Named stages can be replaced while connected with {@link SendReceive#replaceStage(String, Stage)}, the change
+ * applies from the next read or send. To switch protocol in the middle of received data (for example binary frames
+ * after an AT handshake), replace the stage from {@link #onReceive} and pass the remaining bytes to
+ * the new stage's {@link #onReceive} with the same output.
+ */
+public interface Stage {
+
+    /**
+     * Process received data.
+     * @param buffer received data
+     * @param offset offset of data in buffer
+     * @param length length of data
+     * @param output next stage towards receive listeners
+     */
+    void onReceive(byte[] buffer, int offset, int length, Output output) throws IOException;
+
+    /**
+     * Process data to be sent.
+     * @param buffer data to be sent
+     * @param offset offset of data in buffer
+     * @param length length of data
+     * @param output next stage towards socket
+     */
+    void onSend(byte[] buffer, int offset, int length, Output output) throws IOException;
+
+    /**
+     * Output of a stage, it passes data to the next stage.
+     */
+    interface Output {
+        void write(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Stage that only processes received data, sent data is passed on unchanged.
+     */
+    abstract class Inbound implements Stage {
+        @Override
+        public void onSend(byte[] buffer, int offset, int length, Output output) throws IOException {
+            output.write(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Stage that only processes sent data, received data is passed on unchanged.
+     */
+    abstract class Outbound implements Stage {
+        @Override
+        public void onReceive(byte[] buffer, int offset, int length, Output output) throws IOException {
+            output.write(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Stage or raw receive listener with connection state (partial frames, compression dictionary,
+     * sequence numbers etc.) implements it, {@link #reset()} is called when a new connection is started.
+     */
+    interface Resettable {
+        void reset();
+    }
+}
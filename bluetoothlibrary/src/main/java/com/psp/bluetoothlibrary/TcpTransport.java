@@ -0,0 +1,123 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TcpTransport class is the {@link Transport} of a TCP socket, for example loopback connection in tests
+ * or a serial-to-TCP bridge.
+ * <p>Nagle's algorithm is disabled, so small writes are sent at once like on RFCOMM.
+ */
+public class TcpTransport implements Transport {
+
+    private final Socket socket;
+
+    /**
+     * Connect to TCP server.
+     * @param host host name or ip address
+     * @param port port
+     * @param timeoutMillis connect timeout (in milliseconds), 0 for no timeout
+     * @return connected TcpTransport
+     */
+    public static TcpTransport connect(String host, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new TcpTransport(socket);
+    }
+
+    /**
+     * Create two transports connected to each other over loopback interface.
+     * @return two transports, data written to one is read from the other
+     */
+    public static TcpTransport[] createLoopbackPair() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            Socket server = serverSocket.accept();
+            return new TcpTransport[] { new TcpTransport(client), new TcpTransport(server) };
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Init TcpTransport object
+     * @param socket connected socket
+     */
+    public TcpTransport(Socket socket) {
+        this.socket = socket;
+        try {
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get TCP socket
+     * @return Socket
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        if(socket.getInetAddress() != null) {
+            return socket.getInetAddress().getHostAddress()+":"+socket.getPort();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport is the byte stream under {@link SendReceive}, for example a Bluetooth socket.
+ * <p>Library uses {@link BluetoothTransport}, {@link PipedTransport} and {@link TcpTransport} run the same
+ * send / receive engine, stages and listeners without Bluetooth (JVM tests, benchmarks), see {@link Connection#open}.
+ * <p>{@link #close()} must unblock a read of the input stream.
+ */
+public interface Transport {
+
+    /**
+     * Get stream of received data.
+     * @return InputStream
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Get stream of sent data.
+     * @return OutputStream
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close transport, blocked read and write fail.
+     */
+    void close() throws IOException;
+
+    /**
+     * Get address of the remote end, for example Bluetooth mac address or host:port.
+     * @return address or null if not known
+     */
+    String getRemoteAddress();
+}
@@ -0,0 +1,44 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * TransportFactory interface creates the transport of {@link Connection#connect}, in place of a Bluetooth socket.
+ * <p>It is used to connect to simulated devices ({@link VirtualSppDevice}), see {@link Connection#setTransportFactory}.
+ */
+public interface TransportFactory {
+    /**
+     * Connect to device, called on the connect thread. Connect timeout interrupts the thread.
+     * @param deviceAddress device address passed to connect
+     * @param isSecureConnection true if secure connection is requested
+     * @param uuid service UUID
+     * @return connected transport or null if device is not found
+     * @throws IOException if connect failed
+     */
+    Transport createTransport(String deviceAddress, boolean isSecureConnection, UUID uuid) throws IOException;
+}
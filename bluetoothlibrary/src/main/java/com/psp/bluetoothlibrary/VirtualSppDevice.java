@@ -0,0 +1,750 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VirtualSppDevice class simulates a remote serial port (SPP) device, so apps can be tested without hardware.
+ * <p>Set it as transport factory of {@link Connection} with {@link Connection#setTransportFactory}, then
+ * connect, reconnect, stages and listeners work as with a Bluetooth device.
+ * <p>Behavior : echo, canned responses, periodic telemetry and a script for anything else.
+ * <p>Link : bandwidth cap, latency, jitter, byte loss, fragmentation into random read sizes,
+ * connect delay and failures, and disconnects after random time.
+ * <p>All random decisions come from the seed, so a run can be repeated ({@link #setSeed}).
+ * Settings are applied to next connection.
+ */
+public class VirtualSppDevice implements TransportFactory {
+
+    private static final int LINK_BUFFER_SIZE = 64*1024; // bytes in flight per direction, write blocks when full
+
+    private final String address;
+
+    // Behavior
+    private volatile boolean isEcho = false;
+    private final List<byte[][]> responses = new CopyOnWriteArrayList<>(); // request, response
+    private volatile int maxRequestLength = 0;
+    private volatile FrameSource telemetrySource = null;
+    private volatile double telemetryRateHz = 0;
+    private volatile Script script = null;
+
+    // Link
+    private volatile long seed = 1;
+    private volatile long bandwidthBytesPerSecond = 0;
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double byteLossRate = 0;
+    private volatile int minReadSize = 0;
+    private volatile int maxReadSize = 0;
+    private volatile long connectDelayMillis = 0;
+    private volatile double connectFailureRate = 0;
+    private volatile long minConnectedMillis = 0;
+    private volatile long maxConnectedMillis = 0;
+
+    // State
+    private final Object lock = new Object();
+    private Random random = null; // connect decisions and per connection seeds
+    private Session session = null; // current connection
+    private int connectionCount = 0;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong lostBytes = new AtomicLong();
+
+    /**
+     * Script of device behavior, called on the device thread for every received chunk.
+     */
+    public interface Script {
+        /**
+         * @param buffer received data (valid till method returns)
+         * @param offset offset of data in buffer
+         * @param length length of data
+         * @param output write to send data to the app
+         */
+        void onReceived(byte[] buffer, int offset, int length, OutputStream output) throws IOException;
+    }
+
+    /**
+     * Source of telemetry frames.
+     */
+    public interface FrameSource {
+        /**
+         * @param sequence frame number, starting at 0 for each connection
+         * @return frame to send, null to skip
+         */
+        byte[] nextFrame(long sequence);
+    }
+
+    /**
+     * Init VirtualSppDevice object
+     * @param address device address, connect to other address fails with {@link Connection#SOCKET_NOT_FOUND}, null accepts any address
+     */
+    public VirtualSppDevice(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Get device address.
+     * @return address or null if any address is accepted
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Send received data back.
+     * @param isEcho true to echo
+     */
+    public void setEcho(boolean isEcho) {
+        this.isEcho = isEcho;
+    }
+
+    /**
+     * Add canned response, it is sent when received data ends with request (data may arrive in any chunks).
+     * @param request request text, for example "ATI\r"
+     * @param response response text
+     */
+    public void addResponse(String request, String response) {
+        addResponse(request.getBytes(), response.getBytes());
+    }
+
+    /**
+     * Add canned response, it is sent when received data ends with request (data may arrive in any chunks).
+     * @param request request bytes
+     * @param response response bytes
+     */
+    public void addResponse(byte[] request, byte[] response) {
+        if(request != null && request.length > 0 && response != null) {
+            responses.add(new byte[][] {request.clone(), response.clone()});
+            maxRequestLength = Math.max(maxRequestLength, request.length);
+        }
+    }
+
+    /**
+     * Remove all canned responses.
+     */
+    public void clearResponses() {
+        responses.clear();
+        maxRequestLength = 0;
+    }
+
+    /**
+     * Send same telemetry frame periodically while connected.
+     * @param frame frame to send
+     * @param rateHz frames per second, 0 to stop
+     */
+    public void setTelemetry(final byte[] frame, double rateHz) {
+        final byte[] copy = frame.clone();
+        setTelemetry(new FrameSource() {
+            @Override
+            public byte[] nextFrame(long sequence) {
+                return copy;
+            }
+        }, rateHz);
+    }
+
+    /**
+     * Send telemetry frames periodically while connected, frames are sent at fixed rate.
+     * @param source FrameSource
+     * @param rateHz frames per second, 0 to stop
+     */
+    public void setTelemetry(FrameSource source, double rateHz) {
+        this.telemetrySource = source;
+        this.telemetryRateHz = rateHz;
+    }
+
+    /**
+     * Set script, it is called after echo and canned responses.
+     * @param script Script, null to remove
+     */
+    public void setScript(Script script) {
+        this.script = script;
+    }
+
+    /**
+     * Set seed of all random decisions (loss, jitter, read sizes, connect failures, disconnects).
+     * @param seed seed, default 1
+     */
+    public void setSeed(long seed) {
+        synchronized (lock) {
+            this.seed = seed;
+            this.random = null;
+        }
+    }
+
+    /**
+     * Set bandwidth of each direction.
+     * @param bytesPerSecond bytes per second, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidthBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Set one way latency of each direction, data order is kept.
+     * @param latencyMillis fixed latency (in milliseconds)
+     * @param jitterMillis random extra latency from 0 to jitter (in milliseconds)
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Set probability that a byte is lost, in both directions.
+     * @param byteLossRate 0 to 1
+     */
+    public void setByteLossRate(double byteLossRate) {
+        this.byteLossRate = byteLossRate;
+    }
+
+    /**
+     * Split data sent to the app into reads of random size, like radio packets.
+     * @param minReadSize minimum bytes of one read
+     * @param maxReadSize maximum bytes of one read, 0 to disable
+     */
+    public void setFragmentation(int minReadSize, int maxReadSize) {
+        if(maxReadSize <= 0) {
+            this.minReadSize = 0;
+            this.maxReadSize = 0;
+        }
+        else {
+            this.minReadSize = Math.max(1, minReadSize);
+            this.maxReadSize = Math.max(maxReadSize, this.minReadSize);
+        }
+    }
+
+    /**
+     * Set connect behavior.
+     * @param delayMillis time a connect takes (in milliseconds)
+     * @param failureRate probability that a connect fails with {@link Connection#CONNECT_FAILED}, 0 to 1
+     */
+    public void setConnectBehavior(long delayMillis, double failureRate) {
+        this.connectDelayMillis = delayMillis;
+        this.connectFailureRate = failureRate;
+    }
+
+    /**
+     * Drop each connection after random connected time, the app gets {@link Connection#DISCONNECTED}.
+     * @param minMillis minimum connected time (in milliseconds)
+     * @param maxMillis maximum connected time (in milliseconds), 0 to disable
+     */
+    public void setDisconnectAfter(long minMillis, long maxMillis) {
+        this.minConnectedMillis = minMillis;
+        this.maxConnectedMillis = maxMillis;
+    }
+
+    /**
+     * Drop current connection now, like device power off.
+     */
+    public void disconnect() {
+        Session current;
+        synchronized (lock) {
+            current = session;
+        }
+        if(current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * isConnected method is used to check an app is connected.
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return session != null && !session.isClosed;
+        }
+    }
+
+    /**
+     * Get number of accepted connections.
+     * @return connection count
+     */
+    public int getConnectionCount() {
+        synchronized (lock) {
+            return connectionCount;
+        }
+    }
+
+    /**
+     * Get bytes received by the device.
+     * @return received bytes
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Get bytes sent by the device (before loss).
+     * @return sent bytes
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Get bytes lost by the link, both directions.
+     * @return lost bytes
+     */
+    public long getLostBytes() {
+        return lostBytes.get();
+    }
+
+    @Override
+    public Transport createTransport(String deviceAddress, boolean isSecureConnection, UUID uuid) throws IOException {
+        if(address != null && !address.equalsIgnoreCase(deviceAddress)) {
+            return null; // not this device
+        }
+
+        boolean isFailed;
+        long sessionSeed;
+        synchronized (lock) {
+            if(random == null) {
+                random = new Random(seed);
+            }
+            isFailed = random.nextDouble() < connectFailureRate;
+            sessionSeed = random.nextLong();
+        }
+
+        if(connectDelayMillis > 0) {
+            try {
+                Thread.sleep(connectDelayMillis);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Connect timeout");
+            }
+        }
+        if(isFailed) {
+            throw new IOException("Connection refused");
+        }
+
+        Session newSession = new Session(sessionSeed);
+        Session oldSession;
+        synchronized (lock) {
+            oldSession = session;
+            session = newSession;
+            connectionCount++;
+        }
+        if(oldSession != null) {
+            oldSession.close(); // one connection at a time, like SPP
+        }
+        newSession.start();
+        return newSession.transport;
+    }
+
+    // One connection, device side runs on its own threads
+    private final class Session {
+        private final Link toDevice;
+        private final Link toApp;
+        private final Random random; // telemetry and disconnect, links have their own
+        private volatile boolean isClosed = false;
+        private ScheduledFuture<?> disconnectFuture = null;
+        private Thread telemetryThread = null;
+
+        private final OutputStream deviceOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                sentBytes.addAndGet(len);
+                toApp.write(b, off, len);
+            }
+        };
+
+        // Transport of the app
+        private final Transport transport = new Transport() {
+            @Override
+            public InputStream getInputStream() {
+                return toApp.inputStream;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return toDevice.outputStream;
+            }
+
+            @Override
+            public void close() {
+                Session.this.close();
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return address;
+            }
+        };
+
+        private Session(long seed) {
+            random = new Random(seed);
+            toDevice = new Link(this, random.nextLong(), 0, 0);
+            toApp = new Link(this, random.nextLong(), minReadSize, maxReadSize);
+        }
+
+        private void start() {
+            Thread deviceThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiveLoop();
+                }
+            }, "VirtualSppDevice");
+            deviceThread.setDaemon(true);
+            deviceThread.start();
+
+            final FrameSource source = telemetrySource;
+            final double rateHz = telemetryRateHz;
+            if(source != null && rateHz > 0) {
+                telemetryThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        telemetryLoop(source, rateHz);
+                    }
+                }, "VirtualSppDeviceTelemetry");
+                telemetryThread.setDaemon(true);
+                telemetryThread.start();
+            }
+
+            if(maxConnectedMillis > 0) {
+                long connectedMillis = minConnectedMillis
+                        + (long) (random.nextDouble() * Math.max(0, maxConnectedMillis - minConnectedMillis));
+                disconnectFuture = Scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                }, connectedMillis);
+            }
+        }
+
+        // Read data of the app, answer with echo, canned responses and script
+        private void receiveLoop() {
+            byte[] buffer = new byte[1024];
+            byte[] history = new byte[64]; // last received bytes, for canned responses
+            int historyLength = 0;
+            try {
+                int count;
+                while ((count = toDevice.read(buffer, 0, buffer.length)) >= 0) {
+                    receivedBytes.addAndGet(count);
+                    if(isEcho) {
+                        deviceOutput.write(buffer, 0, count);
+                    }
+
+                    if(!responses.isEmpty()) {
+                        if(history.length < maxRequestLength) {
+                            history = Arrays.copyOf(history, maxRequestLength);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            if(historyLength == history.length) {
+                                System.arraycopy(history, 1, history, 0, historyLength - 1);
+                                historyLength--;
+                            }
+                            history[historyLength++] = buffer[i];
+                            for (byte[][] response : responses) {
+                                if(endsWith(history, historyLength, response[0])) {
+                                    deviceOutput.write(response[1]);
+                                    historyLength = 0;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+
+                    Script currentScript = script;
+                    if(currentScript != null) {
+                        currentScript.onReceived(buffer, 0, count, deviceOutput);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // connection closed
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            close();
+        }
+
+        // Send frames at fixed rate till connection is closed
+        private void telemetryLoop(FrameSource source, double rateHz) {
+            long periodNanos = (long) (1000000000L / rateHz);
+            long next = System.nanoTime();
+            long sequence = 0;
+            try {
+                while (!isClosed) {
+                    byte[] frame = source.nextFrame(sequence++);
+                    if(frame != null) {
+                        deviceOutput.write(frame);
+                    }
+                    next += periodNanos;
+                    long sleepNanos = next - System.nanoTime();
+                    if(sleepNanos > 0) {
+                        Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+                    }
+                }
+            }
+            catch (IOException e) {
+                // connection closed
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                if(isClosed) {
+                    return;
+                }
+                isClosed = true;
+            }
+            Scheduler.cancel(disconnectFuture);
+            toDevice.close();
+            toApp.close();
+            if(telemetryThread != null) {
+                telemetryThread.interrupt();
+            }
+            synchronized (lock) {
+                if(session == this) {
+                    session = null;
+                }
+            }
+        }
+    }
+
+    private static boolean endsWith(byte[] data, int length, byte[] suffix) {
+        if(suffix.length > length) {
+            return false;
+        }
+        int start = length - suffix.length;
+        for (int i = 0; i < suffix.length; i++) {
+            if(data[start + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One direction of the link, written data is delivered after bandwidth and latency delay
+    private final class Link {
+        private final Session owner;
+        private final Random random;
+        private final int minRead;
+        private final int maxRead;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private int queuedBytes = 0;
+        private boolean isClosed = false;
+        private long transmitFreeNanos = 0; // time the link finishes sending queued data
+        private long lastDeliveryNanos = 0;
+
+        private final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Link.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Link.this.available();
+            }
+
+            @Override
+            public void close() {
+                owner.close();
+            }
+        };
+
+        private final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Link.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                owner.close();
+            }
+        };
+
+        private Link(Session owner, long seed, int minRead, int maxRead) {
+            this.owner = owner;
+            this.random = new Random(seed);
+            this.minRead = minRead;
+            this.maxRead = maxRead;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (queuedBytes >= LINK_BUFFER_SIZE && !isClosed) {
+                await(0);
+            }
+            if(isClosed) {
+                throw new IOException("Connection closed");
+            }
+
+            // lost bytes are removed
+            byte[] data;
+            double lossRate = byteLossRate;
+            if(lossRate > 0) {
+                byte[] kept = new byte[len];
+                int keptCount = 0;
+                for (int i = 0; i < len; i++) {
+                    if(random.nextDouble() >= lossRate) {
+                        kept[keptCount++] = b[off + i];
+                    }
+                }
+                lostBytes.addAndGet(len - keptCount);
+                data = keptCount == len ? kept : Arrays.copyOf(kept, keptCount);
+            }
+            else {
+                data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+            }
+
+            // delivery time, order is kept
+            long now = System.nanoTime();
+            long transmitDone = now;
+            long bandwidth = bandwidthBytesPerSecond;
+            if(bandwidth > 0) {
+                transmitDone = Math.max(now, transmitFreeNanos) + len * 1000000000L / bandwidth;
+                transmitFreeNanos = transmitDone;
+            }
+            long delay = latencyMillis * 1000000L;
+            long jitter = jitterMillis;
+            if(jitter > 0) {
+                delay += (long) (random.nextDouble() * jitter * 1000000L);
+            }
+            long delivery = Math.max(transmitDone + delay, lastDeliveryNanos);
+            lastDeliveryNanos = delivery;
+
+            if(data.length > 0) {
+                segments.add(new Segment(data, delivery));
+                queuedBytes += data.length;
+                notifyAll();
+            }
+        }
+
+        // Blocks until delivered data is available, returns -1 when closed
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while (true) {
+                if(isClosed) {
+                    return -1;
+                }
+                Segment head = segments.peek();
+                if(head == null) {
+                    await(0);
+                    continue;
+                }
+                long waitNanos = head.deliveryNanos - System.nanoTime();
+                if(waitNanos > 0) {
+                    await(waitNanos);
+                    continue;
+                }
+
+                int count = Math.min(len, head.data.length - head.offset);
+                if(maxRead > 0) {
+                    count = Math.min(count, minRead + random.nextInt(maxRead - minRead + 1));
+                }
+                System.arraycopy(head.data, head.offset, b, off, count);
+                head.offset += count;
+                if(head.offset == head.data.length) {
+                    segments.poll();
+                }
+                queuedBytes -= count;
+                notifyAll();
+                return count;
+            }
+        }
+
+        // Delivered bytes not read yet
+        private synchronized int available() {
+            Segment head = segments.peek();
+            if(head == null || head.deliveryNanos > System.nanoTime()) {
+                return 0;
+            }
+            return head.data.length - head.offset;
+        }
+
+        // Close link, data in flight is lost
+        private synchronized void close() {
+            isClosed = true;
+            segments.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+
+        private void await(long nanos) throws IOException {
+            try {
+                if(nanos > 0) {
+                    wait(nanos / 1000000L, (int) (nanos % 1000000L));
+                }
+                else {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // Data in flight
+    private static final class Segment {
+        private final byte[] data;
+        private final long deliveryNanos;
+        private int offset = 0;
+
+        private Segment(byte[] data, long deliveryNanos) {
+            this.data = data;
+            this.deliveryNanos = deliveryNanos;
+        }
+    }
+}
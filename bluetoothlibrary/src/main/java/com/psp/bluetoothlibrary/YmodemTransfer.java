@@ -0,0 +1,785 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Prasad Parshram
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.psp.bluetoothlibrary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * YmodemTransfer class sends and receives a file with XMODEM-1K or YMODEM over a {@link Connection} (bootloaders etc.) :
+ * <p>- 1024 byte blocks with CRC-16 (128 byte block for a short last block and YMODEM header).
+ * <p>- File is streamed through one reused block buffer.
+ * <p>- Block is sent again on NAK, invalid block or timeout, transfer fails after maximum retries.
+ * <p>- Transfer can be cancelled by both sides.
+ * <p>- Progress and throughput.
+ * <p>Transfer runs on its own thread, listener is called on main thread. One transfer at a time.
+ */
+public class YmodemTransfer implements BluetoothListener.onRawReceiveListener {
+
+    /**
+     * XMODEM-1K, no file name and size, last block is padded with 0x1A.
+     */
+    public static final int PROTOCOL_XMODEM_1K = 1;
+
+    /**
+     * YMODEM, file name and size are sent in header block.
+     */
+    public static final int PROTOCOL_YMODEM = 2;
+
+    /**
+     * It indicates transfer is cancelled with {@link #cancel()}.
+     */
+    public static final int CANCELLED = 441;
+
+    /**
+     * It indicates other side cancelled transfer.
+     */
+    public static final int REMOTE_CANCELLED = 442;
+
+    /**
+     * It indicates other side did not start or answer.
+     */
+    public static final int TIMEOUT = 443;
+
+    /**
+     * It indicates a block failed after maximum retries.
+     */
+    public static final int RETRY_LIMIT = 444;
+
+    /**
+     * It indicates file could not be read or written.
+     */
+    public static final int IO_ERROR = 445;
+
+    /**
+     * It indicates YMODEM header block of sender is invalid.
+     */
+    public static final int INVALID_HEADER = 446;
+
+    private static final int SOH = 0x01;
+    private static final int STX = 0x02;
+    private static final int EOT = 0x04;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int CAN = 0x18;
+    private static final int CRC_MODE = 'C';
+    private static final int PAD = 0x1A;
+    private static final int SHORT_BLOCK = 128;
+    private static final int LONG_BLOCK = 1024;
+    private static final long START_INTERVAL = 3*1000; // receiver sends 'C' again
+    private static final long PURGE_SILENCE = 200;
+    private static final long PROGRESS_INTERVAL_NANOS = 100*1000000L;
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private final Connection connection;
+    private final int protocol;
+    private final Crc crc = Crc.crc16Xmodem(); // used on transfer thread only
+
+    private long startTimeout = 60*1000;
+    private long blockTimeout = 10*1000;
+    private int maxRetries = 10;
+
+    // Reused block : header (3 bytes) | data | crc (2 bytes)
+    private final byte[] block = new byte[3 + LONG_BLOCK + 2];
+
+    // Received bytes, reader thread adds and transfer thread takes
+    private final Object inputLock = new Object();
+    private byte[] input = new byte[4096];
+    private int inputStart = 0;
+    private int inputLength = 0;
+
+    private volatile Thread transferThread = null;
+    private volatile boolean isCancelled = false;
+    private volatile long transferredBytes = 0;
+    private volatile long totalBytes = -1;
+    private volatile long startNanos = 0;
+    private volatile long elapsedNanos = 0;
+    private long lastProgressNanos = 0;
+    private volatile long retransmitCount = 0;
+
+
+    /**
+     * Init YmodemTransfer object
+     * @param connection connection used for transfer
+     * @param protocol {@link #PROTOCOL_YMODEM} or {@link #PROTOCOL_XMODEM_1K}
+     */
+    public YmodemTransfer(Connection connection, int protocol) {
+        if(protocol != PROTOCOL_XMODEM_1K && protocol != PROTOCOL_YMODEM) {
+            throw new IllegalArgumentException("Invalid protocol : " + protocol);
+        }
+        this.connection = connection;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Set time to wait for other side to start. Default is 60 sec.
+     * @param timeoutMillis start timeout (in milliseconds)
+     */
+    public void setStartTimeout(long timeoutMillis) {
+        this.startTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set time to wait for answer of a block. Default is 10 sec.
+     * @param timeoutMillis block timeout (in milliseconds)
+     */
+    public void setBlockTimeout(long timeoutMillis) {
+        this.blockTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set maximum retries of one block. Default is 10.
+     * @param maxRetries maximum retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Send file.
+     * @param file file to be send
+     * @param transferListener BluetoothListener.onTransferListener
+     * @return true if transfer is started, false if a transfer is running
+     */
+    public boolean send(final File file, BluetoothListener.onTransferListener transferListener) {
+        return start(new Transfer(transferListener) {
+            @Override
+            void run() throws TransferException, IOException {
+                InputStream in = new FileInputStream(file);
+                try {
+                    runSend(in, file.getName(), file.length(), this);
+                }
+                finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Send data of stream as a file, stream is not closed.
+     * @param in data to be send
+     * @param fileName file name for YMODEM header
+     * @param size data size (in bytes), -1 if not known
+     * @param transferListener BluetoothListener.onTransferListener
+     * @return true if transfer is started, false if a transfer is running
+     */
+    public boolean send(final InputStream in, final String fileName, final long size, BluetoothListener.onTransferListener transferListener) {
+        return start(new Transfer(transferListener) {
+            @Override
+            void run() throws TransferException, IOException {
+                runSend(in, fileName, size, this);
+            }
+        });
+    }
+
+    /**
+     * Receive file.
+     * @param target file to write, or directory for YMODEM (file name from sender is used)
+     * @param transferListener BluetoothListener.onTransferListener
+     * @return true if transfer is started, false if a transfer is running
+     */
+    public boolean receive(final File target, BluetoothListener.onTransferListener transferListener) {
+        return start(new Transfer(transferListener) {
+            @Override
+            void run() throws TransferException, IOException {
+                runReceive(target, null, this);
+            }
+        });
+    }
+
+    /**
+     * Receive file into stream, stream is not closed.
+     * @param out stream to write
+     * @param transferListener BluetoothListener.onTransferListener
+     * @return true if transfer is started, false if a transfer is running
+     */
+    public boolean receive(final OutputStream out, BluetoothListener.onTransferListener transferListener) {
+        return start(new Transfer(transferListener) {
+            @Override
+            void run() throws TransferException, IOException {
+                runReceive(null, out, this);
+            }
+        });
+    }
+
+    /**
+     * Cancel running transfer, other side gets cancel too.
+     */
+    public void cancel() {
+        isCancelled = true;
+        synchronized (inputLock) {
+            inputLock.notifyAll();
+        }
+    }
+
+    /**
+     * isRunning method is used to check transfer is running or not.
+     * @return true if transfer is running
+     */
+    public boolean isRunning() {
+        return transferThread != null;
+    }
+
+    /**
+     * Get transferred file bytes of running or last transfer.
+     * @return transferred bytes
+     */
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * Get throughput of running or last transfer.
+     * @return file bytes per second
+     */
+    public double getBytesPerSecond() {
+        long nanos = transferThread != null ? System.nanoTime() - startNanos : elapsedNanos;
+        return nanos > 0 ? transferredBytes * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Get number of blocks sent again (sender) or requested again (receiver).
+     * @return retransmit count
+     */
+    public long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+
+    private synchronized boolean start(final Transfer transfer) {
+        if(transferThread != null) {
+            return false;
+        }
+        isCancelled = false;
+        transferredBytes = 0;
+        totalBytes = -1;
+        retransmitCount = 0;
+        synchronized (inputLock) {
+            inputStart = 0;
+            inputLength = 0;
+        }
+        SendReceive.getInstance().addOnRawReceiveListener(this);
+        transferThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                startNanos = System.nanoTime();
+                int errorCode = IO_ERROR; // also if stream throws an unchecked exception
+                try {
+                    transfer.run();
+                    errorCode = 0;
+                }
+                catch (TransferException e) {
+                    errorCode = e.errorCode;
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                finally {
+                    elapsedNanos = System.nanoTime() - startNanos;
+                    if(errorCode == CANCELLED || errorCode == IO_ERROR || errorCode == RETRY_LIMIT || errorCode == INVALID_HEADER) {
+                        sendCancel();
+                    }
+                    SendReceive.getInstance().removeOnRawReceiveListener(YmodemTransfer.this);
+                    transferThread = null;
+                    transfer.finish(errorCode);
+                }
+            }
+        }, "YmodemTransfer");
+        transferThread.start();
+        return true;
+    }
+
+    // ---- sender ----
+
+    private void runSend(InputStream in, String fileName, long size, Transfer transfer) throws TransferException, IOException {
+        totalBytes = size;
+        transfer.fileName = protocol == PROTOCOL_YMODEM ? fileName : null;
+        waitFor(CRC_MODE, startTimeout);
+
+        if(protocol == PROTOCOL_YMODEM) {
+            // header block : name \0 size \0
+            Arrays.fill(block, 3, 3 + SHORT_BLOCK, (byte) 0);
+            byte[] name = fileName.getBytes(LATIN_1);
+            byte[] length = (size >= 0 ? Long.toString(size) : "").getBytes(LATIN_1);
+            int nameLength = Math.min(name.length, SHORT_BLOCK - length.length - 2);
+            System.arraycopy(name, 0, block, 3, nameLength);
+            System.arraycopy(length, 0, block, 3 + nameLength + 1, length.length);
+            sendBlock(0, SHORT_BLOCK);
+            waitFor(CRC_MODE, blockTimeout);
+        }
+
+        int sequence = 1;
+        while (true) {
+            int count = readFully(in, block, 3, LONG_BLOCK);
+            if(count <= 0) {
+                break;
+            }
+            int blockSize = count <= SHORT_BLOCK ? SHORT_BLOCK : LONG_BLOCK;
+            Arrays.fill(block, 3 + count, 3 + blockSize, (byte) PAD);
+            sendBlock(sequence, blockSize);
+            sequence = (sequence + 1) & 0xFF;
+            transferredBytes += count;
+            transfer.progress(false);
+        }
+
+        // end of file, YMODEM receivers NAK first EOT
+        sendEndOfTransfer();
+        if(protocol == PROTOCOL_YMODEM) {
+            waitFor(CRC_MODE, blockTimeout);
+            Arrays.fill(block, 3, 3 + SHORT_BLOCK, (byte) 0);
+            sendBlock(0, SHORT_BLOCK); // empty header ends batch
+        }
+        transfer.progress(true);
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buffer, offset + total, length - total);
+            if(count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    // send block from reused buffer till it is acknowledged
+    private void sendBlock(int sequence, int blockSize) throws TransferException {
+        block[0] = (byte) (blockSize == SHORT_BLOCK ? SOH : STX);
+        block[1] = (byte) sequence;
+        block[2] = (byte) ~sequence;
+        crc.reset();
+        crc.update(block, 3, blockSize);
+        crc.writeValue(block, 3 + blockSize);
+
+        for (int tries = 0; tries <= maxRetries; tries++) {
+            if(tries > 0) {
+                retransmitCount++;
+                purge();
+            }
+            else {
+                clearInput();
+            }
+            checkCancelled();
+            connection.send(block, 0, 3 + blockSize + 2);
+            if(readAcknowledge(blockTimeout) == ACK) {
+                return;
+            }
+            // NAK or timeout, send again
+        }
+        throw new TransferException(RETRY_LIMIT);
+    }
+
+    private void sendEndOfTransfer() throws TransferException {
+        byte[] eot = {EOT};
+        for (int tries = 0; tries <= maxRetries; tries++) {
+            clearInput();
+            checkCancelled();
+            connection.send(eot);
+            if(readAcknowledge(blockTimeout) == ACK) {
+                return;
+            }
+        }
+        throw new TransferException(RETRY_LIMIT);
+    }
+
+    // wait for ACK or NAK, other bytes (like 'C' sent again by receiver) are skipped, -1 on timeout
+    private int readAcknowledge(long timeoutMillis) throws TransferException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (true) {
+            int answer = readAnswer((deadline - System.nanoTime()) / 1000000L);
+            if(answer == ACK || answer == NAK || answer < 0) {
+                return answer;
+            }
+        }
+    }
+
+    // wait for byte, other bytes are skipped
+    private void waitFor(int expected, long timeoutMillis) throws TransferException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (true) {
+            int answer = readAnswer((deadline - System.nanoTime()) / 1000000L);
+            if(answer == expected) {
+                return;
+            }
+            if(answer < 0 && System.nanoTime() >= deadline) {
+                throw new TransferException(TIMEOUT);
+            }
+        }
+    }
+
+    // next byte from receiver, two CAN cancel transfer, -1 on timeout
+    private int readAnswer(long timeoutMillis) throws TransferException {
+        int answer = readByte(timeoutMillis);
+        if(answer == CAN && readByte(1000) == CAN) {
+            throw new TransferException(REMOTE_CANCELLED);
+        }
+        return answer;
+    }
+
+    // ---- receiver ----
+
+    private void runReceive(File target, OutputStream targetStream, Transfer transfer) throws TransferException, IOException {
+        OutputStream out = targetStream;
+        boolean isOwnStream = false;
+        try {
+            long size = -1;
+            int first = startReceive();
+            if(protocol == PROTOCOL_YMODEM) {
+                // header block
+                int blockSize = receiveBlockAfter(first, 0);
+                String[] header = parseHeader(blockSize);
+                transfer.fileName = header[0];
+                size = parseSize(header[1]);
+                totalBytes = size;
+                sendByte(ACK);
+                first = -1;
+                sendByte(CRC_MODE);
+            }
+            if(out == null) {
+                File file = target;
+                if(target.isDirectory()) {
+                    // use only name part, sender must not choose directory
+                    file = new File(target, new File(transfer.fileName != null ? transfer.fileName : "received.bin").getName());
+                }
+                out = new FileOutputStream(file);
+                isOwnStream = true;
+            }
+
+            int expected = 1;
+            int retries = 0;
+            while (true) {
+                int start = first >= 0 ? first : readByte(blockTimeout);
+                first = -1;
+                checkCancelled();
+                if(start == EOT) {
+                    break;
+                }
+                if(start == CAN && readByte(1000) == CAN) {
+                    throw new TransferException(REMOTE_CANCELLED);
+                }
+                int blockSize = start == SOH ? SHORT_BLOCK : start == STX ? LONG_BLOCK : -1;
+                boolean isValid = blockSize > 0 && readBlock(blockSize);
+                int sequence = block[1] & 0xFF;
+                if(isValid && sequence == ((expected - 1) & 0xFF)) {
+                    sendByte(ACK); // our ACK was lost, sender repeated block
+                    continue;
+                }
+                if(!isValid || sequence != expected) {
+                    if(++retries > maxRetries) {
+                        throw new TransferException(start < 0 ? TIMEOUT : RETRY_LIMIT);
+                    }
+                    retransmitCount++;
+                    purge();
+                    sendByte(NAK);
+                    continue;
+                }
+                retries = 0;
+
+                int count = blockSize;
+                if(size >= 0) {
+                    count = (int) Math.min(count, size - transferredBytes);
+                }
+                out.write(block, 3, count);
+                transferredBytes += count;
+                expected = (expected + 1) & 0xFF;
+                sendByte(ACK);
+                transfer.progress(false);
+            }
+
+            // end of file
+            if(protocol == PROTOCOL_YMODEM) {
+                sendByte(NAK);
+                waitFor(EOT, blockTimeout);
+                sendByte(ACK);
+                sendByte(CRC_MODE);
+                int start = readByte(blockTimeout);
+                if(start == SOH && readBlock(SHORT_BLOCK)) {
+                    sendByte(ACK); // empty header ends batch
+                }
+            }
+            else {
+                sendByte(ACK);
+            }
+            out.flush();
+            transfer.progress(true);
+        }
+        finally {
+            if(isOwnStream) {
+                out.close();
+            }
+        }
+    }
+
+    // send 'C' till sender starts, returns first byte of first block
+    private int startReceive() throws TransferException {
+        long deadline = System.nanoTime() + startTimeout * 1000000L;
+        while (System.nanoTime() < deadline) {
+            checkCancelled();
+            sendByte(CRC_MODE);
+            int first = readByte(Math.min(START_INTERVAL, Math.max(1, (deadline - System.nanoTime()) / 1000000L)));
+            if(first == SOH || first == STX) {
+                return first;
+            }
+            if(first == CAN && readByte(1000) == CAN) {
+                throw new TransferException(REMOTE_CANCELLED);
+            }
+        }
+        throw new TransferException(TIMEOUT);
+    }
+
+    // receive block with given sequence, NAK and retry till valid
+    private int receiveBlockAfter(int first, int sequence) throws TransferException {
+        for (int tries = 0; tries <= maxRetries; tries++) {
+            int start = first >= 0 ? first : readByte(blockTimeout);
+            first = -1;
+            checkCancelled();
+            int blockSize = start == SOH ? SHORT_BLOCK : start == STX ? LONG_BLOCK : -1;
+            if(blockSize > 0 && readBlock(blockSize) && (block[1] & 0xFF) == sequence) {
+                return blockSize;
+            }
+            retransmitCount++;
+            purge();
+            sendByte(NAK);
+        }
+        throw new TransferException(RETRY_LIMIT);
+    }
+
+    // read rest of block after start byte, returns true if sequence and crc are valid
+    private boolean readBlock(int blockSize) throws TransferException {
+        if(!readFully(block, 1, 2 + blockSize + 2, blockTimeout)) {
+            return false;
+        }
+        if(((block[1] ^ block[2]) & 0xFF) != 0xFF) {
+            return false;
+        }
+        crc.reset();
+        crc.update(block, 3, blockSize);
+        return crc.getValue() == crc.readValue(block, 3 + blockSize);
+    }
+
+    // name and size of YMODEM header block
+    private String[] parseHeader(int blockSize) {
+        int end = 3 + blockSize;
+        int nameEnd = 3;
+        while (nameEnd < end && block[nameEnd] != 0) {
+            nameEnd++;
+        }
+        int sizeStart = nameEnd + 1;
+        int sizeEnd = sizeStart;
+        while (sizeEnd < end && block[sizeEnd] >= '0' && block[sizeEnd] <= '9') {
+            sizeEnd++;
+        }
+        return new String[] {
+                new String(block, 3, nameEnd - 3, LATIN_1),
+                sizeStart < end ? new String(block, sizeStart, sizeEnd - sizeStart, LATIN_1) : ""
+        };
+    }
+
+    // file size of header, -1 if not sent
+    private static long parseSize(String size) throws TransferException {
+        if(size.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(size);
+        }
+        catch (NumberFormatException e) {
+            throw new TransferException(INVALID_HEADER); // too many digits
+        }
+    }
+
+    // ---- received bytes ----
+
+    // Called on reader thread
+    @Override
+    public void onRawReceived(byte[] buffer, int offset, int length) {
+        synchronized (inputLock) {
+            if(inputStart + inputLength + length > input.length) {
+                // move data to start, grow if needed
+                byte[] newInput = inputLength + length > input.length ? new byte[Math.max(input.length * 2, inputLength + length)] : input;
+                System.arraycopy(input, inputStart, newInput, 0, inputLength);
+                input = newInput;
+                inputStart = 0;
+            }
+            System.arraycopy(buffer, offset, input, inputStart + inputLength, length);
+            inputLength += length;
+            inputLock.notifyAll();
+        }
+    }
+
+    // next received byte, -1 on timeout
+    private int readByte(long timeoutMillis) throws TransferException {
+        long deadline = System.nanoTime() + Math.max(0, timeoutMillis) * 1000000L;
+        synchronized (inputLock) {
+            while (inputLength == 0) {
+                checkCancelled();
+                long waitMillis = (deadline - System.nanoTime()) / 1000000L;
+                if(waitMillis <= 0) {
+                    return -1;
+                }
+                try {
+                    inputLock.wait(waitMillis);
+                }
+                catch (InterruptedException e) {
+                    throw new TransferException(CANCELLED);
+                }
+            }
+            int value = input[inputStart] & 0xFF;
+            inputStart++;
+            inputLength--;
+            return value;
+        }
+    }
+
+    // read bytes into buffer, false on timeout
+    private boolean readFully(byte[] buffer, int offset, int length, long timeoutMillis) throws TransferException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        int total = 0;
+        synchronized (inputLock) {
+            while (total < length) {
+                checkCancelled();
+                if(inputLength == 0) {
+                    long waitMillis = (deadline - System.nanoTime()) / 1000000L;
+                    if(waitMillis <= 0) {
+                        return false;
+                    }
+                    try {
+                        inputLock.wait(waitMillis);
+                    }
+                    catch (InterruptedException e) {
+                        throw new TransferException(CANCELLED);
+                    }
+                    continue;
+                }
+                int count = Math.min(length - total, inputLength);
+                System.arraycopy(input, inputStart, buffer, offset + total, count);
+                inputStart += count;
+                inputLength -= count;
+                total += count;
+            }
+        }
+        return true;
+    }
+
+    // drop received bytes till line is quiet, so next block starts clean
+    private void purge() throws TransferException {
+        while (readByte(PURGE_SILENCE) >= 0) {
+            clearInput();
+        }
+    }
+
+    // drop bytes already received
+    private void clearInput() {
+        synchronized (inputLock) {
+            inputStart = 0;
+            inputLength = 0;
+        }
+    }
+
+    private void sendByte(int value) {
+        connection.send(new byte[] {(byte) value});
+    }
+
+    private void sendCancel() {
+        connection.send(new byte[] {CAN, CAN, CAN, CAN, CAN});
+    }
+
+    private void checkCancelled() throws TransferException {
+        if(isCancelled) {
+            throw new TransferException(CANCELLED);
+        }
+    }
+
+
+    // One transfer, reports progress and result on main thread
+    private abstract class Transfer {
+        private final BluetoothListener.onTransferListener transferListener;
+        private String fileName = null;
+
+        private Transfer(BluetoothListener.onTransferListener transferListener) {
+            this.transferListener = transferListener;
+        }
+
+        abstract void run() throws TransferException, IOException;
+
+        // posted at most every 100 ms, and always when finished
+        private void progress(boolean isForced) {
+            long now = System.nanoTime();
+            if(transferListener == null || (!isForced && now - lastProgressNanos < PROGRESS_INTERVAL_NANOS)) {
+                return;
+            }
+            lastProgressNanos = now;
+            final long transferred = transferredBytes;
+            final long total = totalBytes;
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    transferListener.onTransferProgress(transferred, total);
+                }
+            });
+        }
+
+        private void finish(final int errorCode) {
+            if(transferListener == null) {
+                return;
+            }
+            final long transferred = transferredBytes;
+            final long elapsedMillis = elapsedNanos / 1000000L;
+            Dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(errorCode == 0) {
+                        transferListener.onTransferFinished(fileName, transferred, elapsedMillis);
+                    }
+                    else {
+                        transferListener.onTransferFailed(errorCode);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class TransferException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        private TransferException(int errorCode) {
+            this.errorCode = errorCode;
+        }
+    }
+}
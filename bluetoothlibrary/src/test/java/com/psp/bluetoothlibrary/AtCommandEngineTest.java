@@ -0,0 +1,119 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * AtCommandEngine against a virtual AT module.
+ */
+public class AtCommandEngineTest {
+
+    private ExecutorService dispatcher;
+    private VirtualSppDevice device;
+    private Module module;
+    private Connection connection;
+    private AtCommandEngine engine;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        device = new VirtualSppDevice("00:11:22:33:44:66");
+        module = new Module();
+        device.setScript(module);
+        device.setFragmentation(1, 4);
+        connection = new Connection(null);
+        connection.setTransportFactory(device);
+
+        LineParserStage lineParser = new LineParserStage();
+        SendReceive.getInstance().addStage(lineParser);
+        ConnectionRecorder recorder = new ConnectionRecorder();
+        assertTrue(connection.connect(device.getAddress(), false, recorder, null));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+        engine = new AtCommandEngine(connection, lineParser);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+        connection.disconnect();
+        SendReceive.getInstance().clearStages();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void matchesResponsesToCommands() {
+        AtResponse name = engine.send("AT+NAME?");
+        AtResponse version = engine.send("AT+VERSION?");
+        assertEquals(Collections.singletonList("+NAME:HC-05"), name.get(2000));
+        assertEquals(Collections.singletonList("+VERSION:2.0"), version.get(2000));
+        assertTrue(version.isOk());
+    }
+
+    @Test(timeout = 10000)
+    public void lateResponseDoesNotCompleteNextCommand() {
+        module.slowDelayMillis = 300;
+        engine.send("AT+SLOW", 100, null);
+        AtResponse next = engine.send("AT+NAME?");
+
+        assertEquals(Collections.singletonList("+NAME:HC-05"), next.get(3000));
+        assertEquals(1, engine.getTimeoutCount());
+    }
+
+    @Test(timeout = 10000)
+    public void sendsNextCommandAfterResyncTimeout() {
+        module.slowDelayMillis = -1; // never answered
+        engine.setResyncTimeout(200);
+        AtResponse slow = engine.send("AT+SLOW", 100, null);
+        AtResponse next = engine.send("AT+NAME?");
+
+        assertEquals(Collections.singletonList("+NAME:HC-05"), next.get(3000));
+        assertEquals(AtCommandEngine.TIMEOUT, slow.getErrorCode());
+    }
+
+
+    // Module answers AT+NAME?, AT+VERSION? and AT+SLOW (after delay) line by line
+    private static class Module implements VirtualSppDevice.Script {
+        private final StringBuilder line = new StringBuilder();
+        volatile long slowDelayMillis = 0;
+
+        @Override
+        public void onReceived(byte[] buffer, int offset, int length, OutputStream output) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                char c = (char) buffer[i];
+                if(c != '\r') {
+                    line.append(c);
+                    continue;
+                }
+                String command = line.toString();
+                line.setLength(0);
+                if(command.equals("AT+NAME?")) {
+                    output.write("+NAME:HC-05\r\nOK\r\n".getBytes());
+                }
+                else if(command.equals("AT+VERSION?")) {
+                    output.write("+VERSION:2.0\r\nOK\r\n".getBytes());
+                }
+                else if(command.equals("AT+SLOW") && slowDelayMillis >= 0) {
+                    try {
+                        Thread.sleep(slowDelayMillis); // module is busy
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    output.write("+SLOW:1\r\nOK\r\n".getBytes());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Size classes and reuse of BufferPool.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void roundsCapacityUpToSizeClass() {
+        BufferPool pool = new BufferPool(4);
+        assertEquals(64, pool.acquire(0).length);
+        assertEquals(64, pool.acquire(64).length);
+        assertEquals(128, pool.acquire(65).length);
+        assertEquals(1024, pool.acquire(1000).length);
+        assertEquals(64*1024, pool.acquire(64*1024).length);
+        // larger buffers are not pooled
+        assertEquals(64*1024 + 1, pool.acquire(64*1024 + 1).length);
+    }
+
+    @Test
+    public void reusesReleasedBufferOfSameSizeClass() {
+        BufferPool pool = new BufferPool(4);
+        byte[] buffer = pool.acquire(200);
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(100)); // other size class
+        assertSame(buffer, pool.acquire(129));
+        assertNotSame(buffer, pool.acquire(256)); // given out once
+    }
+
+    @Test
+    public void ignoresBuffersNotOfSizeClass() {
+        BufferPool pool = new BufferPool(4);
+        byte[] odd = new byte[100];
+        byte[] small = new byte[32];
+        byte[] large = new byte[128*1024];
+        pool.release(odd);
+        pool.release(small);
+        pool.release(large);
+        pool.release(null);
+
+        byte[] buffer = pool.acquire(100);
+        assertNotSame(odd, buffer);
+        assertEquals(128, buffer.length);
+        assertNotSame(small, pool.acquire(32));
+        assertNotSame(large, pool.acquire(128*1024));
+    }
+
+    @Test
+    public void keepsAtMostMaxBuffersPerSize() {
+        BufferPool pool = new BufferPool(1);
+        byte[] first = new byte[64];
+        byte[] second = new byte[64];
+        pool.release(first);
+        pool.release(second); // pool of this size is full
+
+        assertSame(first, pool.acquire(64));
+        byte[] buffer = pool.acquire(64);
+        assertNotSame(first, buffer);
+        assertNotSame(second, buffer);
+    }
+}
@@ -0,0 +1,182 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChannelMultiplexer over an in-memory transport, the peer multiplexer is the receiver.
+ */
+public class ChannelMultiplexerTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private PeerConnection peer;
+    private ChannelMultiplexer multiplexer;
+    private ChannelMultiplexer peerMultiplexer;
+    private final List<byte[]> peerMessages = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        connection = new Connection(null);
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+        peer = new PeerConnection(pair[1]);
+
+        multiplexer = new ChannelMultiplexer(connection);
+        peerMultiplexer = new ChannelMultiplexer(peer);
+        peer.attach(peerMultiplexer);
+        peerMultiplexer.openChannel(1, new BluetoothListener.onChannelReceiveListener() {
+            @Override
+            public void onChannelReceived(int channelId, byte[] data) {
+                synchronized (peerMessages) {
+                    peerMessages.add(data);
+                    peerMessages.notifyAll();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        multiplexer.close();
+        peerMultiplexer.close();
+        connection.disconnect();
+        peer.close();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 20000)
+    public void sendsMessageLargerThanRemainingCredit() throws InterruptedException {
+        ChannelMultiplexer.Channel channel = multiplexer.openChannel(1, null);
+        byte[] small = randomBytes(100, 1);
+        byte[] large = randomBytes(64*1024, 2); // equal to initial credit
+
+        assertTrue(channel.send(small));
+        assertTrue(channel.send(large));
+
+        List<byte[]> messages = awaitMessages(2, 10000);
+        assertEquals(2, messages.size());
+        assertArrayEquals(small, messages.get(0));
+        assertArrayEquals(large, messages.get(1));
+    }
+
+    @Test(timeout = 30000)
+    public void sendsManyMessagesOfMixedSize() throws InterruptedException {
+        ChannelMultiplexer.Channel channel = multiplexer.openChannel(1, null);
+        Random random = new Random(3);
+        List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] message = randomBytes(1 + random.nextInt(64*1024), i);
+            sent.add(message);
+            assertTrue(channel.send(message));
+        }
+
+        List<byte[]> messages = awaitMessages(sent.size(), 20000);
+        assertEquals(sent.size(), messages.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), messages.get(i));
+        }
+        assertEquals(0, peerMultiplexer.getDroppedFrameCount());
+    }
+
+    @Test(timeout = 20000)
+    public void skipsBytesBetweenFrames() throws InterruptedException {
+        ChannelMultiplexer.Channel channel = multiplexer.openChannel(1, null);
+        byte[] first = randomBytes(1000, 4);
+        byte[] second = randomBytes(1000, 5);
+
+        // noise with magic bytes and a header of bad checksum
+        assertTrue(connection.send(new byte[] {0x00, 0x12, (byte) 0xC3, 0x02, 0x01, 0x00, 0x08, 0x00, 0x7F}));
+        assertTrue(channel.send(first));
+        assertEquals(1, awaitMessages(1, 5000).size());
+        assertTrue(connection.send(new byte[] {(byte) 0xC3, (byte) 0xC3, 0x55}));
+        assertTrue(channel.send(second));
+
+        List<byte[]> messages = awaitMessages(2, 5000);
+        assertEquals(2, messages.size());
+        assertArrayEquals(first, messages.get(0));
+        assertArrayEquals(second, messages.get(1));
+        assertTrue(peerMultiplexer.getDroppedFrameCount() >= 1);
+    }
+
+    @Test(timeout = 20000)
+    public void sendsMessageQueuedWhileDisconnected() throws InterruptedException {
+        ChannelMultiplexer.Channel channel = multiplexer.openChannel(1, null);
+        connection.disconnect();
+        byte[] message = randomBytes(3000, 6);
+        assertTrue(channel.send(message));
+        Thread.sleep(200); // writer fails to send
+
+        reconnect();
+        List<byte[]> messages = awaitMessages(1, 5000);
+        assertEquals(1, messages.size());
+        assertArrayEquals(message, messages.get(0));
+        assertEquals(0, channel.getQueuedBytes());
+    }
+
+    @Test(timeout = 20000)
+    public void resendsPartlySentMessageAfterReconnect() throws InterruptedException {
+        ChannelMultiplexer.Channel channel = multiplexer.openChannel(1, null);
+        // peer drops everything, so no credit comes back after first 64 KB
+        peer.setOnRawReceiveListener(new BluetoothListener.onRawReceiveListener() {
+            @Override
+            public void onRawReceived(byte[] buffer, int offset, int length) {
+            }
+        });
+        byte[] lost = randomBytes(40*1024, 7);
+        byte[] message = randomBytes(40*1024, 8);
+        assertTrue(channel.send(lost));
+        assertTrue(channel.send(message));
+        long end = System.currentTimeMillis() + 5000;
+        while (channel.getSendCredit() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, channel.getSendCredit()); // second message is partly sent
+
+        connection.disconnect();
+        peer.setOnRawReceiveListener(peerMultiplexer);
+        reconnect();
+        List<byte[]> messages = awaitMessages(1, 10000);
+        assertEquals(1, messages.size());
+        assertArrayEquals(message, messages.get(0));
+        assertEquals(0, peerMultiplexer.getDroppedFrameCount());
+    }
+
+    // New transport for both sides, multiplexer of connection is reset by SendReceive
+    private void reconnect() {
+        peer.close();
+        PipedTransport[] pair = PipedTransport.createPair();
+        peer.setTransport(pair[1]);
+        peerMultiplexer.reset();
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+    }
+
+    private List<byte[]> awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (peerMessages) {
+            while (peerMessages.size() < count && System.currentTimeMillis() < end) {
+                peerMessages.wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return new ArrayList<>(peerMessages);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
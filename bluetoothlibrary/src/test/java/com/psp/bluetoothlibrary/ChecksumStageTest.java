@@ -0,0 +1,100 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChecksumStage framing telemetry of a virtual device split into random reads.
+ */
+public class ChecksumStageTest {
+
+    private static final int FRAME_COUNT = 40;
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private ChecksumStage stage;
+    private VirtualSppDevice device;
+    private final ConnectionRecorder recorder = new ConnectionRecorder();
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        // 0x55 | length | payload | CRC-16
+        stage = new ChecksumStage(Crc.crc16Ccitt(), ChecksumStage.lengthField(1, 1, 0));
+        SendReceive.getInstance().addStage(stage);
+
+        device = new VirtualSppDevice("00:00:00:00:00:10");
+        device.setFragmentation(1, 5);
+        connection = new Connection(null);
+        connection.setTransportFactory(device);
+    }
+
+    @After
+    public void tearDown() {
+        connection.disconnect();
+        SendReceive.getInstance().clearStages();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void framesFragmentedTelemetry() throws InterruptedException {
+        final Crc crc = Crc.crc16Ccitt();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            if(!isCorrupted(i)) {
+                byte[] frame = frame(crc, i);
+                expected.write(frame, 0, frame.length - 2); // checksum is removed
+            }
+        }
+        device.setTelemetry(new VirtualSppDevice.FrameSource() {
+            @Override
+            public byte[] nextFrame(long sequence) {
+                if(sequence >= FRAME_COUNT) {
+                    return null;
+                }
+                byte[] frame = frame(crc, (int) sequence);
+                if(isCorrupted((int) sequence)) {
+                    frame[frame.length - 1] ^= 0x01;
+                }
+                return frame;
+            }
+        }, 500);
+
+        assertTrue(connection.connect(device.getAddress(), false, recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+
+        byte[] received = recorder.awaitReceived(expected.size(), 5000);
+        assertArrayEquals(expected.toByteArray(), received);
+        assertEquals(FRAME_COUNT - FRAME_COUNT / 7 - 1, stage.getValidFrameCount());
+        assertEquals(FRAME_COUNT / 7 + 1, stage.getInvalidFrameCount());
+    }
+
+    // every 7th frame has a bad checksum
+    private static boolean isCorrupted(int sequence) {
+        return sequence % 7 == 3;
+    }
+
+    // frames of different length, payload starts with sequence
+    private static byte[] frame(Crc crc, int sequence) {
+        int length = 1 + sequence % 9;
+        byte[] frame = new byte[2 + length + 2];
+        frame[0] = 0x55;
+        frame[1] = (byte) length;
+        Arrays.fill(frame, 2, 2 + length, (byte) sequence);
+        crc.reset();
+        crc.update(frame, 0, 2 + length);
+        crc.writeValue(frame, 2 + length);
+        return frame;
+    }
+}
@@ -0,0 +1,128 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * CompressionStage blocks passed from a sending stage to a receiving stage in random chunks.
+ */
+public class CompressionStageTest {
+
+    private CompressionStage sender;
+    private CompressionStage receiver;
+    private final List<byte[]> blocks = new ArrayList<>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final Random random = new Random(7);
+
+    private final Stage.Output wire = new Stage.Output() {
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            byte[] block = new byte[length];
+            System.arraycopy(buffer, offset, block, 0, length);
+            blocks.add(block);
+        }
+    };
+
+    private final Stage.Output app = new Stage.Output() {
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            received.write(buffer, offset, length);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        sender = new CompressionStage();
+        receiver = new CompressionStage();
+        sender.setRestartInterval(4);
+    }
+
+    @Test
+    public void decodesFragmentedBlocks() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            byte[] message = message(i, i % 3 == 0 ? 20 : 600); // some blocks are stored
+            expected.write(message);
+            sender.onSend(message, 0, message.length, wire);
+        }
+        receive(0, blocks.size());
+        assertArrayEquals(expected.toByteArray(), received.toByteArray());
+        assertEquals(0, receiver.getInvalidBlockCount());
+        assertTrue(sender.getSendCompressionRatio() > 1);
+    }
+
+    @Test
+    public void recoversAfterBadHeader() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            byte[] message = message(i, 600);
+            sender.onSend(message, 0, message.length, wire);
+        }
+        blocks.get(5)[3] ^= 0x40; // length of block 5
+
+        receive(0, blocks.size());
+        // block 5 is lost, 6 and 7 need its dictionary, 8 starts a new stream
+        assertArrayEquals(concat(0, 5, 8, 20), received.toByteArray());
+        assertTrue(receiver.getInvalidBlockCount() > 0);
+    }
+
+    @Test
+    public void skipsGarbageBetweenBlocks() throws IOException {
+        for (int i = 0; i < 12; i++) {
+            byte[] message = message(i, 600);
+            sender.onSend(message, 0, message.length, wire);
+        }
+        byte[] garbage = new byte[50];
+        random.nextBytes(garbage);
+        garbage[10] = (byte) 0xC5; // sync byte in garbage
+        blocks.add(6, garbage);
+
+        receive(0, blocks.size());
+        // 6 and 7 come after lost bytes in the middle of stream 4 to 7
+        assertArrayEquals(concat(0, 6, 8, 12), received.toByteArray());
+        assertEquals(3, receiver.getInvalidBlockCount()); // garbage, blocks 6 and 7
+    }
+
+    // feed blocks to receiver in random chunks of 1 to 50 bytes
+    private void receive(int from, int to) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) {
+            stream.write(blocks.get(i));
+        }
+        byte[] bytes = stream.toByteArray();
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = Math.min(1 + random.nextInt(50), bytes.length - offset);
+            receiver.onReceive(bytes, offset, count, app);
+            offset += count;
+        }
+    }
+
+    // messages from..to-1 and from2..to2-1
+    private static byte[] concat(int from, int to, int from2, int to2) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) {
+            stream.write(message(i, 600));
+        }
+        for (int i = from2; i < to2; i++) {
+            stream.write(message(i, 600));
+        }
+        return stream.toByteArray();
+    }
+
+    // compressible text
+    private static byte[] message(int index, int length) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            builder.append("message ").append(index).append(" value ").append(builder.length() * 31 % 97).append('\n');
+        }
+        return builder.substring(0, length).getBytes();
+    }
+}
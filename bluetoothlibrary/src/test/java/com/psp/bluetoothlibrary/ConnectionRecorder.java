@@ -0,0 +1,101 @@
+package com.psp.bluetoothlibrary;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records connection states and received data of a test connection, and waits for them.
+ */
+class ConnectionRecorder implements BluetoothListener.onConnectionListener, BluetoothListener.onReceiveListener {
+
+    private final List<Integer> states = new ArrayList<>();
+    private final List<Integer> errors = new ArrayList<>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void onConnectionStateChanged(BluetoothSocket socket, int state) {
+        states.add(state);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(int errorCode) {
+        errors.add(errorCode);
+        notifyAll();
+    }
+
+    @Override
+    public void onReceived(String receivedData) {
+    }
+
+    @Override
+    public synchronized void onReceived(String receivedData, byte[] receivedDataInBytes) {
+        received.write(receivedDataInBytes, 0, receivedDataInBytes.length);
+        notifyAll();
+    }
+
+    /**
+     * Wait until state is received count times.
+     * @return true if received before timeout
+     */
+    synchronized boolean awaitState(int state, int count, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (count(states, state) < count) {
+            long wait = end - System.currentTimeMillis();
+            if(wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until connection fails with error code.
+     * @return true if received before timeout
+     */
+    synchronized boolean awaitError(int errorCode, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (count(errors, errorCode) == 0) {
+            long wait = end - System.currentTimeMillis();
+            if(wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until length bytes are received.
+     * @return received bytes, may be shorter than length on timeout
+     */
+    synchronized byte[] awaitReceived(int length, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (received.size() < length) {
+            long wait = end - System.currentTimeMillis();
+            if(wait <= 0) {
+                break;
+            }
+            wait(wait);
+        }
+        return received.toByteArray();
+    }
+
+    synchronized List<Integer> getStates() {
+        return new ArrayList<>(states);
+    }
+
+    private static int count(List<Integer> list, int value) {
+        int count = 0;
+        for (int v : list) {
+            if(v == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,131 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adaptive connect timeout and strategy order of ConnectionStats.
+ */
+public class ConnectionStatsTest {
+
+    private static final String ADDRESS = "00:11:22:aa:bb:cc";
+    private static final UUID SPP = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER = UUID.fromString("0000110a-0000-1000-8000-00805f9b34fb");
+    private static final long DEFAULT_TIMEOUT = 35*1000;
+
+    private MemorySharedPreferences preferences;
+    private ConnectionStats stats;
+
+    @Before
+    public void setUp() {
+        preferences = new MemorySharedPreferences();
+        stats = new ConnectionStats(preferences);
+    }
+
+    @Test
+    public void usesDefaultTimeoutUntilEnoughSamples() {
+        for (int i = 0; i < 4; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 2000);
+        }
+        assertEquals(DEFAULT_TIMEOUT, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        stats.recordSuccess(ADDRESS, true, SPP, 2000);
+        assertEquals(4000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void timeoutIsPercentileTimesMargin() {
+        // 10 samples, 99th percentile is the largest
+        for (int i = 1; i <= 10; i++) {
+            stats.recordSuccess(ADDRESS, i % 2 == 0, SPP, i * 1000);
+        }
+        assertEquals(20000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        stats.setTimeoutMargin(1.5f);
+        assertEquals(15000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        assertEquals(12000, stats.getConnectTimeout(ADDRESS, 12000)); // default is upper limit
+
+        // lower limit
+        stats.clear();
+        for (int i = 0; i < 5; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 100);
+        }
+        assertEquals(ConnectionStats.MIN_CONNECT_TIMEOUT, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void timeoutGrowsAfterTimedOutConnects() {
+        stats.setTimeoutMargin(1);
+        for (int i = 0; i < 5; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 4000);
+        }
+        assertEquals(4000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+
+        stats.recordTimeout(ADDRESS, true, SPP, 4000);
+        assertEquals(8000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        stats.recordTimeout(ADDRESS, true, SPP, 8000);
+        assertEquals(16000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        stats.recordTimeout(ADDRESS, true, SPP, 16000);
+        stats.recordTimeout(ADDRESS, true, SPP, 32000);
+        assertEquals(DEFAULT_TIMEOUT, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void timedOutConnectIsSlowerThanSuccessOfSameTime() {
+        stats.setTimeoutMargin(1);
+        for (int i = 0; i < 5; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 1000);
+        }
+        stats.recordSuccess(ADDRESS, true, SPP, 5000);
+        stats.recordTimeout(ADDRESS, true, SPP, 5000);
+        assertEquals(10000, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void strategiesAreOrderedByExpectedConnectTime() {
+        // secure SPP : 500 ms always connects, insecure OTHER : 200 ms connects every second time
+        for (int i = 0; i < 4; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 500);
+            stats.recordSuccess(ADDRESS, false, OTHER, 200);
+            stats.recordFailure(ADDRESS, false, OTHER);
+        }
+
+        assertEquals(Arrays.asList(new ConnectionStats.Strategy(false, OTHER), new ConnectionStats.Strategy(true, SPP),
+                new ConnectionStats.Strategy(false, SPP)), stats.getStrategies(ADDRESS, false, SPP));
+
+        // insecure strategy is never tried for secure request
+        assertEquals(Arrays.asList(new ConnectionStats.Strategy(true, SPP)), stats.getStrategies(ADDRESS, true, SPP));
+
+        // timeouts make insecure OTHER slower
+        for (int i = 0; i < 4; i++) {
+            stats.recordTimeout(ADDRESS, false, OTHER, 3000);
+        }
+        assertEquals(new ConnectionStats.Strategy(true, SPP), stats.getStrategies(ADDRESS, false, OTHER).get(0));
+    }
+
+    @Test
+    public void unknownDeviceUsesRequestedStrategy() {
+        assertEquals(Arrays.asList(new ConnectionStats.Strategy(false, OTHER)), stats.getStrategies(ADDRESS, false, OTHER));
+        assertEquals(DEFAULT_TIMEOUT, stats.getConnectTimeout(ADDRESS, DEFAULT_TIMEOUT));
+        assertEquals(0, stats.getLastSeen(ADDRESS));
+    }
+
+    @Test
+    public void statsAreLoadedFromPreferences() {
+        stats.setTimeoutMargin(1);
+        for (int i = 0; i < 5; i++) {
+            stats.recordSuccess(ADDRESS, true, SPP, 4000);
+        }
+        stats.recordTimeout(ADDRESS, true, SPP, 6000);
+        stats.recordSuccess(ADDRESS, false, OTHER, 100);
+
+        ConnectionStats loaded = new ConnectionStats(preferences);
+        loaded.setTimeoutMargin(1);
+        assertEquals(12000, loaded.getConnectTimeout(ADDRESS.toUpperCase(), DEFAULT_TIMEOUT));
+        assertEquals(stats.getStrategies(ADDRESS, false, SPP), loaded.getStrategies(ADDRESS, false, SPP));
+        assertEquals(stats.getLastSeen(ADDRESS), loaded.getLastSeen(ADDRESS));
+    }
+}
@@ -0,0 +1,142 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection states over virtual devices.
+ */
+public class ConnectionTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+        connection = new Connection(null);
+    }
+
+    @After
+    public void tearDown() {
+        connection.disconnect();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledAttemptDoesNotTakeOverNewAttempt() throws InterruptedException {
+        VirtualSppDevice slowDevice = new VirtualSppDevice("00:00:00:00:00:01");
+        slowDevice.setConnectBehavior(300, 0);
+        VirtualSppDevice device = new VirtualSppDevice("00:00:00:00:00:02");
+        device.setConnectBehavior(600, 0);
+
+        connection.setTransportFactory(slowDevice);
+        ConnectionRecorder cancelled = new ConnectionRecorder();
+        assertTrue(connection.connect(slowDevice.getAddress(), false, cancelled, null));
+        Thread.sleep(50);
+        connection.disconnect();
+
+        // first attempt finishes connecting while this one is running
+        connection.setTransportFactory(device);
+        ConnectionRecorder recorder = new ConnectionRecorder();
+        assertTrue(connection.connect(device.getAddress(), false, recorder, null));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+        assertEquals(device.getAddress(), connection.getTransport().getRemoteAddress());
+        assertFalse(cancelled.awaitState(Connection.CONNECTED, 1, 100));
+    }
+
+    @Test(timeout = 30000)
+    public void disconnectWhileConnectFinishesLeavesNothingOpen() throws InterruptedException {
+        VirtualSppDevice device = new VirtualSppDevice("00:00:00:00:00:05");
+        connection.setTransportFactory(device);
+        final List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                uncaught.add(throwable);
+            }
+        });
+        try {
+            Random random = new Random(5);
+            for (int i = 0; i < 200; i++) {
+                ConnectionRecorder recorder = new ConnectionRecorder();
+                assertTrue(connection.connect(device.getAddress(), false, recorder, recorder));
+                busyWait(random.nextInt(200) * 1000L);
+                connection.disconnect();
+
+                // transport of a cancelled attempt is closed, a connected one is closed by disconnect
+                long end = System.currentTimeMillis() + 1000;
+                while (device.isConnected() && System.currentTimeMillis() < end) {
+                    Thread.sleep(1);
+                }
+                assertFalse("attempt " + i, device.isConnected());
+            }
+            Thread.sleep(100);
+            assertTrue(uncaught.toString(), uncaught.isEmpty());
+        }
+        finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectsAfterDeviceDisconnects() throws InterruptedException {
+        VirtualSppDevice device = new VirtualSppDevice("00:00:00:00:00:03");
+        device.setEcho(true);
+        connection.setTransportFactory(device);
+        ConnectionRecorder recorder = new ConnectionRecorder();
+        assertTrue(connection.connect(device.getAddress(), false, recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+        assertTrue(connection.send("one".getBytes()));
+        assertEquals("one", new String(recorder.awaitReceived(3, 3000)));
+
+        device.disconnect();
+        assertTrue(recorder.awaitState(Connection.DISCONNECTED, 1, 3000));
+        assertFalse(connection.isConnected());
+
+        assertTrue(connection.reconnect());
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 2, 3000));
+        assertEquals(Arrays.asList(Connection.CONNECTING, Connection.CONNECTED, Connection.DISCONNECTED,
+                Connection.RECONNECTING, Connection.CONNECTED), recorder.getStates());
+        assertEquals(2, device.getConnectionCount());
+        assertTrue(connection.send("two".getBytes()));
+        assertEquals("onetwo", new String(recorder.awaitReceived(6, 3000)));
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectsWhileConnected() throws InterruptedException {
+        VirtualSppDevice device = new VirtualSppDevice("00:00:00:00:00:04");
+        device.setEcho(true);
+        connection.setTransportFactory(device);
+        ConnectionRecorder recorder = new ConnectionRecorder();
+        assertTrue(connection.connect(device.getAddress(), false, recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+
+        assertTrue(connection.reconnect());
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 2, 3000));
+        assertFalse(recorder.getStates().contains(Connection.DISCONNECTED));
+        assertEquals(2, device.getConnectionCount());
+        assertTrue(connection.send("echo".getBytes()));
+        assertEquals("echo", new String(recorder.awaitReceived(4, 3000)));
+    }
+
+    private static void busyWait(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reporting of discovery results by DiscoveryCache.
+ */
+public class DiscoveryCacheTest {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private DiscoveryCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new DiscoveryCache();
+        cache.startDiscovery();
+    }
+
+    @Test
+    public void backToBackDiscoveriesReportSameDevice() {
+        assertNotNull(cache.update(ADDRESS, null, "sensor", null, (short) -60));
+        assertNull(cache.update(ADDRESS, null, "sensor", null, (short) -60));
+
+        // device is still within time to live and signal is unchanged
+        cache.startDiscovery();
+        assertNotNull(cache.update(ADDRESS, null, "sensor", null, (short) -61));
+        assertNull(cache.update(ADDRESS, null, "sensor", null, (short) -61));
+    }
+
+    @Test
+    public void signalChangeIsReportedInSameDiscovery() {
+        assertNotNull(cache.update(ADDRESS, null, "sensor", null, (short) -60));
+        assertNull(cache.update(ADDRESS, null, "sensor", null, (short) -65));
+        DiscoveredDevice device = cache.update(ADDRESS, null, null, null, (short) -71);
+        assertNotNull(device);
+        assertEquals(-71, device.getRssi());
+        assertEquals("sensor", device.getName());
+    }
+
+    @Test
+    public void unreportedResultUpdatesCachedDevice() {
+        DiscoveredDevice reported = cache.update(ADDRESS, null, "sensor", null, (short) -60);
+        assertSame(reported, cache.get(ADDRESS)); // built once for report and read
+
+        assertNull(cache.update(ADDRESS, null, null, null, (short) -64));
+        DiscoveredDevice device = cache.get(ADDRESS);
+        assertEquals(-64, device.getRssi());
+        assertEquals("sensor", device.getName());
+        assertEquals(reported.getFirstSeen(), device.getFirstSeen());
+    }
+
+    @Test
+    public void everyResultIsReportedWithoutNotifyOnlyChanges() {
+        cache.setNotifyOnlyChanges(false);
+        assertNotNull(cache.update(ADDRESS, null, "sensor", null, (short) -60));
+        assertNotNull(cache.update(ADDRESS, null, "sensor", null, (short) -60));
+    }
+
+    @Test
+    public void ttlRemovesDeviceFromDiscoveredDevices() throws InterruptedException {
+        cache.setTtl(50);
+        cache.update(ADDRESS, null, "sensor", null, (short) -60);
+        assertNotNull(cache.get(ADDRESS.toLowerCase()));
+        assertEquals(1, cache.snapshot().size());
+
+        Thread.sleep(100);
+        assertNull(cache.get(ADDRESS));
+        assertTrue(cache.snapshot().isEmpty());
+    }
+}
@@ -0,0 +1,89 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * LineParserStage splitting lines echoed by a virtual device in random reads.
+ */
+public class LineParserStageTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private LineParserStage stage;
+    private VirtualSppDevice device;
+    private final ConnectionRecorder recorder = new ConnectionRecorder();
+    private final LineRecorder lines = new LineRecorder();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        stage = new LineParserStage();
+        stage.addOnLineListener(lines);
+        SendReceive.getInstance().addStage(stage);
+
+        device = new VirtualSppDevice("00:00:00:00:00:11");
+        device.setEcho(true);
+        device.setFragmentation(1, 3);
+        connection = new Connection(null);
+        connection.setTransportFactory(device);
+        assertTrue(connection.connect(device.getAddress(), false, recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+    }
+
+    @After
+    public void tearDown() {
+        connection.disconnect();
+        SendReceive.getInstance().clearStages();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void splitsFragmentedLines() throws InterruptedException {
+        assertTrue(connection.send("AT+GMR\r\nversion 1.2.3\r\n\r\nOK\r\n".getBytes()));
+
+        assertEquals(Arrays.asList("AT+GMR", "version 1.2.3", "OK"), lines.await(3, 3000));
+        // lines without delimiter are passed on to receive listener
+        assertEquals("AT+GMRversion 1.2.3OK", new String(recorder.awaitReceived(21, 3000)));
+        assertEquals(3, stage.getLineCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsTooLongLineAndKeepsNext() throws InterruptedException {
+        stage.setMaxLineLength(8);
+        assertTrue(connection.send("this line is too long\nshort\n".getBytes()));
+
+        assertEquals(Arrays.asList("short"), lines.await(1, 3000));
+        assertEquals(1, stage.getOverflowCount());
+    }
+
+    private static class LineRecorder implements BluetoothListener.onLineListener {
+        private final List<String> lines = new ArrayList<>();
+
+        @Override
+        public synchronized void onLine(CharSequence line) {
+            lines.add(line.toString());
+            notifyAll();
+        }
+
+        synchronized List<String> await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (lines.size() < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return new ArrayList<>(lines);
+        }
+    }
+}
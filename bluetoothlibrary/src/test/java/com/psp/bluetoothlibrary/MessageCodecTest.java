@@ -0,0 +1,300 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * MessageCodec and Flyweight sending messages to a peer codec over an in-memory transport.
+ */
+public class MessageCodecTest {
+
+    private static final int TELEMETRY = 7;
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private PeerConnection peer;
+    private MessageCodec codec;
+    private MessageCodec peerCodec;
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        connection = new Connection(null);
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+        peer = new PeerConnection(pair[1]);
+    }
+
+    @After
+    public void tearDown() {
+        if(codec != null) {
+            codec.close();
+            peerCodec.close();
+        }
+        connection.disconnect();
+        peer.close();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void sendsAndDecodesOneByteType() throws InterruptedException {
+        createCodecs(MessageCodec.TYPE_BYTE);
+        TelemetryRecorder recorder = new TelemetryRecorder();
+        peerCodec.register(TELEMETRY, new Telemetry(), recorder);
+
+        Telemetry message = codec.newMessage(TELEMETRY, new Telemetry(), 10);
+        message.temperature(-40);
+        message.timestamp(0x0102030405060708L);
+        assertTrue(codec.send(message));
+        assertNull(message.getBuffer()); // buffer is back in pool
+
+        List<long[]> received = recorder.await(1, 3000);
+        assertEquals(1, received.size());
+        assertArrayEquals(new long[] {TELEMETRY, -40, 0x0102030405060708L}, received.get(0));
+        assertEquals(1, peerCodec.getDecodedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void findsTwoByteTypesWithSameLowByte() throws InterruptedException {
+        createCodecs(MessageCodec.TYPE_SHORT);
+        TelemetryRecorder recorder = new TelemetryRecorder();
+        TelemetryRecorder otherRecorder = new TelemetryRecorder();
+        peerCodec.register(0x0107, new Telemetry(), recorder);
+        peerCodec.register(0x0207, new Telemetry(), otherRecorder);
+
+        sendTelemetry(0x0207, 2);
+        assertEquals(1, otherRecorder.await(1, 3000).size());
+        sendTelemetry(0x0107, 1);
+        assertArrayEquals(new long[] {0x0107, 1, 0}, recorder.await(1, 3000).get(0));
+        sendTelemetry(0x0307, 3); // not registered
+        awaitCount(peerCodec, 3, 3000); // each read must be one message
+        sendTelemetry(0x0207, 4);
+        assertArrayEquals(new long[] {0x0207, 4, 0}, otherRecorder.await(2, 3000).get(1));
+        assertEquals(1, peerCodec.getUnknownTypeCount());
+        assertEquals(1, recorder.await(1, 0).size());
+
+        try {
+            peerCodec.register(0x10000, new Telemetry(), recorder);
+            fail("Type larger than 2 bytes is registered");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void countsShortMessageAsInvalid() throws InterruptedException {
+        createCodecs(MessageCodec.TYPE_BYTE);
+        TelemetryRecorder recorder = new TelemetryRecorder();
+        codec.register(TELEMETRY, new Telemetry(), recorder);
+
+        // payload shorter than 10 bytes of telemetry
+        assertTrue(peer.send(new byte[] {TELEMETRY, 1, 2, 3}));
+        awaitCount(codec, 1, 3000);
+        assertEquals(1, codec.getInvalidLengthCount());
+        assertEquals(0, codec.getDecodedCount());
+
+        assertTrue(peer.send(new byte[] {TELEMETRY, 0, 21, 0, 0, 0, 0, 0, 0, 0, 9}));
+        assertArrayEquals(new long[] {TELEMETRY, 21, 9}, recorder.await(1, 3000).get(0));
+        assertEquals(1, codec.getInvalidLengthCount());
+    }
+
+    @Test(timeout = 10000)
+    public void countsMessageShorterThanTwoByteTypeAsInvalid() throws InterruptedException {
+        createCodecs(MessageCodec.TYPE_SHORT);
+        assertTrue(peer.send(new byte[] {1}));
+        awaitCount(codec, 1, 3000);
+        assertEquals(1, codec.getInvalidLengthCount());
+        assertEquals(0, codec.getUnknownTypeCount());
+    }
+
+    @Test(timeout = 20000)
+    public void registersWhileDecoding() throws Throwable {
+        createCodecs(MessageCodec.TYPE_BYTE);
+        final int count = 20000;
+        final TelemetryRecorder recorder = new TelemetryRecorder();
+        codec.register(1, new Telemetry(), recorder);
+        final byte[][] messages = {telemetry(1), telemetry(2)};
+        final Throwable[] error = new Throwable[1];
+
+        // reader thread decodes while this thread changes registrations
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        byte[] message = messages[i % 2];
+                        codec.onRawReceived(message, 0, message.length);
+                    }
+                }
+                catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        reader.start();
+        TelemetryRecorder otherRecorder = new TelemetryRecorder();
+        while (reader.isAlive()) {
+            codec.register(2, new Telemetry(), otherRecorder);
+            for (int type = 3; type < 40; type++) {
+                codec.register(type, new Telemetry(), otherRecorder);
+            }
+            codec.unregister(2);
+            for (int type = 3; type < 40; type++) {
+                codec.unregister(type);
+            }
+        }
+        reader.join();
+
+        if(error[0] != null) {
+            throw error[0];
+        }
+        assertEquals(count / 2, recorder.await(count / 2, 0).size());
+        assertEquals(count, codec.getDecodedCount() + codec.getUnknownTypeCount());
+        assertEquals(count / 2 + otherRecorder.await(0, 0).size(), codec.getDecodedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void decodesAndWritesWithoutAllocation() {
+        createCodecs(MessageCodec.TYPE_BYTE);
+        final long[] sum = new long[1];
+        codec.register(TELEMETRY, new Telemetry(), new BluetoothListener.onMessageListener<Telemetry>() {
+            @Override
+            public void onMessage(int type, Telemetry message) {
+                sum[0] += message.temperature() + message.timestamp();
+            }
+        });
+        BufferPool pool = new BufferPool(4);
+        Telemetry writer = new Telemetry();
+        byte[] message = telemetry(TELEMETRY);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < 2; round++) {
+            // first round warms up
+            long allocated = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 10000; i++) {
+                codec.onRawReceived(message, 0, message.length);
+                byte[] buffer = pool.acquire(11);
+                writer.wrap(buffer, 1, 10);
+                writer.temperature(i);
+                writer.timestamp(i);
+                pool.release(buffer);
+            }
+            allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+            if(round == 1) {
+                assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+            }
+        }
+        assertEquals(20000, codec.getDecodedCount());
+    }
+
+    @Test
+    public void flyweightReadsBothByteOrders() {
+        byte[] buffer = new byte[20];
+        Fields bigEndian = new Fields(false);
+        bigEndian.wrap(buffer, 2, 16);
+        bigEndian.putInt16(0, 0xFFFE);
+        bigEndian.putInt32(2, 0x80000001);
+        bigEndian.putDouble(6, 1.5);
+        assertEquals((byte) 0xFF, buffer[2]);
+        assertEquals((byte) 0xFE, buffer[3]);
+        assertEquals(-2, bigEndian.getInt16(0));
+        assertEquals(0xFFFE, bigEndian.getUint16(0));
+        assertEquals(0x80000001, bigEndian.getInt32(2));
+        assertEquals(0x80000001L, bigEndian.getUint32(2));
+        assertEquals(1.5, bigEndian.getDouble(6), 0);
+
+        Fields littleEndian = new Fields(true);
+        littleEndian.wrap(buffer, 2, 16);
+        assertEquals(0xFEFF, littleEndian.getUint16(0));
+        littleEndian.putInt64(8, 0x0102030405060708L);
+        assertEquals(0x08, buffer[10]);
+        assertEquals(0x0102030405060708L, littleEndian.getInt64(8));
+
+        try {
+            littleEndian.getInt32(14); // field ends after payload
+            fail("Field outside message is read");
+        }
+        catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    private void createCodecs(int typeLength) {
+        codec = new MessageCodec(connection, typeLength, new BufferPool(4));
+        peerCodec = new MessageCodec(peer, typeLength, new BufferPool(4));
+        peer.attach(peerCodec);
+    }
+
+    private void sendTelemetry(int type, int temperature) {
+        Telemetry message = codec.newMessage(type, new Telemetry(), 10);
+        message.temperature(temperature);
+        message.timestamp(0);
+        assertTrue(codec.send(message));
+    }
+
+    // 1 byte type, temperature 7 and timestamp 8
+    private static byte[] telemetry(int type) {
+        return new byte[] {(byte) type, 0, 7, 0, 0, 0, 0, 0, 0, 0, 8};
+    }
+
+    // Wait till received messages are counted
+    private static void awaitCount(MessageCodec codec, int count, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (codec.getDecodedCount() + codec.getUnknownTypeCount() + codec.getInvalidLengthCount() < count
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Telemetry extends Flyweight {
+        int temperature() { return getInt16(0); }
+        void temperature(int value) { putInt16(0, value); }
+        long timestamp() { return getInt64(2); }
+        void timestamp(long value) { putInt64(2, value); }
+
+        @Override
+        public int getMinLength() {
+            return 10;
+        }
+    }
+
+    // Gives test access to all field types
+    private static class Fields extends Flyweight {
+        Fields(boolean isLittleEndian) {
+            super(isLittleEndian);
+        }
+    }
+
+    // Received telemetry as {type, temperature, timestamp}, flyweight is only valid in listener
+    private static class TelemetryRecorder implements BluetoothListener.onMessageListener<Telemetry> {
+        private final List<long[]> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessage(int type, Telemetry message) {
+            messages.add(new long[] {type, message.temperature(), message.timestamp()});
+            notifyAll();
+        }
+
+        synchronized List<long[]> await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return new ArrayList<>(messages);
+        }
+    }
+}
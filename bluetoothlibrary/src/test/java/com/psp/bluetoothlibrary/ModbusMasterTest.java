@@ -0,0 +1,279 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * ModbusMaster against a virtual slave, holding register n has value n.
+ */
+public class ModbusMasterTest {
+
+    private ExecutorService dispatcher;
+    private VirtualSppDevice device;
+    private Slave slave;
+    private Connection connection;
+    private ModbusMaster master;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        device = new VirtualSppDevice("00:11:22:33:44:55");
+        slave = new Slave(1);
+        device.setScript(slave);
+        connection = new Connection(null);
+        connection.setTransportFactory(device);
+    }
+
+    @After
+    public void tearDown() {
+        if(master != null) {
+            master.close();
+        }
+        connection.disconnect();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void readsAndWritesRegisters() throws InterruptedException {
+        device.setFragmentation(1, 3); // response comes in small reads
+        connect();
+
+        Response read = new Response();
+        master.readHoldingRegisters(1, 100, 4, read);
+        assertTrue(read.await(2000));
+        assertArrayEquals(new int[] {100, 101, 102, 103}, read.values);
+
+        Response write = new Response();
+        master.writeSingleRegister(1, 7, 0x1234, write);
+        assertTrue(write.await(2000));
+        assertArrayEquals(new int[] {0x1234}, write.values);
+        assertEquals(0, master.getRetryCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsPartialResponseOfTimedOutTry() throws InterruptedException {
+        slave.partialResponses = 1; // first try gets 3 bytes only
+        connect();
+
+        Response read = new Response();
+        master.readHoldingRegisters(1, 10, 2, read);
+        assertTrue(read.await(3000));
+        assertEquals(0, read.errorCode);
+        assertArrayEquals(new int[] {10, 11}, read.values);
+        assertEquals(1, master.getRetryCount());
+        assertEquals(0, master.getInvalidResponseCount());
+    }
+
+    @Test(timeout = 10000)
+    public void findsResponseAfterLateBytes() throws InterruptedException {
+        slave.leadingBytes = new byte[] {0x01, 0x03, 0x04, 0x00}; // tail of an earlier frame
+        connect();
+
+        Response read = new Response();
+        master.readHoldingRegisters(1, 20, 1, read);
+        assertTrue(read.await(2000));
+        assertArrayEquals(new int[] {20}, read.values);
+        assertEquals(0, master.getRetryCount());
+    }
+
+    @Test(timeout = 10000)
+    public void failsWithTimeoutAfterRetries() throws InterruptedException {
+        slave.partialResponses = Integer.MAX_VALUE;
+        connect();
+
+        Response read = new Response();
+        master.readHoldingRegisters(1, 0, 1, read);
+        assertTrue(read.await(3000));
+        assertEquals(ModbusMaster.TIMEOUT, read.errorCode);
+        assertEquals(1, master.getTimeoutCount());
+    }
+
+    @Test(timeout = 10000)
+    public void pollGroupContinuesAfterListenerThrows() throws InterruptedException {
+        connect();
+        ModbusMaster.PollGroup group = master.addPollGroup(100);
+        PollRecorder throwing = new PollRecorder(true);
+        PollRecorder recorder = new PollRecorder(false);
+        // merged into one request, first read listener throws
+        group.addRead(1, ModbusMaster.READ_HOLDING_REGISTERS, 10, 2, throwing);
+        group.addRead(1, ModbusMaster.READ_HOLDING_REGISTERS, 12, 2, recorder);
+        assertEquals(1, group.getRequestCount());
+
+        assertTrue(recorder.await(3, 0, 5000));
+        assertArrayEquals(new int[] {12, 13}, recorder.values);
+        assertTrue(group.getCycleCount() >= 2);
+        assertTrue(throwing.responseCount >= 3);
+    }
+
+    @Test(timeout = 10000)
+    public void pollGroupContinuesAfterFailureListenerThrows() throws InterruptedException {
+        slave.partialResponses = Integer.MAX_VALUE;
+        connect();
+        master.setRetries(0);
+        ModbusMaster.PollGroup group = master.addPollGroup(100);
+        PollRecorder throwing = new PollRecorder(true);
+        PollRecorder recorder = new PollRecorder(false);
+        group.addRead(1, ModbusMaster.READ_HOLDING_REGISTERS, 10, 2, throwing);
+        group.addRead(1, ModbusMaster.READ_HOLDING_REGISTERS, 12, 2, recorder);
+
+        assertTrue(recorder.await(0, 3, 5000));
+        assertEquals(ModbusMaster.TIMEOUT, recorder.errorCode);
+        assertTrue(group.getCycleCount() >= 2);
+    }
+
+    private void connect() throws InterruptedException {
+        ConnectionRecorder recorder = new ConnectionRecorder();
+        assertTrue(connection.connect(device.getAddress(), false, recorder, null));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 3000));
+        master = new ModbusMaster(connection);
+        master.setBaudRate(115200);
+        master.setTimeout(300);
+        master.setRetries(1);
+    }
+
+
+    // Slave answering read holding registers and write single register
+    private static class Slave implements VirtualSppDevice.Script {
+        private final int slaveId;
+        private final Crc crc = Crc.crc16Modbus();
+        private final byte[] request = new byte[8];
+        private int requestLength = 0;
+        volatile int partialResponses = 0;
+        volatile byte[] leadingBytes = null;
+
+        Slave(int slaveId) {
+            this.slaveId = slaveId;
+        }
+
+        @Override
+        public void onReceived(byte[] buffer, int offset, int length, OutputStream output) throws IOException {
+            for (int i = 0; i < length; i++) {
+                request[requestLength++] = buffer[offset + i];
+                if(requestLength == request.length) {
+                    requestLength = 0;
+                    respond(output);
+                }
+            }
+        }
+
+        private void respond(OutputStream output) throws IOException {
+            int function = request[1] & 0xFF;
+            int address = ((request[2] & 0xFF) << 8) | (request[3] & 0xFF);
+            int count = ((request[4] & 0xFF) << 8) | (request[5] & 0xFF);
+            byte[] response;
+            if(function == ModbusMaster.READ_HOLDING_REGISTERS) {
+                response = new byte[5 + count * 2];
+                response[2] = (byte) (count * 2);
+                for (int i = 0; i < count; i++) {
+                    response[3 + i * 2] = (byte) ((address + i) >>> 8);
+                    response[4 + i * 2] = (byte) (address + i);
+                }
+            }
+            else {
+                response = Arrays.copyOf(request, 8); // echo of write
+            }
+            response[0] = (byte) slaveId;
+            response[1] = (byte) function;
+            crc.reset();
+            crc.update(response, 0, response.length - 2);
+            crc.writeValue(response, response.length - 2);
+
+            byte[] leading = leadingBytes;
+            if(leading != null) {
+                leadingBytes = null;
+                output.write(leading);
+            }
+            if(partialResponses > 0) {
+                partialResponses--;
+                output.write(response, 0, 3);
+                return;
+            }
+            output.write(response);
+        }
+    }
+
+    // Counts poll results, optionally throws after counting
+    private static class PollRecorder implements BluetoothListener.onModbusResponseListener {
+        private final boolean isThrowing;
+        private int responseCount = 0;
+        private int failureCount = 0;
+        private int[] values = null;
+        private int errorCode = 0;
+
+        private PollRecorder(boolean isThrowing) {
+            this.isThrowing = isThrowing;
+        }
+
+        @Override
+        public void onModbusResponse(int slaveId, int address, int[] values, long latencyMillis) {
+            synchronized (this) {
+                responseCount++;
+                this.values = values;
+                notifyAll();
+            }
+            if(isThrowing) {
+                throw new IllegalStateException("Listener error");
+            }
+        }
+
+        @Override
+        public void onModbusFailure(int slaveId, int address, int errorCode) {
+            synchronized (this) {
+                failureCount++;
+                this.errorCode = errorCode;
+                notifyAll();
+            }
+            if(isThrowing) {
+                throw new IllegalStateException("Listener error");
+            }
+        }
+
+        synchronized boolean await(int responses, int failures, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while ((responseCount < responses || failureCount < failures) && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return responseCount >= responses && failureCount >= failures;
+        }
+    }
+
+    private static class Response implements BluetoothListener.onModbusResponseListener {
+        private int[] values = null;
+        private int errorCode = 0;
+        private boolean isDone = false;
+
+        @Override
+        public synchronized void onModbusResponse(int slaveId, int address, int[] values, long latencyMillis) {
+            this.values = values;
+            isDone = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onModbusFailure(int slaveId, int address, int errorCode) {
+            this.errorCode = errorCode;
+            isDone = true;
+            notifyAll();
+        }
+
+        synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (!isDone && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return isDone;
+        }
+    }
+}
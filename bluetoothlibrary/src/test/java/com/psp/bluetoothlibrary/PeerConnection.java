@@ -0,0 +1,105 @@
+package com.psp.bluetoothlibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Remote side of a test connection. SendReceive serves only one connection per process,
+ * so the peer sends straight to its end of the transport and gives received bytes to a raw listener.
+ */
+class PeerConnection extends Connection {
+
+    private volatile Transport transport;
+    private volatile BluetoothListener.onRawReceiveListener rawReceiveListener;
+
+    PeerConnection(Transport transport) {
+        super(null);
+        setTransport(transport);
+    }
+
+    /**
+     * Continue on new transport, for example after reconnect.
+     * @param transport connected transport
+     */
+    void setTransport(final Transport transport) {
+        this.transport = transport;
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(transport);
+            }
+        }, "PeerConnection");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Set listener of bytes received by the peer. An engine created with this connection should be
+     * removed from SendReceive raw listeners first, see {@link #attach}.
+     * @param rawReceiveListener BluetoothListener.onRawReceiveListener
+     */
+    void setOnRawReceiveListener(BluetoothListener.onRawReceiveListener rawReceiveListener) {
+        this.rawReceiveListener = rawReceiveListener;
+    }
+
+    /**
+     * Move an engine created with this connection from SendReceive to the peer.
+     * @param engine engine registered as SendReceive raw listener
+     */
+    void attach(BluetoothListener.onRawReceiveListener engine) {
+        SendReceive.getInstance().removeOnRawReceiveListener(engine);
+        setOnRawReceiveListener(engine);
+    }
+
+    void close() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean send(String data) {
+        return send(data.getBytes());
+    }
+
+    @Override
+    public boolean send(byte[] b) {
+        return send(b, 0, b.length);
+    }
+
+    @Override
+    public boolean send(byte[] b, int off, int len) {
+        try {
+            OutputStream outputStream = transport.getOutputStream();
+            outputStream.write(b, off, len);
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    private void readLoop(Transport transport) {
+        byte[] buffer = new byte[1024];
+        try {
+            InputStream inputStream = transport.getInputStream();
+            int bytes;
+            while ((bytes = inputStream.read(buffer)) >= 0) {
+                BluetoothListener.onRawReceiveListener listener = rawReceiveListener;
+                if(listener != null) {
+                    listener.onRawReceived(buffer, 0, bytes);
+                }
+            }
+        } catch (IOException e) {
+            // transport closed
+        }
+    }
+}
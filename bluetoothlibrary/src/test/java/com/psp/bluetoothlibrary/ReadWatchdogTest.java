@@ -0,0 +1,95 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read watchdog of send and receive over in-memory transport.
+ */
+public class ReadWatchdogTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private final IdleRecorder idleRecorder = new IdleRecorder();
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+        connection = new Connection(null);
+    }
+
+    @After
+    public void tearDown() {
+        connection.disconnect();
+        SendReceive.getInstance().removeReadWatchdog();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void watchdogIsKeptForNextConnection() throws InterruptedException {
+        SendReceive.getInstance().setReadWatchdog(100, 0, false, idleRecorder);
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], null, null));
+        assertTrue(idleRecorder.awaitIdle(1, 3000));
+
+        // send and receive instance is replaced on disconnect, settings are not
+        connection.disconnect();
+        pair[1].close();
+        int idleCount = idleRecorder.getIdleCount();
+        pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], null, null));
+        assertTrue(idleRecorder.awaitIdle(idleCount + 1, 3000));
+        pair[1].close();
+    }
+
+    @Test(timeout = 10000)
+    public void removedWatchdogIsNotStartedAgain() throws InterruptedException {
+        SendReceive.getInstance().setReadWatchdog(100, 0, false, idleRecorder);
+        SendReceive.getInstance().removeReadWatchdog();
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], null, null));
+        assertFalse(idleRecorder.awaitIdle(1, 500));
+        assertEquals(-1, SendReceive.getInstance().getReadIdleTime());
+        pair[1].close();
+    }
+
+    private static class IdleRecorder implements BluetoothListener.onReadWatchdogListener {
+        private int idleCount = 0;
+
+        @Override
+        public synchronized void onReadIdle(long idleMillis) {
+            idleCount++;
+            notifyAll();
+        }
+
+        @Override
+        public void onReadStalled(long idleMillis) {
+        }
+
+        synchronized int getIdleCount() {
+            return idleCount;
+        }
+
+        synchronized boolean awaitIdle(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (idleCount < count) {
+                long wait = end - System.currentTimeMillis();
+                if(wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * ReliableChannel sending to a peer channel over an in-memory transport.
+ */
+public class ReliableChannelTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private PeerConnection peer;
+    private ReliableChannel channel;
+    private ReliableChannel peerChannel;
+    private final Receiver receiver = new Receiver();
+    private final AtomicInteger dataSends = new AtomicInteger();
+    private final AtomicInteger ackSends = new AtomicInteger();
+    private volatile boolean isLossy = false;
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        connection = new Connection(null) {
+            @Override
+            public boolean send(byte[] b) {
+                if(isLossy && dataSends.incrementAndGet() % 4 == 0) {
+                    return true; // data frame lost
+                }
+                return super.send(b);
+            }
+        };
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+        channel = new ReliableChannel(connection, receiver);
+        channel.setMaxRetransmits(20);
+
+        peer = new PeerConnection(pair[1]) {
+            @Override
+            public boolean send(byte[] b, int off, int len) {
+                if(isLossy && ackSends.incrementAndGet() % 4 == 0) {
+                    return true; // ack lost
+                }
+                return super.send(b, off, len);
+            }
+        };
+        peerChannel = newPeerChannel();
+    }
+
+    @After
+    public void tearDown() {
+        channel.close();
+        peerChannel.close();
+        connection.disconnect();
+        peer.close();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 30000)
+    public void deliversInOrderOnLossyLink() throws InterruptedException {
+        // a quarter of data frames and acks are lost
+        isLossy = true;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(channel.send(("message " + i).getBytes()));
+        }
+
+        List<String> messages = receiver.await(100, 25000);
+        assertEquals(100, messages.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, messages.get(i));
+        }
+        assertTrue(channel.getRetransmitCount() > 0);
+    }
+
+    @Test(timeout = 30000)
+    public void startsSequencesAgainOnReconnect() throws InterruptedException {
+        for (int i = 0; i < 40; i++) {
+            assertTrue(channel.send(("before " + i).getBytes()));
+        }
+        assertEquals(40, receiver.await(40, 20000).size());
+        while (channel.getInFlightCount() > 0) {
+            Thread.sleep(10);
+        }
+
+        // link drops, data sent meanwhile is not acknowledged
+        connection.disconnect();
+        peer.close();
+        channel.send("queued".getBytes());
+
+        // device starts again with new channel, both start sequences at 0
+        peerChannel.close();
+        PipedTransport[] pair = PipedTransport.createPair();
+        peer.setTransport(pair[1]);
+        peerChannel = newPeerChannel();
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+        assertTrue(channel.send("after".getBytes()));
+
+        List<String> messages = receiver.await(42, 10000);
+        assertEquals(42, messages.size());
+        assertEquals("queued", messages.get(40));
+        assertEquals("after", messages.get(41));
+    }
+
+    private ReliableChannel newPeerChannel() {
+        ReliableChannel peerChannel = new ReliableChannel(peer, receiver);
+        peer.attach(peerChannel);
+        return peerChannel;
+    }
+
+    private static class Receiver implements BluetoothListener.onReliableReceiveListener {
+        private final List<String> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void onReliableReceived(byte[] data) {
+            messages.add(new String(data));
+            notifyAll();
+        }
+
+        @Override
+        public void onReliableFailed(int errorCode) {
+        }
+
+        synchronized List<String> await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return new ArrayList<>(messages);
+        }
+    }
+}
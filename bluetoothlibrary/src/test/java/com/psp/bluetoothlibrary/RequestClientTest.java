@@ -0,0 +1,184 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * RequestClient over an in-memory transport, the peer answers requests in any order.
+ */
+public class RequestClientTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private PeerConnection peer;
+    private RequestClient client;
+    private final RequestRecorder requests = new RequestRecorder();
+    private final RequestClient.Codec codec = new RequestClient.DefaultCodec();
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        PipedTransport[] pair = PipedTransport.createPair();
+        connection = new Connection(null);
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+        peer = new PeerConnection(pair[1]);
+        peer.setOnRawReceiveListener(requests);
+    }
+
+    @After
+    public void tearDown() {
+        if(client != null) {
+            client.close();
+        }
+        connection.disconnect();
+        peer.close();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void matchesResponsesInOrder() throws InterruptedException {
+        client = new RequestClient(connection);
+        ResponseFuture[] futures = new ResponseFuture[3];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = client.send(new byte[] {(byte) i});
+        }
+
+        List<int[]> received = requests.await(3, 3000);
+        for (int[] request : received) {
+            respond(request);
+        }
+        for (int i = 0; i < futures.length; i++) {
+            assertArrayEquals(new byte[] {(byte) i, 'R'}, futures[i].get(3000));
+            assertEquals(0, futures[i].getErrorCode());
+        }
+        assertEquals(0, client.getOutstandingCount());
+        assertEquals(3, client.getLatencyStats().getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void matchesResponsesOutOfOrder() throws InterruptedException {
+        client = new RequestClient(connection);
+        ResponseFuture[] futures = new ResponseFuture[5];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = client.send(new byte[] {(byte) i});
+        }
+
+        List<int[]> received = requests.await(5, 3000);
+        for (int i = received.size() - 1; i >= 0; i--) {
+            respond(received.get(i));
+            // later requests are answered first
+            assertArrayEquals(new byte[] {(byte) i, 'R'}, futures[i].get(3000));
+            assertEquals(i, client.getOutstandingCount());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void timeoutSendsWaitingRequest() throws InterruptedException {
+        client = new RequestClient(connection, 1, codec);
+        ResponseFuture first = client.send(new byte[] {1}, 200, null);
+        ResponseFuture second = client.send(new byte[] {2}, 5000, null);
+        assertEquals(1, client.getOutstandingCount());
+        assertEquals(1, client.getQueuedCount());
+
+        assertNull(first.get(3000));
+        assertEquals(RequestClient.TIMEOUT, first.getErrorCode());
+        assertEquals(1, client.getTimeoutCount());
+
+        // slot of timed out request is used by waiting request
+        List<int[]> received = requests.await(2, 3000);
+        assertEquals(2, received.size());
+        assertEquals(2, received.get(1)[1]);
+        respond(received.get(1));
+        assertArrayEquals(new byte[] {2, 'R'}, second.get(3000));
+        assertEquals(0, client.getQueuedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void lateResponseDoesNotCompleteRequestInSameSlot() throws InterruptedException {
+        // one request in flight uses two slots, third request gets slot of first
+        client = new RequestClient(connection, 1, codec);
+        ResponseFuture first = client.send(new byte[] {1}, 200, null);
+        assertNull(first.get(3000));
+        ResponseFuture second = client.send(new byte[] {2}, 5000, null);
+        respond(requests.await(2, 3000).get(1));
+        assertArrayEquals(new byte[] {2, 'R'}, second.get(3000));
+        ResponseFuture third = client.send(new byte[] {3}, 5000, null);
+        List<int[]> received = requests.await(3, 3000);
+
+        respond(received.get(0)); // late response of timed out request
+        assertNull(third.get(300));
+        assertFalse(third.isDone());
+        respond(received.get(2));
+        assertArrayEquals(new byte[] {3, 'R'}, third.get(3000));
+        assertEquals(RequestClient.TIMEOUT, first.getErrorCode());
+    }
+
+    @Test(timeout = 10000)
+    public void partialResponseIsDroppedOnReconnect() throws Exception {
+        client = new RequestClient(connection);
+        ResponseFuture first = client.send(new byte[] {1}, 500, null);
+        byte[] response = codec.encode(requests.await(1, 3000).get(0)[0], new byte[] {1, 'R'});
+        assertTrue(peer.send(response, 0, 3)); // connection is lost in middle of response
+        assertNull(first.get(3000));
+
+        connection.disconnect();
+        peer.close();
+        PipedTransport[] pair = PipedTransport.createPair();
+        peer.setTransport(pair[1]);
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+
+        ResponseFuture second = client.send(new byte[] {2}, 3000, null);
+        respond(requests.await(2, 3000).get(1));
+        assertArrayEquals(new byte[] {2, 'R'}, second.get(3000));
+    }
+
+    // Answer request with its payload and 'R'
+    private void respond(int[] request) {
+        assertTrue(peer.send(codec.encode(request[0], new byte[] {(byte) request[1], 'R'})));
+    }
+
+    // Requests received by peer as {sequence id, first payload byte}
+    private static class RequestRecorder implements BluetoothListener.onRawReceiveListener {
+        private final List<int[]> requests = new ArrayList<>();
+        private final RequestClient.Codec codec = new RequestClient.DefaultCodec();
+        private final RequestClient.Frame frame = new RequestClient.Frame();
+        private byte[] buffer = new byte[0];
+
+        @Override
+        public synchronized void onRawReceived(byte[] data, int offset, int length) {
+            int start = buffer.length;
+            buffer = Arrays.copyOf(buffer, start + length);
+            System.arraycopy(data, offset, buffer, start, length);
+
+            // request frame has same format as response
+            int position = 0;
+            int consumed;
+            while (position < buffer.length && (consumed = codec.decode(buffer, position, buffer.length - position, frame)) > 0) {
+                requests.add(new int[] {(buffer[position + 1] & 0xFF) << 8 | (buffer[position + 2] & 0xFF), buffer[position + 5]});
+                position += consumed;
+            }
+            buffer = Arrays.copyOfRange(buffer, position, buffer.length);
+            notifyAll();
+        }
+
+        synchronized List<int[]> await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (requests.size() < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return new ArrayList<>(requests);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection opened over in-memory and TCP loopback transports.
+ */
+public class TransportTest {
+
+    private ExecutorService dispatcher;
+    private Connection connection;
+    private final ConnectionRecorder recorder = new ConnectionRecorder();
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+        connection = new Connection(null);
+    }
+
+    @After
+    public void tearDown() {
+        connection.disconnect();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void pipedTransportSendsAndReceives() throws Exception {
+        PipedTransport[] pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 1000));
+        assertTrue(connection.isConnected());
+
+        sendAndReceive(pair[1]);
+        pair[1].close();
+    }
+
+    @Test(timeout = 10000)
+    public void tcpLoopbackSendsAndReceives() throws Exception {
+        TcpTransport[] pair = TcpTransport.createLoopbackPair();
+        assertTrue(connection.open(pair[0], recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 1000));
+
+        sendAndReceive(pair[1]);
+        pair[1].close();
+    }
+
+    @Test(timeout = 10000)
+    public void remoteCloseDisconnects() throws Exception {
+        PipedTransport[] pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 1, 1000));
+
+        pair[1].close();
+        assertTrue(recorder.awaitState(Connection.DISCONNECTED, 1, 3000));
+        assertFalse(connection.isConnected());
+
+        // disconnect releases closed transport, as after a lost bluetooth connection
+        connection.disconnect();
+        pair = PipedTransport.createPair();
+        assertTrue(connection.open(pair[0], recorder, recorder));
+        assertTrue(recorder.awaitState(Connection.CONNECTED, 2, 1000));
+        pair[1].close();
+    }
+
+    // Send both ways, remote end is the other transport of the pair
+    private void sendAndReceive(Transport remote) throws Exception {
+        assertTrue(connection.send("ping".getBytes()));
+        assertEquals("ping", new String(read(remote.getInputStream(), 4)));
+
+        remote.getOutputStream().write("pong".getBytes());
+        remote.getOutputStream().flush();
+        assertEquals("pong", new String(recorder.awaitReceived(4, 3000)));
+    }
+
+    private static byte[] read(InputStream inputStream, int length) throws IOException {
+        byte[] data = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            int read = inputStream.read(data, filled, length - filled);
+            if(read < 0) {
+                throw new IOException("End of stream");
+            }
+            filled += read;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,231 @@
+package com.psp.bluetoothlibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * YmodemTransfer sender over the connection and receiver on the peer.
+ */
+public class YmodemTransferTest {
+
+    private static final byte SOH = 0x01;
+    private static final byte ACK = 0x06;
+    private static final byte CAN = 0x18;
+
+    private ExecutorService dispatcher;
+    private PipedTransport[] pair;
+    private Connection connection;
+    private PeerConnection peer;
+    private YmodemTransfer sender;
+    private YmodemTransfer receiver;
+
+    @Before
+    public void setUp() {
+        dispatcher = Executors.newSingleThreadExecutor();
+        Dispatcher.setExecutor(dispatcher);
+
+        pair = PipedTransport.createPair();
+        connection = new Connection(null);
+        assertTrue(connection.open(pair[0], new ConnectionRecorder(), null));
+    }
+
+    @After
+    public void tearDown() {
+        if(sender != null) {
+            sender.cancel();
+        }
+        if(receiver != null) {
+            receiver.cancel();
+        }
+        connection.disconnect();
+        peer.close();
+        Dispatcher.setExecutor(null);
+        dispatcher.shutdownNow();
+    }
+
+    @Test(timeout = 20000)
+    public void sendsFileWithYmodem() throws InterruptedException {
+        peer = new PeerConnection(pair[1]);
+        byte[] data = randomBytes(100*1000 + 17);
+        ByteArrayOutputStream out = transfer(YmodemTransfer.PROTOCOL_YMODEM, data);
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, sender.getRetransmitCount());
+    }
+
+    @Test(timeout = 20000)
+    public void sendsFileWithXmodem1k() throws InterruptedException {
+        peer = new PeerConnection(pair[1]);
+        byte[] data = randomBytes(20*1024);
+        ByteArrayOutputStream out = transfer(YmodemTransfer.PROTOCOL_XMODEM_1K, data);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test(timeout = 20000)
+    public void skipsStrayBytesBeforeAck() throws InterruptedException {
+        // receiver sends 'C' again before every ACK
+        peer = new PeerConnection(pair[1]) {
+            @Override
+            public boolean send(byte[] b, int off, int len) {
+                if(len == 1 && b[off] == ACK) {
+                    super.send(new byte[] {'C'}, 0, 1);
+                }
+                return super.send(b, off, len);
+            }
+        };
+        byte[] data = randomBytes(10*1024);
+        ByteArrayOutputStream out = transfer(YmodemTransfer.PROTOCOL_YMODEM, data);
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, sender.getRetransmitCount());
+    }
+
+    @Test(timeout = 20000)
+    public void failsWhenStreamThrowsUncheckedException() throws InterruptedException {
+        peer = new PeerConnection(pair[1]);
+        sender = new YmodemTransfer(connection, YmodemTransfer.PROTOCOL_YMODEM);
+        receiver = new YmodemTransfer(peer, YmodemTransfer.PROTOCOL_YMODEM);
+        Result sent = new Result();
+        Result received = new Result();
+        assertTrue(receiver.receive(new ByteArrayOutputStream(), received));
+        peer.attach(receiver);
+
+        InputStream in = new ByteArrayInputStream(randomBytes(10*1024)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if(pos >= 4096) {
+                    throw new IllegalStateException("Source closed");
+                }
+                return super.read(b, off, len);
+            }
+        };
+        assertTrue(sender.send(in, "data.bin", 10*1024, sent));
+        assertTrue(sent.await(10000));
+        assertEquals(YmodemTransfer.IO_ERROR, sent.errorCode);
+        assertFalse(sender.isRunning());
+        assertTrue(received.await(5000));
+        assertEquals(YmodemTransfer.REMOTE_CANCELLED, received.errorCode);
+
+        // stopped transfer does not block next one
+        assertTrue(sender.send(new ByteArrayInputStream(new byte[10]), "next.bin", 10, new Result()));
+    }
+
+    @Test(timeout = 20000)
+    public void failsOnInvalidHeaderSize() throws InterruptedException {
+        peer = new PeerConnection(pair[1]);
+        RawRecorder peerReceived = new RawRecorder();
+        peer.setOnRawReceiveListener(peerReceived);
+        receiver = new YmodemTransfer(connection, YmodemTransfer.PROTOCOL_YMODEM);
+        Result received = new Result();
+        assertTrue(receiver.receive(new ByteArrayOutputStream(), received));
+        assertTrue(peerReceived.await('C', 5000));
+
+        // size does not fit in a long
+        byte[] header = new byte[3 + 128 + 2];
+        header[0] = SOH;
+        header[2] = (byte) 0xFF;
+        byte[] fields = ("data.bin\0" + "99999999999999999999999").getBytes();
+        System.arraycopy(fields, 0, header, 3, fields.length);
+        Crc crc = Crc.crc16Xmodem();
+        crc.update(header, 3, 128);
+        crc.writeValue(header, 3 + 128);
+        assertTrue(peer.send(header));
+
+        assertTrue(received.await(5000));
+        assertEquals(YmodemTransfer.INVALID_HEADER, received.errorCode);
+        assertFalse(receiver.isRunning());
+        assertTrue(peerReceived.await(CAN, 3000));
+    }
+
+    private ByteArrayOutputStream transfer(int protocol, byte[] data) throws InterruptedException {
+        sender = new YmodemTransfer(connection, protocol);
+        receiver = new YmodemTransfer(peer, protocol);
+        sender.setBlockTimeout(2000);
+        receiver.setBlockTimeout(2000);
+
+        Result sent = new Result();
+        Result received = new Result();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(receiver.receive(out, received));
+        peer.attach(receiver); // receiver listens to SendReceive once started
+        assertTrue(sender.send(new ByteArrayInputStream(data), "data.bin", data.length, sent));
+        assertTrue(sent.await(15000));
+        assertTrue(received.await(5000));
+        assertEquals(0, sent.errorCode);
+        assertEquals(0, received.errorCode);
+        if(protocol == YmodemTransfer.PROTOCOL_YMODEM) {
+            assertEquals("data.bin", received.fileName);
+        }
+        return out;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    // Bytes received by peer
+    private static class RawRecorder implements BluetoothListener.onRawReceiveListener {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void onRawReceived(byte[] buffer, int offset, int length) {
+            bytes.write(buffer, offset, length);
+            notifyAll();
+        }
+
+        synchronized boolean await(int b, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (System.currentTimeMillis() < end) {
+                for (byte received : bytes.toByteArray()) {
+                    if(received == (byte) b) {
+                        return true;
+                    }
+                }
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return false;
+        }
+    }
+
+    private static class Result implements BluetoothListener.onTransferListener {
+        private String fileName = null;
+        private int errorCode = 0;
+        private boolean isDone = false;
+
+        @Override
+        public void onTransferProgress(long transferredBytes, long totalBytes) {
+        }
+
+        @Override
+        public synchronized void onTransferFinished(String fileName, long transferredBytes, long elapsedMillis) {
+            this.fileName = fileName;
+            isDone = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onTransferFailed(int errorCode) {
+            this.errorCode = errorCode;
+            isDone = true;
+            notifyAll();
+        }
+
+        synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (!isDone && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return isDone;
+        }
+    }
+}